@@ -0,0 +1,167 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact binary codec. A message is laid out as:
+ *
+ *   type    1 byte, index into TYPES
+ *   key     field
+ *   value   field
+ *   message field
+ *
+ * where each field is an unsigned LEB128 varint holding (length + 1) followed
+ * by that many bytes of UTF-8, and a varint of 0 marks a null field.
+ */
+public class BinaryCodec implements KVMessageCodec {
+
+    public static final int ID = 1;
+
+    /** Message types, indexed by their type byte. Index 0 is unused. */
+    private static final String[] TYPES = {null, GET_REQ, PUT_REQ, DEL_REQ,
+        RESP, REGISTER, READY, ABORT, COMMIT, ACK, SUCCESS};
+
+    @Override
+    public int getId() {
+        return ID;
+    }
+
+    @Override
+    public byte[] encode(KVMessage msg) throws KVException {
+        KVMessage.checkMessage(msg);
+        int type = typeByte(msg.getMsgType());
+        byte[] key = utf8(msg.getKey());
+        byte[] value = utf8(msg.getValue());
+        byte[] message = utf8(msg.getMessage());
+
+        byte[] out = new byte[1 + fieldSize(key) + fieldSize(value)
+            + fieldSize(message)];
+        out[0] = (byte) type;
+        int pos = writeField(out, 1, key);
+        pos = writeField(out, pos, value);
+        writeField(out, pos, message);
+        return out;
+    }
+
+    /**
+     * Encode the response to a successful GET, a RESP holding key and
+     * value, around value bytes that are already UTF-8. The value is not
+     * copied: the payload is returned as three buffers, the middle one a
+     * view of value.
+     *
+     * @param key the key asked for
+     * @param value UTF-8 bytes of its value, from position to limit
+     * @return buffers holding the payload, in order
+     * @throws KVException ERROR_PARSER if the message type is unknown
+     */
+    public ByteBuffer[] encodeValue(String key, ByteBuffer value) throws KVException {
+        byte[] keyBytes = utf8(key);
+        int length = value.remaining();
+        byte[] head = new byte[1 + fieldSize(keyBytes) + varintSize(length + 1)];
+        head[0] = (byte) typeByte(RESP);
+        int pos = writeField(head, 1, keyBytes);
+        writeVarint(head, pos, length + 1);
+        // the null message field
+        byte[] tail = {0};
+        return new ByteBuffer[] {ByteBuffer.wrap(head), value.duplicate(),
+            ByteBuffer.wrap(tail)};
+    }
+
+    @Override
+    public KVMessage decode(byte[] payload) throws KVException {
+        if (payload.length < 1) {
+            throw new KVException(ERROR_INVALID_FORMAT);
+        }
+        int type = payload[0] & 0xFF;
+        if (type <= 0 || type >= TYPES.length) {
+            throw new KVException(ERROR_INVALID_FORMAT);
+        }
+        KVMessage msg = new KVMessage(TYPES[type]);
+        int[] pos = {1};
+        msg.setKey(readField(payload, pos));
+        msg.setValue(readField(payload, pos));
+        msg.setMessage(readField(payload, pos));
+        if (pos[0] != payload.length) {
+            throw new KVException(ERROR_INVALID_FORMAT);
+        }
+        KVMessage.checkMessage(msg);
+        return msg;
+    }
+
+    private static int typeByte(String msgType) throws KVException {
+        for (int i = 1; i < TYPES.length; i++) {
+            if (TYPES[i].equals(msgType)) {
+                return i;
+            }
+        }
+        throw new KVException(ERROR_PARSER);
+    }
+
+    private static byte[] utf8(String s) {
+        return (s == null) ? null : s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int fieldSize(byte[] field) {
+        if (field == null) {
+            return 1;
+        }
+        return varintSize(field.length + 1) + field.length;
+    }
+
+    private static int varintSize(int n) {
+        int size = 1;
+        while ((n >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    private static int writeField(byte[] out, int pos, byte[] field) {
+        pos = writeVarint(out, pos, (field == null) ? 0 : field.length + 1);
+        if (field != null) {
+            System.arraycopy(field, 0, out, pos, field.length);
+            pos += field.length;
+        }
+        return pos;
+    }
+
+    private static int writeVarint(byte[] out, int pos, int n) {
+        while ((n & ~0x7F) != 0) {
+            out[pos++] = (byte) ((n & 0x7F) | 0x80);
+            n >>>= 7;
+        }
+        out[pos++] = (byte) n;
+        return pos;
+    }
+
+    /**
+     * Read one field starting at pos[0] and advance pos[0] past it.
+     */
+    private static String readField(byte[] in, int[] pos) throws KVException {
+        int n = 0;
+        int shift = 0;
+        int b;
+        do {
+            if (pos[0] >= in.length || shift > 28) {
+                throw new KVException(ERROR_INVALID_FORMAT);
+            }
+            b = in[pos[0]++] & 0xFF;
+            n |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+
+        if (n == 0) {
+            return null;
+        }
+        int length = n - 1;
+        if (length < 0 || length > in.length - pos[0]) {
+            throw new KVException(ERROR_INVALID_FORMAT);
+        }
+        String field = new String(in, pos[0], length, StandardCharsets.UTF_8);
+        pos[0] += length;
+        return field;
+    }
+}
@@ -0,0 +1,886 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * A KVStore kept on disk in the manner of Bitcask. Every put and del is
+ * appended to the active data file of a directory as a record
+ *
+ *   crc     4 bytes, CRC-32 of the rest of the record
+ *   keyLen  4 bytes
+ *   valLen  4 bytes, -1 for a tombstone left by del
+ *   key     UTF-8
+ *   value   UTF-8
+ *
+ * and an in-memory keydir maps each key to the file and offset of its
+ * latest value, so a get is one positional read. Only keys live in memory;
+ * values stay on disk.
+ *
+ * Once the active file reaches maxFileBytes it is closed to writes, a hint
+ * file listing its keys and value offsets is written next to it, and a new
+ * active file is started. When more than half the bytes of the closed files
+ * belong to overwritten or deleted records, a background merge copies the
+ * live records of every closed file into one merged file, with its own
+ * hint, and deletes the inputs. The merged file takes the id of the newest
+ * file it replaces, so on startup it supersedes every data file up to that
+ * id. Startup rebuilds the keydir from hint files where they exist and
+ * otherwise by scanning the data file, cutting off a torn last record.
+ *
+ * Appends are serialized by one lock; gets take no lock at all. Closed
+ * files are memory-mapped the first time they are read, and getBytes()
+ * hands out read-only slices of the mapping, so a value can go from the
+ * page cache to a socket without being copied onto the heap. A mapping
+ * stays valid after its file is merged away and deleted, until the last
+ * slice of it is collected.
+ */
+public class BitcaskKVStore extends KVStore {
+
+    /** Size at which the active data file is closed, if none is given. */
+    public static final long DEFAULT_MAX_FILE_BYTES = 64L * 1024 * 1024;
+
+    /** Fraction of dead bytes in closed files that starts a merge. */
+    public static final double MERGE_DEAD_RATIO = 0.5;
+
+    private static final int HEADER_BYTES = 12;
+    private static final String DATA = ".data";
+    private static final String MERGED = ".merged";
+    private static final String HINT = ".hint";
+    private static final String TMP = ".tmp";
+    // Room for the largest legal key and value in UTF-8, plus framing
+    private static final int MAX_RECORD_BYTES =
+        4 * (KVServer.MAX_KEY_SIZE + KVServer.MAX_VAL_SIZE) + HEADER_BYTES;
+
+    private final File directory;
+    private final long maxFileBytes;
+    private final boolean syncWrites;
+
+    private final ConcurrentHashMap<String, Location> keydir =
+        new ConcurrentHashMap<String, Location>();
+
+    // Appends, roll-overs and changes to segments hold writeLock
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private Segment active;
+    // Closed files, oldest first; a merged file, if any, is first
+    private ArrayList<Segment> segments = new ArrayList<Segment>();
+
+    // Held for a whole merge, and by clear() and close() to wait one out
+    private final ReentrantLock mergeLock = new ReentrantLock();
+    private AtomicLong merges = new AtomicLong();
+
+    /**
+     * Opens or creates a store in a directory, with DEFAULT_MAX_FILE_BYTES
+     * data files and writes left to the operating system to flush.
+     *
+     * @param directory directory holding the data files
+     * @throws KVException with ERROR_COULD_NOT_ACCESS_STORE if the files
+     *         cannot be read or created
+     */
+    public BitcaskKVStore(String directory) throws KVException {
+        this(directory, DEFAULT_MAX_FILE_BYTES, false);
+    }
+
+    /**
+     * Opens or creates a store in a directory.
+     *
+     * @param directory directory holding the data files
+     * @param maxFileBytes size at which the active data file is closed
+     * @param syncWrites true to force every put and del to disk before it
+     *        returns
+     * @throws KVException with ERROR_COULD_NOT_ACCESS_STORE if the files
+     *         cannot be read or created
+     */
+    public BitcaskKVStore(String directory, long maxFileBytes, boolean syncWrites)
+            throws KVException {
+        this.directory = new File(directory);
+        this.maxFileBytes = maxFileBytes;
+        this.syncWrites = syncWrites;
+        try {
+            open();
+        } catch (IOException e) {
+            throw storeError();
+        }
+    }
+
+    /**
+     * Insert key, value pair into the store.
+     *
+     * @param  key String key
+     * @param  value String value
+     * @throws KVException with ERROR_COULD_NOT_ACCESS_STORE if the record
+     *         cannot be written
+     */
+    @Override
+    public void put(String key, String value) throws KVException {
+        byte[] keyBytes = utf8(key);
+        byte[] valueBytes = utf8(value);
+        writeLock.lock();
+        try {
+            Location old = keydir.put(key, append(keyBytes, valueBytes));
+            if (old != null) {
+                old.segment.deadBytes.addAndGet(old.recordBytes);
+            }
+        } catch (IOException e) {
+            throw storeError();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Get the value associated with key in the store.
+     *
+     * @param  key String key
+     * @return String value associated with key
+     * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in
+     *         store, or ERROR_COULD_NOT_ACCESS_STORE if it cannot be read
+     */
+    @Override
+    public String get(String key) throws KVException {
+        return StandardCharsets.UTF_8.decode(getBytes(key)).toString();
+    }
+
+    /**
+     * Get the value associated with key as UTF-8 bytes: a slice of the
+     * mapped file once its file is closed, or a copy read from the active
+     * file.
+     *
+     * @param  key String key
+     * @return read-only buffer of the value's UTF-8 bytes
+     * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in
+     *         store, or ERROR_COULD_NOT_ACCESS_STORE if it cannot be read
+     */
+    @Override
+    public ByteBuffer getBytes(String key) throws KVException {
+        while (true) {
+            Location loc = keydir.get(key);
+            if (loc == null) {
+                throw new KVException(new KVMessage(RESP, ERROR_NO_SUCH_KEY));
+            }
+            try {
+                ByteBuffer mapped = loc.segment.map();
+                if (mapped == null) {
+                    return ByteBuffer.wrap(read(loc)).asReadOnlyBuffer();
+                }
+                ByteBuffer value = mapped.duplicate();
+                value.limit((int) loc.valueOffset + loc.valueLength);
+                value.position((int) loc.valueOffset);
+                return value.slice();
+            } catch (ClosedByInterruptException e) {
+                // This thread closed the channel; mend it for everyone else
+                loc.segment.reopen();
+                throw storeError();
+            } catch (ClosedChannelException e) {
+                // Merged away, or closed by another interrupted reader
+                if (!loc.segment.reopen() && keydir.get(key) == loc) {
+                    throw storeError();
+                }
+            } catch (IOException e) {
+                throw storeError();
+            }
+        }
+    }
+
+    /**
+     * Delete the value associated with key in the store.
+     *
+     * @param  key String key
+     * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in
+     *         store, or ERROR_COULD_NOT_ACCESS_STORE if the tombstone cannot
+     *         be written
+     */
+    @Override
+    public void del(String key) throws KVException {
+        writeLock.lock();
+        try {
+            Location old = keydir.get(key);
+            if (old == null) {
+                throw new KVException(new KVMessage(RESP, ERROR_NO_SUCH_KEY));
+            }
+            Location tombstone = append(utf8(key), null);
+            tombstone.segment.deadBytes.addAndGet(tombstone.recordBytes);
+            keydir.remove(key);
+            old.segment.deadBytes.addAndGet(old.recordBytes);
+        } catch (IOException e) {
+            throw storeError();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Check for a key in the keydir, without reading its value.
+     *
+     * @param  key String key
+     * @return true if the store holds the key
+     */
+    @Override
+    public boolean hasKey(String key) {
+        return keydir.containsKey(key);
+    }
+
+    /**
+     * Copy the live records of every closed data file into one merged file
+     * and delete the originals. Runs on its own once enough records are
+     * dead; called directly, it first waits for any merge under way.
+     *
+     * @throws KVException with ERROR_COULD_NOT_ACCESS_STORE if the merged
+     *         file cannot be written; the store is left as it was
+     */
+    public void merge() throws KVException {
+        mergeLock.lock();
+        try {
+            doMerge();
+        } catch (IOException e) {
+            throw storeError();
+        } finally {
+            mergeLock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of merges completed since the store was opened
+     */
+    public long getNumMerges() {
+        return merges.get();
+    }
+
+    /**
+     * @return the number of data files, counting the active one
+     */
+    public int getNumFiles() {
+        writeLock.lock();
+        try {
+            return segments.size() + 1;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Flush the active file, write its hint so the next open need not scan
+     * it, and close every file. The store may not be used afterwards.
+     *
+     * @throws KVException with ERROR_COULD_NOT_ACCESS_STORE if the files
+     *         cannot be flushed
+     */
+    public void close() throws KVException {
+        mergeLock.lock();
+        writeLock.lock();
+        try {
+            for (Segment segment : segments) {
+                segment.close();
+            }
+            if (active.size == 0) {
+                active.delete();
+            } else {
+                active.channel.force(false);
+                writeHint(active);
+                active.close();
+            }
+        } catch (IOException e) {
+            throw storeError();
+        } finally {
+            writeLock.unlock();
+            mergeLock.unlock();
+        }
+    }
+
+    /**
+     * The pairs in the store, each value read from disk as it is reached.
+     * Keys deleted during iteration are skipped.
+     */
+    @Override
+    protected Iterable<Map.Entry<String, String>> entries() {
+        return new Iterable<Map.Entry<String, String>>() {
+            @Override
+            public Iterator<Map.Entry<String, String>> iterator() {
+                final Iterator<String> keys = keydir.keySet().iterator();
+                return new Iterator<Map.Entry<String, String>>() {
+                    private Map.Entry<String, String> next = advance();
+
+                    private Map.Entry<String, String> advance() {
+                        while (keys.hasNext()) {
+                            String key = keys.next();
+                            try {
+                                return new AbstractMap.SimpleImmutableEntry<String, String>(
+                                    key, get(key));
+                            } catch (KVException e) {
+                                // deleted meanwhile, or unreadable
+                            }
+                        }
+                        return null;
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return next != null;
+                    }
+
+                    @Override
+                    public Map.Entry<String, String> next() {
+                        if (next == null) {
+                            throw new NoSuchElementException();
+                        }
+                        Map.Entry<String, String> entry = next;
+                        next = advance();
+                        return entry;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Delete every data file and start again with an empty one.
+     */
+    @Override
+    protected void clear() {
+        mergeLock.lock();
+        writeLock.lock();
+        try {
+            keydir.clear();
+            for (Segment segment : segments) {
+                segment.delete();
+            }
+            segments = new ArrayList<Segment>();
+            long id = active.id + 1;
+            active.delete();
+            active = Segment.create(file(id, DATA), id, false);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not recreate data file", e);
+        } finally {
+            writeLock.unlock();
+            mergeLock.unlock();
+        }
+    }
+
+    /**
+     * Nothing to presize: the keydir grows as keys are put.
+     */
+    @Override
+    protected void presize(long pairs) {
+    }
+
+    /**
+     * Load the directory: drop files a merge made redundant, rebuild the
+     * keydir oldest file first, and start a new active file.
+     */
+    private void open() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        long mergedId = -1;
+        List<Long> dataIds = new ArrayList<Long>();
+        for (File f : directory.listFiles()) {
+            String name = f.getName();
+            if (name.endsWith(TMP)) {
+                f.delete();
+            } else if (name.endsWith(MERGED)) {
+                mergedId = Math.max(mergedId, idOf(name, MERGED));
+            } else if (name.endsWith(DATA)) {
+                dataIds.add(idOf(name, DATA));
+            }
+        }
+        for (File f : directory.listFiles()) {
+            String name = f.getName();
+            String path = f.getPath();
+            boolean isHint = name.endsWith(HINT);
+            String base = isHint ? name.substring(0, name.length() - HINT.length()) : name;
+            boolean stale = false;
+            if (base.endsWith(MERGED)) {
+                stale = idOf(base, MERGED) < mergedId;
+            } else if (base.endsWith(DATA)) {
+                stale = idOf(base, DATA) <= mergedId;
+            }
+            // a hint whose data file was never renamed into place is stale too
+            if (stale || (isHint && !new File(path.substring(0, path.length() - HINT.length())).exists())) {
+                f.delete();
+            }
+        }
+
+        long maxId = mergedId;
+        if (mergedId >= 0) {
+            segments.add(load(Segment.open(file(mergedId, MERGED), mergedId, true)));
+        }
+        Collections.sort(dataIds);
+        for (long id : dataIds) {
+            if (id > mergedId) {
+                segments.add(load(Segment.open(file(id, DATA), id, false)));
+                maxId = id;
+            }
+        }
+        active = Segment.create(file(maxId + 1, DATA), maxId + 1, false);
+    }
+
+    /**
+     * Add a closed file's records to the keydir, from its hint if it has
+     * one and otherwise by scanning it and writing the hint.
+     */
+    private Segment load(Segment segment) throws IOException {
+        File hint = hintFile(segment);
+        if (hint.exists()) {
+            ByteBuffer hints = ByteBuffer.allocate((int) hint.length());
+            FileChannel in = FileChannel.open(hint.toPath(), StandardOpenOption.READ);
+            try {
+                readFully(in, hints, 0);
+            } finally {
+                in.close();
+            }
+            hints.flip();
+            while (hints.hasRemaining()) {
+                byte[] key = new byte[hints.getInt()];
+                hints.get(key);
+                int valueLength = hints.getInt();
+                long valueOffset = hints.getLong();
+                index(segment, key, valueLength, valueOffset);
+            }
+            segment.sealed = true;
+            return segment;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        long position = 0;
+        while (true) {
+            byte[] record;
+            try {
+                record = readRecord(segment.channel, position, header);
+            } catch (EOFException e) {
+                record = null;
+            }
+            if (record == null) {
+                break;
+            }
+            int keyLength = header.getInt(4);
+            int valueLength = header.getInt(8);
+            byte[] key = new byte[keyLength];
+            System.arraycopy(record, HEADER_BYTES, key, 0, keyLength);
+            long valueOffset = position + HEADER_BYTES + keyLength;
+            index(segment, key, valueLength, valueOffset);
+            segment.hint(key, valueLength, valueOffset);
+            position += record.length;
+        }
+        if (position < segment.channel.size()) {
+            // Torn or corrupt tail
+            segment.channel.truncate(position);
+            segment.channel.force(true);
+        }
+        segment.size = position;
+        writeHint(segment);
+        segment.sealed = true;
+        return segment;
+    }
+
+    /** Apply one record found while loading to the keydir. */
+    private void index(Segment segment, byte[] key, int valueLength, long valueOffset) {
+        String k = new String(key, StandardCharsets.UTF_8);
+        int recordBytes = HEADER_BYTES + key.length + Math.max(0, valueLength);
+        Location old;
+        if (valueLength < 0) {
+            old = keydir.remove(k);
+            segment.deadBytes.addAndGet(recordBytes);
+        } else {
+            old = keydir.put(k, new Location(segment, valueOffset, valueLength, recordBytes));
+        }
+        if (old != null) {
+            old.segment.deadBytes.addAndGet(old.recordBytes);
+        }
+    }
+
+    /**
+     * Read the record at position into a new array, leaving its header in
+     * header.
+     *
+     * @return the whole record, or null if it is malformed or fails its
+     *         checksum
+     * @throws EOFException if the file ends inside the record
+     */
+    private static byte[] readRecord(FileChannel channel, long position, ByteBuffer header)
+            throws IOException {
+        header.clear();
+        readFully(channel, header, position);
+        int keyLength = header.getInt(4);
+        int valueLength = header.getInt(8);
+        if (keyLength < 0 || valueLength < -1
+                || (long) keyLength + Math.max(0, valueLength) > MAX_RECORD_BYTES) {
+            return null;
+        }
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + keyLength + Math.max(0, valueLength));
+        header.flip();
+        record.put(header);
+        readFully(channel, record, position + HEADER_BYTES);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, record.capacity() - 4);
+        if ((int) crc.getValue() != record.getInt(0)) {
+            return null;
+        }
+        return record.array();
+    }
+
+    /**
+     * Append a record to the active file, rolling over to a new one first
+     * if it would grow past maxFileBytes. Caller holds writeLock.
+     *
+     * @param value the value, or null for a tombstone
+     */
+    private Location append(byte[] key, byte[] value) throws IOException {
+        int valueLength = (value == null) ? -1 : value.length;
+        int recordBytes = HEADER_BYTES + key.length + Math.max(0, valueLength);
+        ByteBuffer record = ByteBuffer.allocate(recordBytes);
+        record.putInt(0).putInt(key.length).putInt(valueLength).put(key);
+        if (value != null) {
+            record.put(value);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, recordBytes - 4);
+        record.putInt(0, (int) crc.getValue());
+        record.flip();
+
+        if (active.size > 0 && active.size + recordBytes > maxFileBytes) {
+            rollOver();
+        }
+        long position = active.size;
+        while (record.hasRemaining()) {
+            active.channel.write(record, position + record.position());
+        }
+        if (syncWrites) {
+            active.channel.force(false);
+        }
+        active.size += recordBytes;
+        long valueOffset = position + HEADER_BYTES + key.length;
+        active.hint(key, valueLength, valueOffset);
+        return new Location(active, valueOffset, valueLength, recordBytes);
+    }
+
+    /**
+     * Close the active file to writes and start the next one, merging in
+     * the background if enough of the closed files is dead. Caller holds
+     * writeLock.
+     */
+    private void rollOver() throws IOException {
+        active.channel.force(false);
+        writeHint(active);
+        active.sealed = true;
+        ArrayList<Segment> closed = new ArrayList<Segment>(segments);
+        closed.add(active);
+        segments = closed;
+        active = Segment.create(file(active.id + 1, DATA), active.id + 1, false);
+
+        long total = 0;
+        long dead = 0;
+        for (Segment segment : segments) {
+            total += segment.size;
+            dead += segment.deadBytes.get();
+        }
+        if (dead > total * MERGE_DEAD_RATIO && !mergeLock.isLocked()) {
+            Thread merger = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mergeLock.tryLock()) {
+                        return;
+                    }
+                    try {
+                        doMerge();
+                    } catch (IOException e) {
+                        // Try again at the next roll-over
+                    } finally {
+                        mergeLock.unlock();
+                    }
+                }
+            }, "bitcask-merge");
+            merger.setDaemon(true);
+            merger.start();
+        }
+    }
+
+    /** Caller holds mergeLock. */
+    private void doMerge() throws IOException {
+        List<Segment> inputs;
+        writeLock.lock();
+        try {
+            inputs = segments;
+        } finally {
+            writeLock.unlock();
+        }
+        if (inputs.isEmpty() || (inputs.size() == 1 && inputs.get(0).merged)) {
+            return;
+        }
+
+        long id = inputs.get(inputs.size() - 1).id;
+        File target = file(id, MERGED);
+        File tmp = new File(target.getPath() + TMP);
+        Segment output = Segment.create(tmp, id, true);
+        List<String> keys = new ArrayList<String>();
+        List<Location> from = new ArrayList<Location>();
+        List<Location> to = new ArrayList<Location>();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        try {
+            for (Segment segment : inputs) {
+                long position = 0;
+                while (position < segment.size) {
+                    byte[] record = readRecord(segment.channel, position, header);
+                    if (record == null) {
+                        throw new IOException("Corrupt record in " + segment.file);
+                    }
+                    int keyLength = header.getInt(4);
+                    int valueLength = header.getInt(8);
+                    long valueOffset = position + HEADER_BYTES + keyLength;
+                    position += record.length;
+                    if (valueLength < 0) {
+                        continue;
+                    }
+                    String key = new String(record, HEADER_BYTES, keyLength, StandardCharsets.UTF_8);
+                    Location loc = keydir.get(key);
+                    if (loc == null || loc.segment != segment || loc.valueOffset != valueOffset) {
+                        continue;
+                    }
+                    long outPosition = output.size;
+                    ByteBuffer buffer = ByteBuffer.wrap(record);
+                    while (buffer.hasRemaining()) {
+                        output.channel.write(buffer, outPosition + buffer.position());
+                    }
+                    output.size += record.length;
+                    byte[] keyBytes = utf8(key);
+                    long outOffset = outPosition + HEADER_BYTES + keyLength;
+                    output.hint(keyBytes, valueLength, outOffset);
+                    keys.add(key);
+                    from.add(loc);
+                    to.add(new Location(output, outOffset, valueLength, record.length));
+                }
+            }
+            output.channel.force(true);
+            writeHint(output);
+            // The rename is the commit point: from here the merged file
+            // supersedes the inputs on startup
+            if (!tmp.renameTo(target)) {
+                throw new IOException("Could not rename " + tmp);
+            }
+        } catch (IOException e) {
+            output.delete();
+            hintFile(output).delete();
+            throw e;
+        }
+        output.file = target;
+        output.sealed = true;
+
+        for (int i = 0; i < keys.size(); i++) {
+            if (!keydir.replace(keys.get(i), from.get(i), to.get(i))) {
+                output.deadBytes.addAndGet(to.get(i).recordBytes);
+            }
+        }
+        writeLock.lock();
+        try {
+            ArrayList<Segment> remaining = new ArrayList<Segment>();
+            remaining.add(output);
+            remaining.addAll(segments.subList(inputs.size(), segments.size()));
+            segments = remaining;
+        } finally {
+            writeLock.unlock();
+        }
+        for (Segment segment : inputs) {
+            segment.delete();
+            hintFile(segment).delete();
+        }
+        merges.incrementAndGet();
+    }
+
+    /** Write the hints gathered for a segment, atomically. */
+    private void writeHint(Segment segment) throws IOException {
+        File hint = hintFile(segment);
+        File tmp = new File(hint.getPath() + TMP);
+        FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer hints = ByteBuffer.wrap(segment.hints.toByteArray());
+            while (hints.hasRemaining()) {
+                out.write(hints);
+            }
+            out.force(true);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(hint)) {
+            throw new IOException("Could not rename " + tmp);
+        }
+        segment.hints = null;
+        segment.hintOut = null;
+    }
+
+    private static byte[] read(Location loc) throws IOException {
+        ByteBuffer value = ByteBuffer.allocate(loc.valueLength);
+        readFully(loc.segment.channel, value, loc.valueOffset);
+        return value.array();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        long start = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, start + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    private File file(long id, String suffix) {
+        return new File(directory, String.format("%016d%s", id, suffix));
+    }
+
+    private File hintFile(Segment segment) {
+        return file(segment.id, segment.merged ? MERGED + HINT : DATA + HINT);
+    }
+
+    private static long idOf(String name, String suffix) {
+        return Long.parseLong(name.substring(0, name.length() - suffix.length()));
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static KVException storeError() {
+        return new KVException(new KVMessage(RESP, ERROR_COULD_NOT_ACCESS_STORE));
+    }
+
+    /** Where the latest value of a key is. */
+    private static class Location {
+        final Segment segment;
+        final long valueOffset;
+        final int valueLength;
+        final int recordBytes;
+
+        Location(Segment segment, long valueOffset, int valueLength, int recordBytes) {
+            this.segment = segment;
+            this.valueOffset = valueOffset;
+            this.valueLength = valueLength;
+            this.recordBytes = recordBytes;
+        }
+    }
+
+    /** One data or merged file. */
+    private static class Segment {
+        final long id;
+        final boolean merged;
+        volatile File file;
+        volatile FileChannel channel;
+        // Bytes of valid records; only the active file grows
+        long size;
+        // Bytes of records since overwritten or deleted
+        final AtomicLong deadBytes = new AtomicLong();
+        // Set once the file is deleted, so readers stop reopening it
+        volatile boolean retired;
+        // Set once the file is closed to writes and may be mapped
+        volatile boolean sealed;
+        private volatile MappedByteBuffer mapped;
+        // Hint records gathered until the file is closed to writes
+        ByteArrayOutputStream hints = new ByteArrayOutputStream();
+        DataOutputStream hintOut = new DataOutputStream(hints);
+
+        private Segment(File file, long id, boolean merged, FileChannel channel) {
+            this.file = file;
+            this.id = id;
+            this.merged = merged;
+            this.channel = channel;
+        }
+
+        static Segment create(File file, long id, boolean merged) throws IOException {
+            return new Segment(file, id, merged, FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE));
+        }
+
+        static Segment open(File file, long id, boolean merged) throws IOException {
+            Segment segment = new Segment(file, id, merged, FileChannel.open(file.toPath(),
+                StandardOpenOption.READ, StandardOpenOption.WRITE));
+            segment.size = segment.channel.size();
+            return segment;
+        }
+
+        void hint(byte[] key, int valueLength, long valueOffset) throws IOException {
+            hintOut.writeInt(key.length);
+            hintOut.write(key);
+            hintOut.writeInt(valueLength);
+            hintOut.writeLong(valueOffset);
+        }
+
+        /**
+         * @return the whole file mapped read-only, or null while it is
+         *         still written to or if it is too big for one mapping
+         */
+        ByteBuffer map() throws IOException {
+            MappedByteBuffer m = mapped;
+            if (m != null || !sealed) {
+                return m;
+            }
+            synchronized (this) {
+                if (mapped == null && size <= Integer.MAX_VALUE) {
+                    mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                }
+                return mapped;
+            }
+        }
+
+        /**
+         * Reopen a channel closed under a reader, unless the file is gone.
+         *
+         * @return false if the file is gone
+         */
+        synchronized boolean reopen() throws KVException {
+            if (retired) {
+                return false;
+            }
+            if (!channel.isOpen()) {
+                try {
+                    channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                        StandardOpenOption.WRITE);
+                } catch (IOException e) {
+                    throw storeError();
+                }
+            }
+            return true;
+        }
+
+        synchronized void close() throws IOException {
+            retired = true;
+            channel.close();
+        }
+
+        synchronized void delete() {
+            retired = true;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // deleting anyway
+            }
+            file.delete();
+        }
+    }
+}
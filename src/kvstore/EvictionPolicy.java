@@ -0,0 +1,75 @@
+package kvstore;
+
+import java.util.List;
+
+import kvstore.KVCache.CacheEntry;
+
+/**
+ * Decides which entry of a KVCache set to drop when the set is full. Each
+ * set has its own policy instance, and the set's lock covers every call
+ * into it: touched() may run under the shared lock from
+ * KVCache.getReadLock() alongside other readers, so it may only update
+ * access marks and never relink entries; every other method runs under
+ * the exclusive lock from getLock().
+ */
+public interface EvictionPolicy {
+
+    /** Makes one policy instance per cache set. */
+    public interface Factory {
+
+        /**
+         * @param  capacity the maximum number of entries in the set
+         * @return a new policy for an empty set
+         */
+        EvictionPolicy create(int capacity);
+    }
+
+    /**
+     * Called for every get() and put() on the set, whether or not the key
+     * is cached. KVCache.peek() and fill(), which finish a read-through
+     * whose get() was already counted, do not call it.
+     *
+     * @param key the key that was asked for
+     * @param entry its entry, or null on a miss
+     */
+    void touched(String key, CacheEntry entry);
+
+    /**
+     * Called when a new entry has been added to the set.
+     *
+     * @param entry the new entry
+     */
+    void inserted(CacheEntry entry);
+
+    /**
+     * Called when an entry has left the set.
+     *
+     * @param entry the entry, whose prev/next the policy may clear
+     * @param evicted true if it was the victim of a full set, false if it
+     *        was deleted
+     */
+    void removed(CacheEntry entry, boolean evicted);
+
+    /**
+     * Pick the entry to drop from a full set. The policy may reorder its
+     * entries while looking, but the set calls removed() to take the victim
+     * out, and only if admit() agrees.
+     *
+     * @return an entry of the set
+     */
+    CacheEntry victim();
+
+    /**
+     * Decide whether a new key is worth caching at the cost of the victim.
+     *
+     * @param key the key about to be inserted
+     * @param victim the entry returned by victim()
+     * @return true to replace the victim, false to leave the set alone
+     */
+    boolean admit(String key, CacheEntry victim);
+
+    /**
+     * @return the entries of the set, the one to go first first
+     */
+    List<CacheEntry> entries();
+}
@@ -3,9 +3,12 @@ package kvstore;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -25,15 +28,45 @@ import org.w3c.dom.Element;
  * Each set has a maximum number of elements (MAX_ELEMS_PER_SET).
  * If a set is full and another entry is added, an entry is dropped based on
  * the eviction policy.
+ *
+ * Each set keeps a hash index from key to entry, so lookup takes constant
+ * time however large a set is. The order in which entries are dropped is
+ * up to an EvictionPolicy, one instance per set; by default that is
+ * SecondChancePolicy.
+ *
+ * A cache can instead be limited by bytes, for values whose sizes vary a
+ * lot. Its budget is split evenly over the sets, as each set evicts on its
+ * own under its own lock, and a put evicts from its set until the new entry
+ * fits. Entries above a size threshold can be kept out of the cache
+ * altogether. Sizes are the footprint() estimate of heap use.
+ *
+ * The number of sets and their size can be changed while the cache is in
+ * use with resize(). A new table of sets is built and the old sets are
+ * moved into it one at a time, each under its own lock, so only requests
+ * on the set being moved ever wait. The locks handed out by getLock() and
+ * getReadLock() find the key's set again once acquired, so a caller always
+ * ends up holding the lock of the set its key lives in at that moment.
  */
 public class KVCache implements KeyValueInterface {
 
-	// Constants
-	protected final int NUM_SETS;
-	protected final int MAX_ELEMS_PER_SET;
-	// Variables
-	protected ArrayList<LinkedList<CacheEntry>> set;
-	protected ArrayList<ReentrantLock> lockSet;
+	/** Rough heap bytes of an entry besides its key and value chars. */
+	public static final int ENTRY_OVERHEAD_BYTES = 128;
+
+	// Current table, replaced when a resize finishes. Lookups take the set
+	// count from the list they read, never from NUM_SETS
+	protected volatile int NUM_SETS;
+	protected volatile int MAX_ELEMS_PER_SET;
+	protected volatile ArrayList<CacheSet> set;
+	protected volatile ArrayList<ReentrantReadWriteLock> lockSet;
+	// Non-null while a resize is moving sets into a new table
+	private volatile Rehash rehash;
+	private final EvictionPolicy.Factory policy;
+	// Byte budget of the whole cache, 0 if sets are only limited by entries
+	private volatile long maxBytes;
+	// Entries with a bigger footprint are not cached, 0 for no limit
+	private final int maxEntryBytes;
+	// False if a subclass keeps the entries and the CacheSets stay empty
+	private final boolean heapSets;
 
     /**
      * Creates a second-chance-replacement cache.
@@ -42,22 +75,95 @@ public class KVCache implements KeyValueInterface {
      * @param maxElemsPerSet the size of each set
      */
     public KVCache(int numSets, int maxElemsPerSet) {
+        this(numSets, maxElemsPerSet, SecondChancePolicy.FACTORY);
+    }
+
+    /**
+     * Creates a cache whose sets replace entries according to the given
+     * policy.
+     *
+     * @param numSets the number of sets this cache will have
+     * @param maxElemsPerSet the size of each set
+     * @param policy makes the EvictionPolicy for each set
+     */
+    public KVCache(int numSets, int maxElemsPerSet, EvictionPolicy.Factory policy) {
+        this(numSets, maxElemsPerSet, 0, 0, policy, true);
+    }
+
+    /**
+     * Creates a cache limited by bytes rather than by entries.
+     *
+     * @param numSets the number of sets this cache will have
+     * @param maxBytes heap bytes the whole cache may use; each set gets an
+     *        equal share
+     * @param maxEntryBytes entries with a bigger footprint are not cached,
+     *        0 for no limit
+     * @param policy makes the EvictionPolicy for each set
+     */
+    public KVCache(int numSets, long maxBytes, int maxEntryBytes,
+    		EvictionPolicy.Factory policy) {
+    	this(numSets, Integer.MAX_VALUE, maxBytes, maxEntryBytes, policy, true);
+    }
+
+    /**
+     * Creates a second-chance cache for a subclass that keeps its entries
+     * somewhere else. With heapSets false the CacheSets, old and resized,
+     * have room for no entries, so only the set count and the locks of
+     * this class are put to use.
+     *
+     * @param numSets the number of sets this cache will have
+     * @param maxElemsPerSet the size of each set
+     * @param heapSets false to leave the CacheSets empty
+     */
+    protected KVCache(int numSets, int maxElemsPerSet, boolean heapSets) {
+    	this(numSets, maxElemsPerSet, 0, 0, SecondChancePolicy.FACTORY, heapSets);
+    }
+
+    private KVCache(int numSets, int maxElemsPerSet, long maxBytes,
+    		int maxEntryBytes, EvictionPolicy.Factory policy, boolean heapSets) {
         // implement me
+    	this.policy = policy;
+    	this.maxBytes = maxBytes;
+    	this.maxEntryBytes = maxEntryBytes;
+    	this.heapSets = heapSets;
     	NUM_SETS = numSets;
     	MAX_ELEMS_PER_SET = maxElemsPerSet;
+    	set = newSets(numSets, maxElemsPerSet, maxBytes);
+    	lockSet = newLocks(numSets);
+    }
+
+    private ArrayList<CacheSet> newSets(int numSets, int maxElemsPerSet, long maxBytes) {
+    	long setBytes = (maxBytes > 0) ? Math.max(1, maxBytes / numSets) : 0;
+    	int room = heapSets ? maxElemsPerSet : 0;
+    	int capacity = room;
+    	if (setBytes > 0) {
+    		// only sizes policy bookkeeping, assuming entries of a few hundred bytes
+    		capacity = (int) Math.max(1, Math.min(maxElemsPerSet,
+    			setBytes / (2 * ENTRY_OVERHEAD_BYTES)));
+    	}
+    	ArrayList<CacheSet> sets = new ArrayList<CacheSet>(numSets);
+    	for (int i = 0; i < numSets; i++) {
+    		sets.add(new CacheSet(room, setBytes, policy.create(capacity)));
+    	}
+    	return sets;
+    }
 
-    	set = new ArrayList<LinkedList<CacheEntry>>(numSets);
-    	lockSet = new ArrayList<ReentrantLock>(numSets);
+    private static ArrayList<ReentrantReadWriteLock> newLocks(int numSets) {
+    	ArrayList<ReentrantReadWriteLock> locks =
+    		new ArrayList<ReentrantReadWriteLock>(numSets);
     	for (int i = 0; i < numSets; i++) {
-    		set.add(new LinkedList<CacheEntry>());
-    		lockSet.add(new ReentrantLock());
+    		locks.add(new ReentrantReadWriteLock());
     	}
+    	return locks;
     }
 
     /**
      * Retrieves an entry from the cache.
      * Assumes access to the corresponding set has already been locked by the
-     * caller of this method.
+     * caller of this method, either exclusively or with the shared lock from
+     * getReadLock(). Concurrent readers only update the policy's access
+     * marks, and the next writer sees them once they have released the
+     * shared lock.
      *
      * @param  key the key whose associated value is to be returned.
      * @return the value associated to this key or null if no value is
@@ -66,32 +172,35 @@ public class KVCache implements KeyValueInterface {
     @Override
     public String get(String key) {
         // implement me
-    	int index = getSetId(key);
-    	LinkedList<CacheEntry> ll = set.get(index);
-    	String value = null;
-    	for (int i = 0; i < ll.size(); i++) {
-    		CacheEntry ce = ll.get(i);
-    		if (ce.key.equals(key)) {
-    			value = ce.value;
-    			// Set reference bit to true
-    			ce.isReferenced = true;
-    		}
-    	}
-        return value;
+    	CacheSet cs = setOf(key);
+    	CacheEntry ce = cs.find(key);
+    	cs.policy.touched(key, ce);
+        return (ce == null) ? null : ce.value;
+    }
+
+    /**
+     * Retrieves an entry without counting it as an access, for a caller
+     * looking again for a key whose get() has already been counted. Same
+     * locking as get().
+     *
+     * @param  key the key whose associated value is to be returned.
+     * @return the value associated to this key or null if no value is
+     *         associated with this key in the cache
+     */
+    public String peek(String key) {
+    	CacheEntry ce = setOf(key).find(key);
+    	return (ce == null) ? null : ce.value;
     }
 
     /**
      * Adds an entry to this cache.
      * If an entry with the specified key already exists in the cache, it is
-     * replaced by the new entry. When an entry is replaced, its reference bit
-     * will be set to True. If the set is full, an entry is removed from
-     * the cache based on the eviction policy. If the set isn't full, the entry
-     * will be inserted behind all existing entries. For this policy, we suggest
-     * using a LinkedList over an array to keep track of entries in a set since
-     * deleting an entry in an array will leave a gap in the array, likely not
-     * at the end. More details and explanations in the spec. Assumes access to
-     * the corresponding set has already been locked by the caller of this
-     * method.
+     * replaced by the new entry, which counts as an access to it. If the set
+     * is full, the eviction policy picks entries to remove until the new one
+     * fits, or may decline to cache the new key at all. An entry too big to
+     * cache replaces nothing and drops any older value for the key. More
+     * details and explanations in the spec. Assumes access to the
+     * corresponding set has already been locked by the caller of this method.
      *
      * @param key the key with which the specified value is to be associated
      * @param value a value to be associated with the specified key
@@ -99,31 +208,57 @@ public class KVCache implements KeyValueInterface {
     @Override
     public void put(String key, String value) {
         // implement me
-    	int index = getSetId(key);
-    	LinkedList<CacheEntry> ll = set.get(index);
+    	insert(key, value, true);
+    }
+
+    /**
+     * Adds a value just read from the store after get() missed on its key.
+     * Works as put(), but is not counted as another access to the key, so
+     * a policy that counts accesses sees one for the whole read-through.
+     * Assumes access to the corresponding set has already been locked by
+     * the caller of this method.
+     *
+     * @param key the key with which the specified value is to be associated
+     * @param value a value to be associated with the specified key
+     */
+    public void fill(String key, String value) {
+    	insert(key, value, false);
+    }
+
+    private void insert(String key, String value, boolean access) {
+    	CacheSet cs = setOf(key);
 
     	// Check if key already exists
-    	for (int i = 0; i < ll.size(); i++) {
-    		CacheEntry ce = ll.get(i);
-    		if (ce.key.equals(key)) {
-    			ce.value = value;
-    			ce.isReferenced = true;
-    			return;
+    	CacheEntry ce = cs.find(key);
+    	if (access) {
+    		cs.policy.touched(key, ce);
+    	}
+    	long bytes = footprint(key, value);
+    	if ((maxEntryBytes > 0 && bytes > maxEntryBytes) || !cs.couldHold(bytes)) {
+    		if (ce != null) {
+    			cs.remove(ce, false);
     		}
-    	}    	
-    	
-    	// copy comments for design doc
-    	while (ll.size() == MAX_ELEMS_PER_SET) {
-            CacheEntry ce = ll.pop();
-            if (ce.isReferenced == true) {
-            	ce.isReferenced = false;
-            	ll.add(ce);
-            } 
+    		return;
+    	}
+    	if (ce != null) {
+    		cs.setValue(ce, value);
+    		while (cs.overBudget()) {
+    			cs.remove(cs.policy.victim(), true);
+    		}
+    		return;
+    	}
+
+    	// admission is settled before anything is evicted, so a key
+    	// turned away leaves the set as it was
+    	if (!cs.hasRoomFor(bytes) && !cs.policy.admit(key, cs.policy.victim())) {
+    		return;
+    	}
+    	while (!cs.hasRoomFor(bytes)) {
+    		cs.remove(cs.policy.victim(), true);
     	}
 
     	// Add to set
-    	CacheEntry ce = new CacheEntry(key, value, false);
-        ll.add(ce);
+        cs.append(new CacheEntry(key, value, false));
     }
 
     /**
@@ -136,40 +271,242 @@ public class KVCache implements KeyValueInterface {
     @Override
     public void del(String key) {
         // implement me
-    	int index = getSetId(key);
-    	LinkedList<CacheEntry> ll = set.get(index);
-    	for (int i = 0; i < ll.size(); i++) {
-    		CacheEntry ce = ll.get(i);
-    		if (ce.key.equals(key)) {
-    			ll.remove(i);
-    			return;
-    		}
+    	CacheSet cs = setOf(key);
+    	CacheEntry ce = cs.find(key);
+    	if (ce != null) {
+    		cs.remove(ce, false);
     	}
     }
 
     /**
      * Get a lock for the set corresponding to a given key.
      * The lock should be used by the caller of the get/put/del methods 
-     * so that different sets can be changed in parallel.
+     * so that different sets can be changed in parallel. It is exclusive:
+     * it shuts out other writers and every reader of the set.
      *
      * @param  key key to determine the lock to return
      * @return lock for the set that contains the key
      */
     public Lock getLock(String key) {
         // implement me
-    	int index = getSetId(key);
-    	return lockSet.get(index);
+    	return new SetLock(key, true);
+    }
+
+    /**
+     * Get the shared lock for the set corresponding to a given key. Any
+     * number of threads may hold it at once to call get(), so reads of
+     * the same set run in parallel; put() and del() need getLock().
+     *
+     * @param  key key to determine the lock to return
+     * @return shared lock for the set that contains the key
+     */
+    public Lock getReadLock(String key) {
+    	return new SetLock(key, false);
     }
 
     /**
-     * Get the id of the set for a specific key.
+     * Get the id of the set for a specific key. While a resize is under
+     * way this is the id in the new table once the key's old set has been
+     * moved.
      *
      * @param  key key of interest
      * @return set of the key
      */
-    private int getSetId(String key) {
+    public int getSetId(String key) {
         // implement me
-        return Math.abs(key.hashCode() % NUM_SETS);
+    	Rehash r = rehash;
+    	if (r != null) {
+    		int old = setId(key, r.oldNumSets);
+    		return (old < r.moved) ? setId(key, r.numSets) : old;
+    	}
+        return setId(key, set.size());
+    }
+
+    /**
+     * @param  key key of interest
+     * @param  numSets number of sets in a table
+     * @return set of the key in a table of numSets sets
+     */
+    protected static int setId(String key, int numSets) {
+    	return Math.abs(key.hashCode() % numSets);
+    }
+
+    /** The set a key lives in right now. */
+    private CacheSet setOf(String key) {
+    	Rehash r = rehash;
+    	if (r != null) {
+    		int old = setId(key, r.oldNumSets);
+    		return (old < r.moved) ? r.sets.get(setId(key, r.numSets)) : r.oldSets.get(old);
+    	}
+    	// one read of the list, so the id matches it even mid-resize
+    	ArrayList<CacheSet> sets = set;
+    	return sets.get(setId(key, sets.size()));
+    }
+
+    /** The lock of the set a key lives in right now. */
+    private ReentrantReadWriteLock lockOf(String key) {
+    	Rehash r = rehash;
+    	if (r != null) {
+    		int old = setId(key, r.oldNumSets);
+    		return (old < r.moved) ? r.locks.get(setId(key, r.numSets)) : r.oldLocks.get(old);
+    	}
+    	ArrayList<ReentrantReadWriteLock> locks = lockSet;
+    	return locks.get(setId(key, locks.size()));
+    }
+
+    /**
+     * Change the number of sets and the size of each set without emptying
+     * the cache. The old sets are moved into a new table one at a time
+     * while holding the old set's exclusive lock; requests for keys in
+     * other sets carry on meanwhile. Entries are moved in the order the old
+     * set would have evicted them, so if a new set is smaller the entries
+     * its policy values least are the ones dropped. Returns once every set
+     * has been moved. Resizes run one at a time.
+     *
+     * @param numSets the number of sets the cache will have
+     * @param maxElemsPerSet the size of each set
+     * @throws IllegalArgumentException if either is less than one
+     */
+    public synchronized void resize(int numSets, int maxElemsPerSet) {
+    	rebuild(numSets, maxElemsPerSet, maxBytes);
+    }
+
+    private void rebuild(int numSets, int maxElemsPerSet, long maxBytes) {
+    	if (numSets < 1 || maxElemsPerSet < 1) {
+    		throw new IllegalArgumentException("Cache needs at least one entry per set");
+    	}
+    	if (numSets == NUM_SETS && maxElemsPerSet == MAX_ELEMS_PER_SET
+    			&& maxBytes == this.maxBytes) {
+    		return;
+    	}
+    	Rehash r = new Rehash(numSets, maxElemsPerSet, maxBytes);
+    	rehashStarted(numSets, maxElemsPerSet);
+    	rehash = r;
+    	for (int i = 0; i < r.oldNumSets; i++) {
+    		Lock oldLock = r.oldLocks.get(i).writeLock();
+    		oldLock.lock();
+    		try {
+    			moveSet(i, numSets, r.locks);
+    			r.moved = i + 1;
+    		} finally {
+    			oldLock.unlock();
+    		}
+    	}
+    	NUM_SETS = numSets;
+    	MAX_ELEMS_PER_SET = maxElemsPerSet;
+    	this.maxBytes = maxBytes;
+    	set = r.sets;
+    	lockSet = r.locks;
+    	rehashFinished();
+    	rehash = null;
+    }
+
+    /**
+     * Called by resize() before any set is moved, once the new table of
+     * CacheSets exists. A subclass that keeps its entries somewhere else
+     * makes its own new, empty table here.
+     *
+     * @param numSets the number of sets the cache will have
+     * @param maxElemsPerSet the size of each set
+     */
+    protected void rehashStarted(int numSets, int maxElemsPerSet) {
+    }
+
+    /**
+     * Move the entries of one old set into the new table of a resize, in
+     * the order the old set would evict them. Called with the old set's
+     * exclusive lock held; takes the exclusive lock of each new set before
+     * writing to it, as requests for keys already moved go on meanwhile.
+     *
+     * @param oldSetId set to move
+     * @param numSets the number of sets in the new table
+     * @param newLocks locks of the new sets
+     */
+    protected void moveSet(int oldSetId, int numSets,
+    		List<ReentrantReadWriteLock> newLocks) {
+    	Rehash r = rehash;
+    	for (CacheEntry ce : r.oldSets.get(oldSetId).policy.entries()) {
+    		int id = setId(ce.key, numSets);
+    		Lock newLock = newLocks.get(id).writeLock();
+    		newLock.lock();
+    		try {
+    			r.sets.get(id).move(ce);
+    		} finally {
+    			newLock.unlock();
+    		}
+    	}
+    }
+
+    /**
+     * Called by resize() once every set has been moved, just before the
+     * new table takes over. A subclass with its own table switches to it.
+     */
+    protected void rehashFinished() {
+    }
+
+    /**
+     * Tell which table a key is in while a resize is under way. Only
+     * stable while holding the key's lock from getLock() or getReadLock().
+     *
+     * @param  key key of interest
+     * @return true if the key's old set has been moved to the new table,
+     *         false if it has not or no resize is under way
+     */
+    protected boolean isMoved(String key) {
+    	Rehash r = rehash;
+    	return r != null && setId(key, r.oldNumSets) < r.moved;
+    }
+
+    /**
+     * Resize each set so the cache holds about budgetBytes of entries. A
+     * byte-limited cache just takes the new budget; otherwise the number of
+     * entries per set is worked out from the size of the entries cached
+     * now. The number of sets stays the same.
+     *
+     * @param budgetBytes heap bytes the cache may use
+     */
+    public synchronized void resizeToBudget(long budgetBytes) {
+    	if (maxBytes > 0) {
+    		rebuild(NUM_SETS, MAX_ELEMS_PER_SET, Math.max(1, budgetBytes));
+    		return;
+    	}
+    	long count = 0;
+    	long bytes = 0;
+    	for (int i = 0; i < NUM_SETS; i++) {
+    		Lock lock = lockSet.get(i).readLock();
+    		lock.lock();
+    		try {
+    			for (CacheEntry ce : entries(i)) {
+    				count++;
+    				bytes += ce.footprint();
+    			}
+    		} finally {
+    			lock.unlock();
+    		}
+    	}
+    	long perEntry = (count == 0) ? ENTRY_OVERHEAD_BYTES : Math.max(1, bytes / count);
+    	long perSet = budgetBytes / perEntry / NUM_SETS;
+    	resize(NUM_SETS, (int) Math.max(1, Math.min(Integer.MAX_VALUE, perSet)));
+    }
+
+    /**
+     * Estimated heap bytes of all entries cached. Only exact when no other
+     * thread is changing the cache.
+     *
+     * @return bytes used by entries
+     */
+    public long getNumBytes() {
+    	long bytes = 0;
+    	for (CacheSet cs : set) {
+    		bytes += cs.bytes;
+    	}
+    	return bytes;
+    }
+
+    /** Rough heap bytes used by an entry with this key and value. */
+    static long footprint(String key, String value) {
+    	int chars = key.length() + ((value == null) ? 0 : value.length());
+    	return 2L * chars + ENTRY_OVERHEAD_BYTES;
     }
 
     /**
@@ -189,10 +526,7 @@ public class KVCache implements KeyValueInterface {
             for (int i = 0; i < NUM_SETS; i++) {
                     Element st =  document.createElement("Set");
                     st.setAttribute("Id", String.valueOf(i));
-                    LinkedList<CacheEntry> ll = set.get(i);
-
-                    for (int j = 0; j < ll.size(); j++) {
-                            CacheEntry ce = ll.get(j);
+                    for (CacheEntry ce : entries(i)) {
 
                             Element cacheEntry = document.createElement("CacheEntry");
                             cacheEntry.setAttribute("isReferenced", ce.isReferenced.toString());
@@ -228,6 +562,18 @@ public class KVCache implements KeyValueInterface {
     	}
     }
 
+    /**
+     * List the entries of a set in the order its eviction policy keeps
+     * them, which for second chance is clock order starting at the hand.
+     * Assumes access to the set has already been locked by the caller.
+     *
+     * @param  setId set of interest
+     * @return entries of the set
+     */
+    protected List<CacheEntry> entries(int setId) {
+    	return set.get(setId).policy.entries();
+    }
+
     @Override
     public String toString() {
         return this.toXML();
@@ -242,6 +588,11 @@ public class KVCache implements KeyValueInterface {
     	public String key;
     	public String value;
     	public Boolean isReferenced;
+    	// Bookkeeping for the set's EvictionPolicy
+    	CacheEntry prev;
+    	CacheEntry next;
+    	int frequency;
+    	int queue;
 
     	public CacheEntry(String key, String value, Boolean isReferenced) {
     		this.key = key;
@@ -252,7 +603,271 @@ public class KVCache implements KeyValueInterface {
     	public boolean equals(CacheEntry ce) {
     		return key.equals(ce.key) && value.equals(ce.value) && isReferenced.equals(ce.isReferenced);
     	}
+
+    	/** Rough heap bytes used by this entry. */
+    	long footprint() {
+    		return KVCache.footprint(key, value);
+    	}
     } 
-    
- 
+
+    /**
+     * The entries of one set: a HashMap finds an entry by key, and the
+     * set's policy keeps them in whatever order it evicts in.
+     */
+    class CacheSet {
+
+    	private HashMap<String, CacheEntry> index;
+    	EvictionPolicy policy;
+    	final int capacity;
+    	// Byte budget, 0 for none, and footprint of the entries held
+    	final long maxBytes;
+    	long bytes;
+
+    	CacheSet(int maxElems, long maxBytes, EvictionPolicy policy) {
+    		index = new HashMap<String, CacheEntry>(Math.min(maxElems, 1024) * 4 / 3 + 1);
+    		this.policy = policy;
+    		capacity = maxElems;
+    		this.maxBytes = maxBytes;
+    	}
+
+    	public int size() {
+    		return index.size();
+    	}
+
+    	/** @return the entry for key, or null if it is not in this set */
+    	CacheEntry find(String key) {
+    		return index.get(key);
+    	}
+
+    	/**
+    	 * The i-th entry in policy order. Linear, so only for inspecting a
+    	 * set, never on the request path.
+    	 */
+    	public CacheEntry get(int i) {
+    		return policy.entries().get(i);
+    	}
+
+    	/** @return whether an entry this big fits in an empty set */
+    	boolean couldHold(long entryBytes) {
+    		return maxBytes == 0 || entryBytes <= maxBytes;
+    	}
+
+    	boolean hasRoomFor(long entryBytes) {
+    		return size() < capacity && (maxBytes == 0 || bytes + entryBytes <= maxBytes);
+    	}
+
+    	boolean overBudget() {
+    		return maxBytes > 0 && bytes > maxBytes;
+    	}
+
+    	void setValue(CacheEntry ce, String value) {
+    		bytes -= ce.footprint();
+    		ce.value = value;
+    		bytes += ce.footprint();
+    	}
+
+    	void append(CacheEntry ce) {
+    		index.put(ce.key, ce);
+    		bytes += ce.footprint();
+    		policy.inserted(ce);
+    	}
+
+    	void remove(CacheEntry ce, boolean evicted) {
+    		index.remove(ce.key);
+    		bytes -= ce.footprint();
+    		policy.removed(ce, evicted);
+    	}
+
+    	/**
+    	 * Take over an entry from a set being resized away, evicting to make
+    	 * room if needed. The entry keeps its reference bit.
+    	 */
+    	void move(CacheEntry ce) {
+    		long entryBytes = ce.footprint();
+    		if (!couldHold(entryBytes)) {
+    			return;
+    		}
+    		while (!hasRoomFor(entryBytes)) {
+    			remove(policy.victim(), true);
+    		}
+    		ce.prev = null;
+    		ce.next = null;
+    		append(ce);
+    	}
+    }
+
+    /** The old and new tables of a resize in progress. */
+    private class Rehash {
+
+    	final int oldNumSets;
+    	final ArrayList<CacheSet> oldSets;
+    	final ArrayList<ReentrantReadWriteLock> oldLocks;
+    	final int numSets;
+    	final ArrayList<CacheSet> sets;
+    	final ArrayList<ReentrantReadWriteLock> locks;
+    	// Old sets below this index live in the new table
+    	volatile int moved;
+
+    	Rehash(int numSets, int maxElemsPerSet, long maxBytes) {
+    		oldNumSets = NUM_SETS;
+    		oldSets = set;
+    		oldLocks = lockSet;
+    		this.numSets = numSets;
+    		sets = newSets(numSets, maxElemsPerSet, maxBytes);
+    		locks = newLocks(numSets);
+    	}
+    }
+
+    /**
+     * A key's set lock that survives a resize: after acquiring the lock of
+     * the set the key was in, it checks the key has not been moved to
+     * another set meanwhile, and if it has it lets go and tries again.
+     */
+    private class SetLock implements Lock {
+
+    	private final String key;
+    	private final boolean exclusive;
+    	private Lock held;
+
+    	SetLock(String key, boolean exclusive) {
+    		this.key = key;
+    		this.exclusive = exclusive;
+    	}
+
+    	private Lock current() {
+    		ReentrantReadWriteLock rw = lockOf(key);
+    		return exclusive ? rw.writeLock() : rw.readLock();
+    	}
+
+    	/** Keep l if the key still lives under it, otherwise release it. */
+    	private boolean settle(Lock l) {
+    		if (l == current()) {
+    			held = l;
+    			return true;
+    		}
+    		l.unlock();
+    		return false;
+    	}
+
+    	@Override
+    	public void lock() {
+    		while (true) {
+    			Lock l = current();
+    			l.lock();
+    			if (settle(l)) {
+    				return;
+    			}
+    		}
+    	}
+
+    	@Override
+    	public void lockInterruptibly() throws InterruptedException {
+    		while (true) {
+    			Lock l = current();
+    			l.lockInterruptibly();
+    			if (settle(l)) {
+    				return;
+    			}
+    		}
+    	}
+
+    	@Override
+    	public boolean tryLock() {
+    		while (true) {
+    			Lock l = current();
+    			if (!l.tryLock()) {
+    				return false;
+    			}
+    			if (settle(l)) {
+    				return true;
+    			}
+    		}
+    	}
+
+    	@Override
+    	public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+    		long deadline = System.nanoTime() + unit.toNanos(time);
+    		while (true) {
+    			Lock l = current();
+    			if (!l.tryLock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+    				return false;
+    			}
+    			if (settle(l)) {
+    				return true;
+    			}
+    		}
+    	}
+
+    	@Override
+    	public void unlock() {
+    		held.unlock();
+    	}
+
+    	@Override
+    	public Condition newCondition() {
+    		throw new UnsupportedOperationException();
+    	}
+    }
+
+    /**
+     * An intrusive FIFO of entries threaded through CacheEntry.prev/next,
+     * for policies to build their queues from. Every operation is O(1).
+     */
+    static class EntryQueue {
+
+    	// Oldest entry; entries form a ring so oldest.prev is the newest
+    	private CacheEntry head;
+    	private int size;
+
+    	int size() {
+    		return size;
+    	}
+
+    	/** @return the oldest entry, or null if empty */
+    	CacheEntry oldest() {
+    		return head;
+    	}
+
+    	void add(CacheEntry ce) {
+    		if (head == null) {
+    			ce.prev = ce;
+    			ce.next = ce;
+    			head = ce;
+    		} else {
+    			ce.prev = head.prev;
+    			ce.next = head;
+    			head.prev.next = ce;
+    			head.prev = ce;
+    		}
+    		size++;
+    	}
+
+    	void remove(CacheEntry ce) {
+    		if (ce.next == ce) {
+    			head = null;
+    		} else {
+    			ce.prev.next = ce.next;
+    			ce.next.prev = ce.prev;
+    			if (head == ce) {
+    				head = ce.next;
+    			}
+    		}
+    		ce.prev = null;
+    		ce.next = null;
+    		size--;
+    	}
+
+    	/** Make the oldest entry the newest, like a clock hand moving on. */
+    	void rotate() {
+    		head = head.next;
+    	}
+
+    	/** Append the entries from oldest to newest to a list. */
+    	void addTo(List<CacheEntry> entries) {
+    		CacheEntry ce = head;
+    		for (int i = 0; i < size; i++, ce = ce.next) {
+    			entries.add(ce);
+    		}
+    	}
+    }
 }
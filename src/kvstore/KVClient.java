@@ -3,8 +3,12 @@ package kvstore;
 import static kvstore.KVConstants.*;
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Client API used to send requests to key-value server.
@@ -14,17 +18,36 @@ public class KVClient implements KeyValueInterface {
     private String server;
     private int port;
     private int socketTimeout;
+    private boolean keepAlive;
+    private KVMessageCodec codec;
+    private KVConnection connection;
 
     /**
      * Constructs a KVClient connected to a server.
      *
      * @param server is the DNS reference to the server
      * @param port is the port on which the server is listening
+     * @param socketTimeout read timeout in milliseconds, 0 for none
+     * @param keepAlive if true, reuse one framed KVConnection for all
+     *        requests instead of opening a socket per request. The server
+     *        must understand KVConnection (see ServerClientHandler).
+     * @param codec wire format to request for the keep-alive connection
      */
-    public KVClient(String server, int port, int socketTimeout) {
+    public KVClient(String server, int port, int socketTimeout,
+            boolean keepAlive, KVMessageCodec codec) {
         this.server = server;
         this.port = port;
         this.socketTimeout = socketTimeout;
+        this.keepAlive = keepAlive;
+        this.codec = codec;
+    }
+
+    public KVClient(String server, int port, int socketTimeout, boolean keepAlive) {
+        this(server, port, socketTimeout, keepAlive, new XMLCodec());
+    }
+
+    public KVClient(String server, int port, int socketTimeout) {
+        this(server, port, socketTimeout, false);
     }
 
     public KVClient(String server, int port) {
@@ -32,22 +55,32 @@ public class KVClient implements KeyValueInterface {
     }
 
     /**
-     * Creates a socket connected to the server to make a request.
+     * Creates a socket connected to the server to make a request. The
+     * connect is bounded by the socket timeout as well.
      *
      * @return Socket connected to server
      * @throws KVException if unable to create or connect socket
      */
     private Socket connectHost() throws KVException {
         // implement me
+        Socket sock = new Socket();
+        String error;
         try {
-            return new Socket(server, port);
+            // a null server means the loopback address, as with new Socket()
+            sock.connect(new InetSocketAddress(InetAddress.getByName(server), port),
+                socketTimeout);
+            return sock;
         } catch(UnknownHostException e) {
-            throw new KVException(ERROR_COULD_NOT_CONNECT);
+            error = ERROR_COULD_NOT_CONNECT;
         } catch(IOException f) {
-            throw new KVException(ERROR_COULD_NOT_CREATE_SOCKET);
+            error = ERROR_COULD_NOT_CREATE_SOCKET;
         } catch (IllegalArgumentException g) {
-            throw new KVException(ERROR_COULD_NOT_CONNECT);
+            error = ERROR_COULD_NOT_CONNECT;
         }
+        try {
+            sock.close();
+        } catch(IOException e) { }
+        throw new KVException(error);
     }
 
     /**
@@ -100,25 +133,16 @@ public class KVClient implements KeyValueInterface {
         if (key == null || key.equals("")) {
             throw new KVException(ERROR_INVALID_KEY);
         }
-        Socket sock = connectHost();
-        try {
-            KVMessage sendKVMsg = new KVMessage(GET_REQ);
-            sendKVMsg.setKey(key);
-            sendKVMsg.sendMessage(sock);
-            KVMessage receiveKVMsg = new KVMessage(sock);
-            if (receiveKVMsg.getMessage() == null) {
-            	if (receiveKVMsg.getKey() == null
-            			|| receiveKVMsg.getValue()==null) {
-            		throw new KVException(ERROR_INVALID_FORMAT);
-            	}else{
-            		return receiveKVMsg.getValue();
-            	}
-            }else{
-        	throw new KVException (receiveKVMsg.getMessage());
+        KVMessage receiveKVMsg = sendMessage(GET_REQ, key);
+
+        if (receiveKVMsg.getMessage() == null) {
+            if (receiveKVMsg.getKey() == null
+                    || receiveKVMsg.getValue() == null) {
+                throw new KVException(ERROR_INVALID_FORMAT);
             }
-        } finally {
-            closeHost(sock);
+            return receiveKVMsg.getValue();
         }
+        throw new KVException (receiveKVMsg.getMessage());
     }
 
     /**
@@ -153,18 +177,25 @@ public class KVClient implements KeyValueInterface {
      */
     public KVMessage sendMessage(String msgType, String k1, String k2) 
             throws KVException {
+        KVMessage sendKVMsg = new KVMessage(msgType);
+
+        switch(msgType) {
+            case PUT_REQ:
+                sendKVMsg.setValue(k2);
+            case GET_REQ:
+            case DEL_REQ:
+                sendKVMsg.setKey(k1);
+        }
+        if (keepAlive) {
+            List<KVMessage> requests = new ArrayList<KVMessage>(1);
+            requests.add(sendKVMsg);
+            return sendPipelined(requests).get(0);
+        }
+
         Socket sock = connectHost();
         KVMessage responseMessage = null;
         
         try {
-            KVMessage sendKVMsg = new KVMessage(msgType);
-            
-            switch(msgType) {
-                case PUT_REQ:
-                    sendKVMsg.setValue(k2);
-                case DEL_REQ:
-                    sendKVMsg.setKey(k1);
-            }
             sendKVMsg.sendMessage(sock);
             responseMessage = new KVMessage(sock, socketTimeout);
         } finally {
@@ -172,6 +203,77 @@ public class KVClient implements KeyValueInterface {
         } 
         return responseMessage;
     }
+
+    /**
+     * Send several requests and collect their responses, in order. With
+     * keep-alive enabled all requests are written to the shared connection
+     * before any response is read, so they are in flight together and cost
+     * a single round trip. Otherwise they are sent one at a time.
+     *
+     * If a reused connection turns out to have been closed by the server
+     * (for example after its idle timeout) before any response arrived, it
+     * is reopened and the batch is sent once more.
+     *
+     * @param requests fully formed request messages
+     * @return the server's responses, one per request
+     * @throws KVException if any request could not be sent or answered
+     */
+    public List<KVMessage> sendPipelined(List<KVMessage> requests)
+            throws KVException {
+        List<KVMessage> responses = new ArrayList<KVMessage>(requests.size());
+        if (!keepAlive) {
+            for (KVMessage request : requests) {
+                responses.add(sendMessage(request.getMsgType(),
+                    request.getKey(), request.getValue()));
+            }
+            return responses;
+        }
+
+        synchronized (this) {
+            boolean reused = (connection != null);
+            if (connection == null) {
+                connection = KVConnection.open(server, port, socketTimeout, codec);
+            }
+            try {
+                for (KVMessage request : requests) {
+                    connection.write(request);
+                }
+                connection.flush();
+                KVMessage response = connection.receive();
+                if (response == null && reused) {
+                    close();
+                    return sendPipelined(requests);
+                }
+                while (response != null) {
+                    responses.add(response);
+                    if (responses.size() == requests.size()) {
+                        return responses;
+                    }
+                    response = connection.receive();
+                }
+                throw new KVException(ERROR_COULD_NOT_RECEIVE_DATA);
+            } catch (KVException e) {
+                close();
+                if (reused && responses.isEmpty() && e.getKVMessage()
+                        .getMessage().equals(ERROR_COULD_NOT_SEND_DATA)) {
+                    return sendPipelined(requests);
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Close the keep-alive connection, if one is open. The next request
+     * opens a new one. Does nothing for a client without keep-alive.
+     */
+    public synchronized void close() {
+        if (connection != null) {
+            connection.close();
+            connection = null;
+        }
+    }
+
     /* No support for default arguments = TEH FAIL */
     public KVMessage sendMessage(String msgType) throws KVException {
         return sendMessage(msgType, null, null);
@@ -0,0 +1,332 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+
+/**
+ * A persistent, length-framed connection that carries many KVMessages in
+ * both directions. Unlike KVMessage.sendMessage(), which signals the end of
+ * a message by shutting down the output half of the socket, every message
+ * here is sent as a 4-byte big-endian length followed by that many bytes of
+ * serialized message, so the socket stays usable after each exchange.
+ *
+ * The side that opens the connection writes KEEP_ALIVE_MAGIC followed by the
+ * id of the KVMessageCodec it would like to use. The server answers with a
+ * single byte naming the codec it picked: the requested one if it knows it,
+ * XMLCodec otherwise. Every frame after that is encoded with that codec.
+ * A server can peek at the first byte of a new socket to tell this protocol
+ * apart from a legacy one-shot XML request, which always starts with '<' or
+ * whitespace.
+ *
+ * Requests may be pipelined: a client can send several frames before reading
+ * any response. Responses are always returned in request order.
+ */
+public class KVConnection {
+
+    /** First byte written on a keep-alive connection. */
+    public static final int KEEP_ALIVE_MAGIC = 0x1B;
+
+    /** Upper bound on a single frame, to reject garbage lengths. */
+    public static final int MAX_FRAME_SIZE = 8 * 1024 * 1024;
+
+    private Socket sock;
+    private DataInputStream in;
+    private DataOutputStream out;
+    private KVMessageCodec codec = new XMLCodec();
+
+    /**
+     * Wrap an already connected socket whose preamble (if any) has already
+     * been consumed.
+     *
+     * @param sock connected socket
+     * @param in stream to read frames from, may already hold buffered bytes
+     * @throws KVException ERROR_COULD_NOT_CREATE_SOCKET if the socket
+     *         streams cannot be opened
+     */
+    KVConnection(Socket sock, InputStream in) throws KVException {
+        this.sock = sock;
+        try {
+            this.in = new DataInputStream(in);
+            this.out = new DataOutputStream(
+                new BufferedOutputStream(sock.getOutputStream()));
+        } catch (IOException e) {
+            throw new KVException(ERROR_COULD_NOT_CREATE_SOCKET);
+        }
+    }
+
+    /**
+     * Open a keep-alive connection to a server using XMLCodec.
+     *
+     * @param server hostname of the server
+     * @param port port the server is listening on
+     * @param timeout read timeout in milliseconds, 0 for none
+     * @return connection ready to send frames
+     * @throws KVException see open(String, int, int, KVMessageCodec)
+     */
+    public static KVConnection open(String server, int port, int timeout)
+            throws KVException {
+        return open(server, port, timeout, new XMLCodec());
+    }
+
+    /**
+     * Open a keep-alive connection to a server, send the preamble and wait
+     * for the server to settle on a codec.
+     *
+     * @param server hostname of the server
+     * @param port port the server is listening on
+     * @param timeout read timeout in milliseconds, 0 for none
+     * @param codec codec to request; the server may fall back to XMLCodec
+     * @return connection ready to send frames
+     * @throws KVException ERROR_COULD_NOT_CONNECT,
+     *         ERROR_COULD_NOT_CREATE_SOCKET or ERROR_COULD_NOT_RECEIVE_DATA
+     */
+    public static KVConnection open(String server, int port, int timeout,
+            KVMessageCodec codec) throws KVException {
+        Socket sock = new Socket();
+        try {
+            sock.connect(new InetSocketAddress(server, port));
+            sock.setTcpNoDelay(true);
+            sock.setSoTimeout(timeout);
+        } catch (UnknownHostException e) {
+            throw new KVException(ERROR_COULD_NOT_CONNECT);
+        } catch (IllegalArgumentException e) {
+            throw new KVException(ERROR_COULD_NOT_CONNECT);
+        } catch (IOException e) {
+            throw new KVException(ERROR_COULD_NOT_CREATE_SOCKET);
+        }
+        KVConnection conn;
+        try {
+            conn = new KVConnection(sock,
+                new BufferedInputStream(sock.getInputStream()));
+            conn.out.write(KEEP_ALIVE_MAGIC);
+            conn.out.write(codec.getId());
+            conn.out.flush();
+        } catch (IOException e) {
+            closeQuietly(sock);
+            throw new KVException(ERROR_COULD_NOT_CREATE_SOCKET);
+        }
+        try {
+            int chosen = conn.in.read();
+            if (chosen == codec.getId()) {
+                conn.codec = codec;
+            } else if (chosen == XMLCodec.ID) {
+                conn.codec = new XMLCodec();
+            } else {
+                throw new IOException("Unexpected codec " + chosen);
+            }
+        } catch (IOException e) {
+            closeQuietly(sock);
+            throw new KVException(ERROR_COULD_NOT_RECEIVE_DATA);
+        }
+        return conn;
+    }
+
+    /**
+     * Check the first byte of a freshly accepted socket. If it is the
+     * keep-alive preamble, the preamble is consumed, the codec reply is sent
+     * and a KVConnection is returned.
+     * Otherwise nothing is consumed from the returned stream and null is
+     * returned so the caller can fall back to a one-shot XML exchange.
+     *
+     * @param sock accepted socket
+     * @param in buffered stream over sock's input supporting mark/reset
+     * @return KVConnection or null for a legacy request
+     * @throws KVException ERROR_COULD_NOT_RECEIVE_DATA on I/O failure
+     */
+    public static KVConnection accept(Socket sock, BufferedInputStream in)
+            throws KVException {
+        try {
+            in.mark(1);
+            int first = in.read();
+            if (first == KEEP_ALIVE_MAGIC) {
+                sock.setTcpNoDelay(true);
+                KVConnection conn = new KVConnection(sock, in);
+                conn.codec = codecFor(in.read());
+                conn.out.write(conn.codec.getId());
+                conn.out.flush();
+                return conn;
+            }
+            in.reset();
+            return null;
+        } catch (SocketTimeoutException e) {
+            throw new KVException(ERROR_SOCKET_TIMEOUT);
+        } catch (IOException e) {
+            throw new KVException(ERROR_COULD_NOT_RECEIVE_DATA);
+        }
+    }
+
+    /**
+     * Buffer a framed message for sending. The frame is not guaranteed to
+     * be on the wire until flush() is called, which lets pipelined requests
+     * or responses share a single write.
+     *
+     * @param msg message to frame
+     * @throws KVException ERROR_INVALID_FORMAT, ERROR_PARSER or
+     *         ERROR_COULD_NOT_SEND_DATA
+     */
+    public void write(KVMessage msg) throws KVException {
+        byte[] payload = codec.encode(msg);
+        try {
+            out.writeInt(payload.length);
+            out.write(payload);
+        } catch (IOException e) {
+            throw new KVException(ERROR_COULD_NOT_SEND_DATA);
+        }
+    }
+
+    /**
+     * Push any buffered frames onto the socket.
+     *
+     * @throws KVException ERROR_COULD_NOT_SEND_DATA
+     */
+    public void flush() throws KVException {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new KVException(ERROR_COULD_NOT_SEND_DATA);
+        }
+    }
+
+    /**
+     * Write a single message and flush it.
+     *
+     * @param msg message to send
+     * @throws KVException see write() and flush()
+     */
+    public void send(KVMessage msg) throws KVException {
+        write(msg);
+        flush();
+    }
+
+    /**
+     * Block until the next framed message arrives.
+     *
+     * @return the next message, or null if the peer closed the connection
+     *         cleanly between frames
+     * @throws KVException ERROR_SOCKET_TIMEOUT, ERROR_COULD_NOT_RECEIVE_DATA
+     *         or any parse error from KVMessage
+     */
+    public KVMessage receive() throws KVException {
+        byte[] payload;
+        try {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                return null;
+            }
+            if (length < 0 || length > MAX_FRAME_SIZE) {
+                throw new KVException(ERROR_COULD_NOT_RECEIVE_DATA);
+            }
+            payload = new byte[length];
+            in.readFully(payload);
+        } catch (SocketTimeoutException e) {
+            throw new KVException(ERROR_SOCKET_TIMEOUT);
+        } catch (IOException e) {
+            throw new KVException(ERROR_COULD_NOT_RECEIVE_DATA);
+        }
+        return codec.decode(payload);
+    }
+
+    /**
+     * @return the codec negotiated for this connection
+     */
+    public KVMessageCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Look up a codec by its negotiation id.
+     *
+     * @param id codec id sent by the client
+     * @return the matching codec, or XMLCodec if id is unknown
+     */
+    static KVMessageCodec codecFor(int id) {
+        switch (id) {
+            case BinaryCodec.ID:
+                return new BinaryCodec();
+            default:
+                return new XMLCodec();
+        }
+    }
+
+    /**
+     * Whether a complete or partial frame is already buffered locally, i.e.
+     * the peer has pipelined more requests behind the current one.
+     */
+    public boolean hasBufferedInput() {
+        try {
+            return in.available() > 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Wait for the next frame to start arriving, without consuming any of
+     * it. This replaces the read timeout; set it again before receive().
+     *
+     * @param timeout how long to wait in milliseconds
+     * @return true if input (or the end of the stream) is waiting, false if
+     *         the wait timed out
+     * @throws KVException ERROR_COULD_NOT_RECEIVE_DATA on I/O failure
+     */
+    public boolean awaitInput(int timeout) throws KVException {
+        if (hasBufferedInput()) {
+            return true;
+        }
+        try {
+            sock.setSoTimeout(timeout);
+            in.mark(1);
+            in.read();
+            in.reset();
+            return true;
+        } catch (SocketTimeoutException e) {
+            return false;
+        } catch (IOException e) {
+            throw new KVException(ERROR_COULD_NOT_RECEIVE_DATA);
+        }
+    }
+
+    /**
+     * Set the read timeout for subsequent receive() calls.
+     *
+     * @param timeout timeout in milliseconds, 0 for none
+     */
+    public void setTimeout(int timeout) {
+        try {
+            sock.setSoTimeout(timeout);
+        } catch (IOException e) { }
+    }
+
+    public boolean isClosed() {
+        return sock.isClosed();
+    }
+
+    /**
+     * Closes the connection. Best effort.
+     */
+    public void close() {
+        try {
+            out.flush();
+        } catch (IOException e) { }
+        closeQuietly(sock);
+    }
+
+    private static void closeQuietly(Socket sock) {
+        try {
+            sock.close();
+        } catch (IOException e) { }
+    }
+}
@@ -105,4 +105,17 @@ public class KVConstants {
     public static final String ERROR_INVALID_VALUE =
         "Data Error: Null or empty value";
 
+    /**
+     * Error message used if a slave's TPCLog file cannot be read or written.
+     */
+    public static final String ERROR_COULD_NOT_ACCESS_LOG =
+        "Log Error: Could not access log";
+
+    /**
+     * Error message used if a disk-backed KVStore cannot read or write its
+     * data files.
+     */
+    public static final String ERROR_COULD_NOT_ACCESS_STORE =
+        "Store Error: Could not access data files";
+
 }
@@ -4,18 +4,16 @@ import static kvstore.KVConstants.*;
 import java.io.*;
 import java.net.*;
 import java.util.Arrays;
-import javax.xml.parsers.*;
-import javax.xml.transform.*;
-import javax.xml.transform.dom.*;
-import javax.xml.transform.stream.*;
-import org.w3c.dom.*;
-import org.xml.sax.*;
-import org.xml.sax.helpers.*;
+import javax.xml.stream.*;
 
 
 /**
  * This is the object that is used to create the XML based messages
  * for communication between clients and servers.
+ *
+ * Messages are read and written with StAX straight from and to the socket
+ * streams, so no DOM is built for a message. StAX factories are expensive
+ * to create, so each thread keeps its own pair and reuses them.
  */
 public class KVMessage implements Serializable {
     private String msgType;
@@ -27,6 +25,27 @@ public class KVMessage implements Serializable {
     private static String responseMessages[] = {RESP, ACK, REGISTER, SUCCESS}; 
     public static final long serialVersionUID = 6473128480951955693L;
 
+    private static final ThreadLocal<XMLInputFactory> inputFactory =
+        new ThreadLocal<XMLInputFactory>() {
+            @Override
+            protected XMLInputFactory initialValue() {
+                XMLInputFactory factory = XMLInputFactory.newInstance();
+                factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+                factory.setProperty(
+                    XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+                factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+                return factory;
+            }
+        };
+
+    private static final ThreadLocal<XMLOutputFactory> outputFactory =
+        new ThreadLocal<XMLOutputFactory>() {
+            @Override
+            protected XMLOutputFactory initialValue() {
+                return XMLOutputFactory.newInstance();
+            }
+        };
+
     public KVMessage(KVMessage kvm) {
     	this.msgType=kvm.getMsgType();
     	this.key=kvm.getKey();
@@ -79,37 +98,99 @@ public class KVMessage implements Serializable {
     public KVMessage(Socket sock, int timeout) throws KVException {
         try {
             sock.setSoTimeout(timeout);
-            InputSource source = new InputSource(new NoCloseInputStream(sock.getInputStream()));
-            source.setEncoding("UTF-8");
-        	NodeList nodeList = 
-                DocumentBuilderFactory
-                .newInstance()
-                .newDocumentBuilder()
-                .parse(source)
-                .getElementsByTagName("KVMessage");
-
-        	if(nodeList.getLength() <= 0)
-        		throw new KVException(ERROR_INVALID_FORMAT);
- 
-            Element elem = (Element)nodeList.item(0);
-            msgType = elem.getAttribute("type");
-            NodeList keyList = elem.getElementsByTagName("Key");
-    		NodeList valueList = elem.getElementsByTagName("Value");
-            NodeList messageList = elem.getElementsByTagName("Message");
-
-            key = (keyList.getLength() > 0) ? keyList.item(0).getTextContent() : null;
-            value = (valueList.getLength() > 0) ? valueList.item(0).getTextContent() : null;
-            message = (messageList.getLength() > 0) ? messageList.item(0).getTextContent() : null;
-
-            checkMessage(this);
-
+            parseXML(sock.getInputStream());
         } catch(SocketTimeoutException e){
        	 	throw new KVException(ERROR_SOCKET_TIMEOUT);
         } catch(IOException e) {
             throw new KVException(ERROR_COULD_NOT_RECEIVE_DATA);
-        } catch(ParserConfigurationException | SAXException e) {
+        }
+    }
+
+    /**
+     * Construct KVMessage by parsing XML from an InputStream. The stream is
+     * read up to EOF but is not closed.
+     *
+     * @param  in InputStream holding exactly one serialized KVMessage
+     * @throws KVException if we fail to create a valid KVMessage. Please see
+     *         KVConstants.java for possible KVException messages.
+     */
+    public KVMessage(InputStream in) throws KVException {
+        try {
+            parseXML(in);
+        } catch(SocketTimeoutException e){
+            throw new KVException(ERROR_SOCKET_TIMEOUT);
+        } catch(IOException e) {
+            throw new KVException(ERROR_COULD_NOT_RECEIVE_DATA);
+        }
+    }
+
+    /**
+     * Fill in the fields of this message from serialized XML. The first
+     * KVMessage element in the document is used, along with the first Key,
+     * Value and Message elements inside it. The rest of the document is
+     * still read so that malformed input is rejected.
+     *
+     * @param  in InputStream to parse, left open
+     * @throws IOException if reading from the stream fails
+     * @throws KVException ERROR_PARSER or ERROR_INVALID_FORMAT
+     */
+    private void parseXML(InputStream in) throws IOException, KVException {
+        XMLStreamReader reader = null;
+        boolean found = false;
+        boolean inside = false;
+        int depth = 0;
+        try {
+            reader = inputFactory.get().createXMLStreamReader(
+                new NoCloseInputStream(in), "UTF-8");
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.END_ELEMENT && inside) {
+                    if (depth == 0) {
+                        inside = false;
+                    } else {
+                        depth--;
+                    }
+                }
+                if (event != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                String name = reader.getLocalName();
+                if (!inside) {
+                    if (!found && name.equals("KVMessage")) {
+                        found = true;
+                        inside = true;
+                        msgType = reader.getAttributeValue(null, "type");
+                        if (msgType == null) {
+                            msgType = "";
+                        }
+                    }
+                } else if (name.equals("Key") && key == null) {
+                    // getElementText also consumes the matching end tag
+                    key = reader.getElementText();
+                } else if (name.equals("Value") && value == null) {
+                    value = reader.getElementText();
+                } else if (name.equals("Message") && message == null) {
+                    message = reader.getElementText();
+                } else {
+                    depth++;
+                }
+            }
+        } catch(XMLStreamException e) {
+            if (e.getNestedException() instanceof IOException) {
+                throw (IOException) e.getNestedException();
+            }
             throw new KVException(ERROR_PARSER);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch(XMLStreamException e) { }
+            }
         }
+
+        if (!found)
+            throw new KVException(ERROR_INVALID_FORMAT);
+        checkMessage(this);
     }
 
     /**
@@ -118,7 +199,7 @@ public class KVMessage implements Serializable {
      * @param KVMessage to check.
      * @throws KVException ERROR_INVALID_FORMAT if the message is in valid format.
      */
-    private static void checkMessage(KVMessage inMessage) throws KVException {
+    static void checkMessage(KVMessage inMessage) throws KVException {
         boolean fail = false;
 
         if (inMessage.getMsgType() == null) 
@@ -169,36 +250,31 @@ public class KVMessage implements Serializable {
      * @throws KVException with ERROR_INVALID_FORMAT or ERROR_PARSER
      */
     public String toXML() throws KVException {
-        checkMessage(this);
+        StringWriter stringWriter = new StringWriter();
         try {
-            Document doc = 
-                DocumentBuilderFactory
-                .newInstance()
-                .newDocumentBuilder()
-                .newDocument();
-            
-            doc.setXmlStandalone(true);
-            Element kvMessageElement = doc.createElement("KVMessage");
-            doc.appendChild(kvMessageElement);
-            kvMessageElement.setAttribute("type", msgType);
-            handleElements(doc, kvMessageElement);
-            StringWriter stringWriter = new StringWriter();
-            
-            TransformerFactory
-                .newInstance()
-                .newTransformer()
-                .transform(new DOMSource(doc), new StreamResult(stringWriter));
-
-            stringWriter.flush();
-            return stringWriter.toString();
-
-        } catch(ParserConfigurationException e) {
-            throw new KVException(ERROR_PARSER);
-        } catch(TransformerException e) {
+            writeXML(outputFactory.get().createXMLStreamWriter(stringWriter));
+        } catch(XMLStreamException e) {
             throw new KVException(ERROR_PARSER);
         }
+        return stringWriter.toString();
     }
 
+    /**
+     * Serialize this message to UTF-8 encoded XML, for use as the payload of
+     * a framed message on a KVConnection.
+     *
+     * @return UTF-8 bytes of the XML representation
+     * @throws KVException with ERROR_INVALID_FORMAT or ERROR_PARSER
+     */
+    public byte[] toBytes() throws KVException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            writeXML(outputFactory.get().createXMLStreamWriter(bytes, "UTF-8"));
+        } catch(XMLStreamException e) {
+            throw new KVException(ERROR_PARSER);
+        }
+        return bytes.toByteArray();
+    }
 
     /**
      * Send serialized version of this KVMessage over the network.
@@ -213,13 +289,58 @@ public class KVMessage implements Serializable {
      */
     public void sendMessage(Socket sock) throws KVException {
         try {
-            (new PrintWriter(sock.getOutputStream(), true)).println(this.toXML());
+            OutputStream out = new BufferedOutputStream(sock.getOutputStream());
+            writeXML(outputFactory.get().createXMLStreamWriter(out, "UTF-8"));
+            out.flush();
             sock.shutdownOutput();
         } catch(IOException e) {
             throw new KVException(ERROR_COULD_NOT_SEND_DATA);
+        } catch(XMLStreamException e) {
+            if (e.getNestedException() instanceof IOException) {
+                throw new KVException(ERROR_COULD_NOT_SEND_DATA);
+            }
         } catch(Exception f) {}
     }
 
+    /**
+     * Write this message as a complete XML document. The message is checked
+     * before anything is written, so an invalid message leaves the
+     * underlying stream untouched.
+     *
+     * @param writer StAX writer to write to; flushed and closed, but the
+     *        stream or writer under it is left open
+     * @throws KVException with ERROR_INVALID_FORMAT or ERROR_PARSER
+     * @throws XMLStreamException if writing fails
+     */
+    private void writeXML(XMLStreamWriter writer)
+            throws KVException, XMLStreamException {
+        checkMessage(this);
+        boolean[] fields = getFields();
+        writer.writeStartDocument("UTF-8", "1.0");
+        writer.writeStartElement("KVMessage");
+        writer.writeAttribute("type", msgType);
+        if (fields[0] && key != null) {
+            writeElement(writer, "Key", key);
+        }
+        if (fields[1] && value != null) {
+            writeElement(writer, "Value", value);
+        }
+        if (fields[2] && message != null) {
+            writeElement(writer, "Message", message);
+        }
+        writer.writeEndElement();
+        writer.writeEndDocument();
+        writer.flush();
+        writer.close();
+    }
+
+    private static void writeElement(XMLStreamWriter writer, String name,
+            String text) throws XMLStreamException {
+        writer.writeStartElement(name);
+        writer.writeCharacters(text);
+        writer.writeEndElement();
+    }
+
     public String getKey() {
         return key;
     }
@@ -273,45 +394,23 @@ public class KVMessage implements Serializable {
     }
 
     /** 
-     * Handle message elements. 
+     * Decide which elements are serialized for this message's type.
      *
-     * @param doc the document created in toxml()
-     * @param kvMessageElement The KVMessage element in doc 
+     * @return whether Key, Value and Message may be written, in that order
      * @throws KVException if message is of an unrecognized type.
      */
-    private void handleElements(Document doc, Element kvMessageElement) throws KVException {
+    private boolean[] getFields() throws KVException {
         String[] has_key = {PUT_REQ, RESP, DEL_REQ, GET_REQ}; 
         String[] has_value = {RESP, PUT_REQ}; 
         String[] has_message = {READY, REGISTER, RESP, ABORT, ACK, COMMIT}; 
-        boolean recognized = false;
-
-        if(Arrays.asList(has_key).contains(msgType)) {
-            recognized = true;
-            if(key != null) {
-                Element keyElement = doc.createElement("Key");
-                keyElement.appendChild(doc.createTextNode(key));
-                kvMessageElement.appendChild(keyElement);
-            }
-        }
-        if(Arrays.asList(has_value).contains(msgType)) {
-            recognized = true;
-            if(value != null) {
-                Element valueElement = doc.createElement("Value");
-                valueElement.appendChild(doc.createTextNode(value));
-                kvMessageElement.appendChild(valueElement);
-            }
-        }
-        if(Arrays.asList(has_message).contains(msgType)) {
-            recognized = true;
-            if(message != null) {
-                Element messageElement = doc.createElement("Message");
-                messageElement.appendChild(doc.createTextNode(message));
-                kvMessageElement.appendChild(messageElement);
-            }
-        }
-        if(!recognized) {
+        boolean[] fields = {Arrays.asList(has_key).contains(msgType),
+                            Arrays.asList(has_value).contains(msgType),
+                            Arrays.asList(has_message).contains(msgType)};
+
+        if(!fields[0] && !fields[1] && !fields[2]) {
             System.out.println(msgType + " is not recognized");
             throw new KVException(ERROR_PARSER);
         }
+        return fields;
     }
 }
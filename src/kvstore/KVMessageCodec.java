@@ -0,0 +1,35 @@
+package kvstore;
+
+/**
+ * Interface for the wire formats a KVMessage can be framed with on a
+ * KVConnection. The codec is chosen once per connection while the
+ * connection is being opened; see KVConnection.
+ */
+public interface KVMessageCodec {
+
+    /**
+     * @return the byte identifying this codec during negotiation
+     */
+    public int getId();
+
+    /**
+     * Serialize a message.
+     *
+     * @param msg message to serialize
+     * @return serialized payload of a single frame
+     * @throws KVException ERROR_INVALID_FORMAT if msg is not a valid message,
+     *         or ERROR_PARSER if it cannot be serialized
+     */
+    public byte[] encode(KVMessage msg) throws KVException;
+
+    /**
+     * Deserialize a message.
+     *
+     * @param payload the complete payload of a single frame
+     * @return the message it holds
+     * @throws KVException ERROR_INVALID_FORMAT or ERROR_PARSER if payload
+     *         does not hold a valid message
+     */
+    public KVMessage decode(byte[] payload) throws KVException;
+
+}
@@ -2,22 +2,56 @@ package kvstore;
 
 import static kvstore.KVConstants.*;
 
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 
 /**
  * This class services all storage logic for an individual key-value server.
  * All KVServer request on keys from different sets must be parallel while
  * requests on keys from the same set should be serial. A write-through
- * policy should be used when a put request is made.
+ * policy should be used when a put request is made, and a get that misses
+ * the cache reads through to the store and fills the cache.
+ *
+ * Misses can optionally be cached too: once enabled with
+ * setNegativeCaching(), a get for a key the store does not hold is
+ * remembered for a bounded time, and repeated gets for it fail from memory
+ * instead of going to the store. A put of the key forgets the miss.
  */
 public class KVServer implements KeyValueInterface {
 
     private KVStore dataStore;
     private KVCache dataCache;
 
+    // Key -> System.nanoTime() after which the recorded miss is stale.
+    // A key's miss is only added or removed under its exclusive set lock;
+    // expired misses of any key may be purged at any time.
+    private ConcurrentHashMap<String, Long> misses =
+        new ConcurrentHashMap<String, Long>();
+    private volatile long missTtlNanos = 0;
+    private volatile int maxMisses = 0;
+    private AtomicLong missHits = new AtomicLong();
+
     public static final int MAX_KEY_SIZE = 256;
     public static final int MAX_VAL_SIZE = 256 * 1024;
 
+    /**
+     * Values of at least this many bytes that getBytes() reads from the
+     * store are passed on as the store's bytes, without being decoded or
+     * added to the cache.
+     */
+    public static final int ZERO_COPY_BYTES = 16 * 1024;
+
     /**
      * Constructs a KVServer backed by a KVCache and KVStore.
      *
@@ -26,8 +60,29 @@ public class KVServer implements KeyValueInterface {
      */
 
     public KVServer(int numSets, int maxElemsPerSet) {
-        this.dataCache = new KVCache(numSets, maxElemsPerSet);
-        this.dataStore = new KVStore();
+        this(new KVCache(numSets, maxElemsPerSet));
+    }
+
+    /**
+     * Constructs a KVServer backed by the given cache, e.g. an
+     * OffHeapKVCache, and a KVStore.
+     *
+     * @param dataCache cache in front of the store
+     */
+    public KVServer(KVCache dataCache) {
+        this(dataCache, new KVStore());
+    }
+
+    /**
+     * Constructs a KVServer backed by the given cache and store, e.g. a
+     * BitcaskKVStore that keeps its data on disk.
+     *
+     * @param dataCache cache in front of the store
+     * @param dataStore store holding every key
+     */
+    public KVServer(KVCache dataCache, KVStore dataStore) {
+        this.dataCache = dataCache;
+        this.dataStore = dataStore;
     }
 
     /**
@@ -47,14 +102,22 @@ public class KVServer implements KeyValueInterface {
         }
         Lock lock = dataCache.getLock(key);
         lock.lock();
-        dataCache.put(key, value);
-        dataStore.put(key, value);
-        lock.unlock();
+        try {
+            // the cache only takes what the store has kept
+            dataStore.put(key, value);
+            misses.remove(key);
+            dataCache.put(key, value);
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
      * Performs get request.
-     * Checks cache first. Updates cache if not in cache but located in store.
+     * Checks cache first, holding only the set's shared lock so gets on the
+     * same set run in parallel. On a miss the exclusive lock is taken, the
+     * cache checked again in case another get filled it meanwhile, and the
+     * value read from the store and added to the cache.
      *
      * @param  key String key
      * @return String value associated with key
@@ -62,18 +125,138 @@ public class KVServer implements KeyValueInterface {
      */
     @Override
     public String get(String key) throws KVException {
-        Lock lock = dataCache.getLock(key);
+        Lock lock = dataCache.getReadLock(key);
         lock.lock();
+        try {
+            String cacheResponse = dataCache.get(key);
+            if (cacheResponse != null) {
+                return cacheResponse;
+            }
+            if (isKnownMiss(key)) {
+                missHits.incrementAndGet();
+                throw new KVException(ERROR_NO_SUCH_KEY);
+            }
+        } finally {
+            lock.unlock();
+        }
 
-        String cacheResponse = dataCache.get(key);
-        if (cacheResponse == null) {
-            String storeResponse = dataStore.get(key);
+        lock = dataCache.getLock(key);
+        lock.lock();
+        try {
+            String cacheResponse = dataCache.peek(key);
+            if (cacheResponse != null) {
+                return cacheResponse;
+            }
+            String storeResponse;
+            try {
+                storeResponse = dataStore.get(key);
+            } catch (KVException e) {
+                recordMiss(key);
+                throw e;
+            }
+            dataCache.fill(key, storeResponse);
+            return storeResponse;
+        } finally {
             lock.unlock();
+        }
+    }
+
+    /**
+     * Performs get request like get(), but returns the value as UTF-8
+     * bytes. On a cache miss the bytes come from KVStore.getBytes(), which
+     * for a disk-backed store may be a slice of a mapped file; small values
+     * are decoded and cached as get() would, large ones are returned as
+     * they are so a server can write them out without copying.
+     *
+     * @param  key String key
+     * @return read-only buffer of the value's UTF-8 bytes
+     * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in store
+     */
+    public ByteBuffer getBytes(String key) throws KVException {
+        Lock lock = dataCache.getReadLock(key);
+        lock.lock();
+        try {
+            String cacheResponse = dataCache.get(key);
+            if (cacheResponse != null) {
+                return utf8(cacheResponse);
+            }
+            if (isKnownMiss(key)) {
+                missHits.incrementAndGet();
+                throw new KVException(ERROR_NO_SUCH_KEY);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        lock = dataCache.getLock(key);
+        lock.lock();
+        try {
+            String cacheResponse = dataCache.peek(key);
+            if (cacheResponse != null) {
+                return utf8(cacheResponse);
+            }
+            ByteBuffer storeResponse;
+            try {
+                storeResponse = dataStore.getBytes(key);
+            } catch (KVException e) {
+                recordMiss(key);
+                throw e;
+            }
+            if (storeResponse.remaining() < ZERO_COPY_BYTES) {
+                dataCache.fill(key, StandardCharsets.UTF_8.decode(
+                    storeResponse.duplicate()).toString());
+            }
             return storeResponse;
+        } finally {
+            lock.unlock();
         }
+    }
+
+    private static ByteBuffer utf8(String value) {
+        return ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    }
+
+    /**
+     * Remember gets for keys missing from the store, so repeats fail
+     * without a store lookup. Off by default.
+     *
+     * @param ttlMillis how long a miss is remembered, 0 to turn this off
+     * @param maxEntries most misses remembered at once; further misses are
+     *        not recorded until old ones expire or are forgotten
+     */
+    public void setNegativeCaching(long ttlMillis, int maxEntries) {
+        missTtlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        maxMisses = maxEntries;
+        misses.clear();
+    }
+
+    /** @return number of gets answered from a remembered miss */
+    public long getNumNegativeHits() {
+        return missHits.get();
+    }
 
-        lock.unlock();
-        return cacheResponse;
+    private boolean isKnownMiss(String key) {
+        Long expires = misses.get(key);
+        return expires != null && System.nanoTime() - expires < 0;
+    }
+
+    /** Must hold the key's exclusive set lock. */
+    private void recordMiss(String key) {
+        if (missTtlNanos <= 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (misses.size() >= maxMisses) {
+            for (Iterator<Long> it = misses.values().iterator(); it.hasNext();) {
+                if (now - it.next() >= 0) {
+                    it.remove();
+                }
+            }
+            if (misses.size() >= maxMisses) {
+                return;
+            }
+        }
+        misses.put(key, now + missTtlNanos);
     }
 
     /**
@@ -86,30 +269,148 @@ public class KVServer implements KeyValueInterface {
     public void del(String key) throws KVException {
         Lock lock = dataCache.getLock(key);
         lock.lock();
-
-        dataCache.del(key);
-        dataStore.del(key);
-
-        lock.unlock();
+        try {
+            dataStore.del(key);
+            dataCache.del(key);
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
      * Check if the server has a given key. This is used for TPC operations
      * that need to check whether or not a transaction can be performed but
-     * you don't want to change the state of the cache by calling get(). You
-     * are allowed to call dataStore.get() for this method.
+     * you don't want to change the state of the cache by calling get(). It
+     * asks the store, which may answer without reading the value.
      *
      * @param key key to check for membership in store
      */
     public boolean hasKey(String key) {
+        return dataStore.hasKey(key);
+    }
+
+    /**
+     * Resize the data cache while the server keeps serving requests. See
+     * KVCache.resize().
+     *
+     * @param numSets the number of sets the cache will have
+     * @param maxElemsPerSet the size of each set
+     */
+    public void resizeCache(int numSets, int maxElemsPerSet) {
+        dataCache.resize(numSets, maxElemsPerSet);
+    }
+
+    /**
+     * Resize each set of the data cache to fit a memory budget. See
+     * KVCache.resizeToBudget().
+     *
+     * @param budgetBytes heap bytes the cache may use
+     */
+    public void resizeCacheToBudget(long budgetBytes) {
+        dataCache.resizeToBudget(budgetBytes);
+    }
+
+    /**
+     * Stream the contents of the store to a file as a KVSnapshot and sync
+     * it to disk, for TPCLog checkpoints. The caller must keep the store
+     * from changing meanwhile if it needs a consistent snapshot.
+     *
+     * @param fileName file to write
+     * @throws IOException if the file could not be written
+     */
+    public void dumpStore(String fileName) throws IOException {
+        FileOutputStream file = new FileOutputStream(fileName);
         try {
-            dataStore.get(key);
-            return true;
+            BufferedOutputStream out = new BufferedOutputStream(file);
+            dataStore.writeSnapshot(out, false);
+            out.flush();
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Replace the contents of the store with a file written by dumpStore().
+     * Meant for recovery before the server takes requests; the cache is
+     * left as it is.
+     *
+     * @param fileName file to read
+     * @throws IOException if the file cannot be read or is damaged; the
+     *         store then holds no more than part of it
+     */
+    public void restoreStore(String fileName) throws IOException {
+        dataStore.readFromFile(fileName);
+    }
+
+    /**
+     * Write the final state of many keys straight into the store, split by
+     * key over several threads. A null value deletes the key. Entries a put
+     * would reject for size are skipped. The cache is not consulted or
+     * updated, so this is for recovery, before the cache holds any of the
+     * keys.
+     *
+     * @param state key -> value, or null for a deleted key
+     * @param threads number of threads to load with
+     */
+    public void loadStore(Map<String, String> state, int threads) {
+        threads = Math.max(1, Math.min(threads, state.size()));
+        final List<List<Map.Entry<String, String>>> partitions =
+            new ArrayList<List<Map.Entry<String, String>>>(threads);
+        for (int i = 0; i < threads; i++) {
+            partitions.add(new ArrayList<Map.Entry<String, String>>());
+        }
+        for (Map.Entry<String, String> entry : state.entrySet()) {
+            int i = (entry.getKey().hashCode() & Integer.MAX_VALUE) % threads;
+            partitions.get(i).add(entry);
+        }
+
+        Thread[] loaders = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final List<Map.Entry<String, String>> partition = partitions.get(i);
+            loaders[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (Map.Entry<String, String> entry : partition) {
+                        loadEntry(entry.getKey(), entry.getValue());
+                    }
+                }
+            });
+            loaders[i].start();
+        }
+        for (Thread loader : loaders) {
+            while (true) {
+                try {
+                    loader.join();
+                    break;
+                } catch (InterruptedException e) { }
+            }
+        }
+    }
+
+    private void loadEntry(String key, String value) {
+        try {
+            if (value == null) {
+                dataStore.del(key);
+            } else if (key.length() <= MAX_KEY_SIZE && value.length() <= MAX_VAL_SIZE) {
+                dataStore.put(key, value);
+            }
         } catch (KVException e) {
-            return false;
+            // deleting a key the store never had
         }
     }
 
+    /**
+     * Get the id of the cache set a key belongs to. Requests for keys in
+     * the same set are serialized on that set's lock.
+     *
+     * @param key key of interest
+     * @return set of the key
+     */
+    public int getSetId(String key) {
+        return dataCache.getSetId(key);
+    }
+
     /** This method is purely for convenience and will not be tested. */
     @Override
     public String toString() {
@@ -0,0 +1,428 @@
+package kvstore;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Binary snapshot format for the contents of a KVStore, written and read
+ * as a stream so neither side ever holds more than one chunk of it. A
+ * snapshot is
+ *
+ *   magic   4 bytes
+ *   flags   1 byte, COMPRESSED if chunks are deflated
+ *   chunks  each a header of pair count, raw length, stored length and
+ *           CRC-32 of the raw bytes (4 bytes each), then the stored bytes
+ *   end     a chunk header of all zeroes, then the total pair count in
+ *           8 bytes
+ *
+ * The raw bytes of a chunk are pairs of keyLen (4 bytes), key, valLen
+ * (4 bytes), value, all UTF-8, cut into chunks of about CHUNK_BYTES. A
+ * snapshot that is cut short or damaged fails its checksums or lacks the
+ * end marker, and reading it throws IOException rather than returning
+ * part of the data silently.
+ *
+ * A snapshot may also be split by key hash into several partition files
+ * in one directory, each a snapshot of its own, which can be written and
+ * read in parallel. A MANIFEST file, renamed into place last, records a
+ * generation, the number of partitions and the pair count of each, with a
+ * CRC-32 of its own. Partition files carry the generation in their names,
+ * so a new snapshot is written beside the one the manifest points at and
+ * replaces it only when its own manifest is renamed over the old one.
+ */
+public class KVSnapshot {
+
+    /** First four bytes of every snapshot, "KVS1". */
+    public static final int MAGIC = 0x4B565331;
+
+    /** Raw size at which a chunk is closed. */
+    public static final int CHUNK_BYTES = 64 * 1024;
+
+    /** Name of the manifest in a partitioned snapshot directory. */
+    public static final String MANIFEST = "MANIFEST";
+
+    private static final int MANIFEST_MAGIC = 0x4B56534D;  // "KVSM"
+    private static final int COMPRESSED = 1;
+    // A chunk may overrun CHUNK_BYTES by one pair of the largest legal size
+    private static final int MAX_RAW_BYTES =
+        CHUNK_BYTES + 8 + 4 * (KVServer.MAX_KEY_SIZE + KVServer.MAX_VAL_SIZE);
+
+    /**
+     * @param  start the first four bytes of a file
+     * @return true if they are the start of a snapshot
+     */
+    public static boolean isSnapshot(byte[] start) {
+        return start.length >= 4 && ByteBuffer.wrap(start).getInt() == MAGIC;
+    }
+
+    /**
+     * @param  key String key
+     * @param  partitions number of partitions
+     * @return the partition of a partitioned snapshot the key belongs to
+     */
+    public static int partition(String key, int partitions) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return ((h ^ (h >>> 16)) & Integer.MAX_VALUE) % partitions;
+    }
+
+    /**
+     * @param  directory directory of a partitioned snapshot
+     * @param  generation generation of the snapshot
+     * @param  partition partition number
+     * @return the file holding that partition
+     */
+    public static File partFile(File directory, long generation, int partition) {
+        return new File(directory, String.format("part-%d-%04d.kvs", generation, partition));
+    }
+
+    /**
+     * @param  name name of a file in a partitioned snapshot directory
+     * @return true if it is a partition file of any generation
+     */
+    public static boolean isPartFile(String name) {
+        return name.startsWith("part-") && name.endsWith(".kvs");
+    }
+
+    /**
+     * Write the manifest of a partitioned snapshot, atomically, once every
+     * partition file is on disk. The rename is what makes the snapshot
+     * current.
+     *
+     * @param directory directory of the snapshot
+     * @param generation generation the partition files were written under
+     * @param counts pair count of each partition
+     * @throws IOException if the manifest cannot be written
+     */
+    public static void writeManifest(File directory, long generation, long[] counts)
+            throws IOException {
+        File tmp = new File(directory, MANIFEST + ".tmp");
+        FileOutputStream file = new FileOutputStream(tmp);
+        try {
+            ByteBuffer manifest = ByteBuffer.allocate(16 + 8 * counts.length + 4);
+            manifest.putInt(MANIFEST_MAGIC).putLong(generation).putInt(counts.length);
+            for (long count : counts) {
+                manifest.putLong(count);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(manifest.array(), 0, manifest.position());
+            manifest.putInt((int) crc.getValue());
+            file.write(manifest.array());
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+        if (!tmp.renameTo(new File(directory, MANIFEST))) {
+            throw new IOException("Could not rename " + tmp);
+        }
+    }
+
+    /**
+     * Read the manifest of a partitioned snapshot.
+     *
+     * @param  directory directory of the snapshot
+     * @return the generation and pair count of each partition
+     * @throws IOException if there is no manifest or it is damaged
+     */
+    public static Manifest readManifest(File directory) throws IOException {
+        DataInputStream in = new DataInputStream(
+            new FileInputStream(new File(directory, MANIFEST)));
+        try {
+            if (in.readInt() != MANIFEST_MAGIC) {
+                throw new IOException("Not a snapshot manifest");
+            }
+            long generation = in.readLong();
+            int partitions = in.readInt();
+            if (partitions <= 0 || partitions > (1 << 16)) {
+                throw new IOException("Malformed snapshot manifest");
+            }
+            ByteBuffer manifest = ByteBuffer.allocate(16 + 8 * partitions);
+            manifest.putInt(MANIFEST_MAGIC).putLong(generation).putInt(partitions);
+            long[] counts = new long[partitions];
+            for (int i = 0; i < partitions; i++) {
+                counts[i] = in.readLong();
+                manifest.putLong(counts[i]);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(manifest.array());
+            if (in.readInt() != (int) crc.getValue()) {
+                throw new IOException("Snapshot manifest fails its checksum");
+            }
+            return new Manifest(generation, counts);
+        } catch (EOFException e) {
+            throw new IOException("Snapshot manifest cut short");
+        } finally {
+            in.close();
+        }
+    }
+
+    /** What the manifest of a partitioned snapshot records. */
+    public static class Manifest {
+        /** Generation in the names of the partition files. */
+        public final long generation;
+        /** Pair count of each partition. */
+        public final long[] counts;
+
+        Manifest(long generation, long[] counts) {
+            this.generation = generation;
+            this.counts = counts;
+        }
+    }
+
+    /** Writes a snapshot one pair at a time. */
+    public static class Writer {
+        private final DataOutputStream out;
+        private final Deflater deflater;
+        private final CRC32 crc = new CRC32();
+        private byte[] raw = new byte[CHUNK_BYTES];
+        private byte[] stored = new byte[0];
+        private int length;
+        private int count;
+        private long total;
+
+        /**
+         * Start a snapshot by writing its header.
+         *
+         * @param out stream to write to, ideally buffered; not closed
+         * @param compress true to deflate each chunk
+         * @throws IOException if out fails
+         */
+        public Writer(OutputStream out, boolean compress) throws IOException {
+            this.out = new DataOutputStream(out);
+            this.deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+            this.out.writeInt(MAGIC);
+            this.out.writeByte(compress ? COMPRESSED : 0);
+        }
+
+        /**
+         * Add a pair, writing out the current chunk once it is full.
+         *
+         * @param key String key
+         * @param value String value
+         * @throws IOException if out fails
+         */
+        public void write(String key, String value) throws IOException {
+            byte[] k = key.getBytes(StandardCharsets.UTF_8);
+            byte[] v = value.getBytes(StandardCharsets.UTF_8);
+            int needed = length + 8 + k.length + v.length;
+            if (needed > raw.length) {
+                byte[] bigger = new byte[Math.max(needed, 2 * raw.length)];
+                System.arraycopy(raw, 0, bigger, 0, length);
+                raw = bigger;
+            }
+            ByteBuffer pair = ByteBuffer.wrap(raw, length, needed - length);
+            pair.putInt(k.length).put(k).putInt(v.length).put(v);
+            length = needed;
+            count++;
+            total++;
+            if (length >= CHUNK_BYTES) {
+                writeChunk();
+            }
+        }
+
+        /** @return the number of pairs written so far */
+        public long getCount() {
+            return total;
+        }
+
+        /**
+         * Write the last chunk and the end marker and flush. The stream is
+         * left open.
+         *
+         * @throws IOException if out fails
+         */
+        public void finish() throws IOException {
+            if (count > 0) {
+                writeChunk();
+            }
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeLong(total);
+            out.flush();
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+
+        private void writeChunk() throws IOException {
+            crc.reset();
+            crc.update(raw, 0, length);
+            byte[] body = raw;
+            int bodyLength = length;
+            if (deflater != null) {
+                if (stored.length < length + 64) {
+                    stored = new byte[length + length / 8 + 64];
+                }
+                deflater.reset();
+                deflater.setInput(raw, 0, length);
+                deflater.finish();
+                bodyLength = 0;
+                while (!deflater.finished()) {
+                    if (bodyLength == stored.length) {
+                        byte[] bigger = new byte[2 * stored.length];
+                        System.arraycopy(stored, 0, bigger, 0, bodyLength);
+                        stored = bigger;
+                    }
+                    bodyLength += deflater.deflate(stored, bodyLength, stored.length - bodyLength);
+                }
+                body = stored;
+            }
+            out.writeInt(count);
+            out.writeInt(length);
+            out.writeInt(bodyLength);
+            out.writeInt((int) crc.getValue());
+            out.write(body, 0, bodyLength);
+            length = 0;
+            count = 0;
+            if (raw.length > CHUNK_BYTES) {
+                // drop a buffer grown for one large pair
+                raw = new byte[CHUNK_BYTES];
+            }
+        }
+    }
+
+    /** Reads a snapshot one pair at a time. */
+    public static class Reader {
+        private final DataInputStream in;
+        private final Inflater inflater;
+        private final CRC32 crc = new CRC32();
+        private ByteBuffer chunk = ByteBuffer.allocate(0);
+        private int left;
+        private long total;
+        private boolean done;
+        private String key;
+        private String value;
+
+        /**
+         * Start reading a snapshot by checking its header.
+         *
+         * @param in stream to read from, ideally buffered; not closed
+         * @throws IOException if in fails or does not hold a snapshot
+         */
+        public Reader(InputStream in) throws IOException {
+            this.in = new DataInputStream(in);
+            if (this.in.readInt() != MAGIC) {
+                throw new IOException("Not a snapshot");
+            }
+            int flags = this.in.readUnsignedByte();
+            this.inflater = ((flags & COMPRESSED) != 0) ? new Inflater() : null;
+        }
+
+        /**
+         * Move to the next pair.
+         *
+         * @return false once every pair has been read
+         * @throws IOException if the snapshot is cut short or damaged
+         */
+        public boolean next() throws IOException {
+            if (done) {
+                return false;
+            }
+            if (left == 0 && !readChunk()) {
+                done = true;
+                if (inflater != null) {
+                    inflater.end();
+                }
+                return false;
+            }
+            try {
+                key = field();
+                value = field();
+            } catch (RuntimeException e) {
+                throw new IOException("Malformed chunk");
+            }
+            left--;
+            total++;
+            if (left == 0 && chunk.hasRemaining()) {
+                throw new IOException("Malformed chunk");
+            }
+            return true;
+        }
+
+        /** @return the number of pairs read so far */
+        public long getCount() {
+            return total;
+        }
+
+        /** @return key of the current pair */
+        public String key() {
+            return key;
+        }
+
+        /** @return value of the current pair */
+        public String value() {
+            return value;
+        }
+
+        private String field() {
+            int length = chunk.getInt();
+            String s = new String(chunk.array(), chunk.position(), length, StandardCharsets.UTF_8);
+            chunk.position(chunk.position() + length);
+            return s;
+        }
+
+        /** @return false at the end marker */
+        private boolean readChunk() throws IOException {
+            int count;
+            int rawLength;
+            int storedLength;
+            int checksum;
+            try {
+                count = in.readInt();
+                rawLength = in.readInt();
+                storedLength = in.readInt();
+                checksum = in.readInt();
+                if (count == 0) {
+                    if (in.readLong() != total) {
+                        throw new IOException("Snapshot pair count mismatch");
+                    }
+                    return false;
+                }
+            } catch (EOFException e) {
+                throw new IOException("Snapshot cut short");
+            }
+            if (count < 0 || rawLength < 0 || rawLength > MAX_RAW_BYTES
+                    || storedLength < 0 || storedLength > 2 * MAX_RAW_BYTES) {
+                throw new IOException("Malformed chunk header");
+            }
+            byte[] stored = new byte[storedLength];
+            in.readFully(stored);
+            byte[] raw = stored;
+            if (inflater != null) {
+                raw = new byte[rawLength];
+                inflater.reset();
+                inflater.setInput(stored);
+                try {
+                    if (inflater.inflate(raw) != rawLength || !inflater.finished()) {
+                        throw new IOException("Malformed chunk");
+                    }
+                } catch (DataFormatException e) {
+                    throw new IOException("Malformed chunk");
+                }
+            } else if (storedLength != rawLength) {
+                throw new IOException("Malformed chunk header");
+            }
+            crc.reset();
+            crc.update(raw, 0, rawLength);
+            if ((int) crc.getValue() != checksum) {
+                throw new IOException("Chunk fails its checksum");
+            }
+            chunk = ByteBuffer.wrap(raw, 0, rawLength);
+            left = count;
+            return true;
+        }
+    }
+}
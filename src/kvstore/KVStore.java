@@ -2,18 +2,32 @@ package kvstore;
 
 import static kvstore.KVConstants.*;
 
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 // Imports for XML
 import java.io.*;
-import org.xml.sax.*;
 import org.w3c.dom.*;
 import javax.xml.parsers.*;
 import javax.xml.transform.*;
 import javax.xml.transform.dom.*;
 import javax.xml.transform.stream.*;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
 
 /**
  * This is a basic key-value store. Ideally this would go to disk, or some other
@@ -34,14 +48,46 @@ public class KVStore implements KeyValueInterface {
         this.store = new ConcurrentHashMap<String, String>();
     }
 
+    /**
+     * The key-value pairs in the store, for serializing it. Subclasses that
+     * keep their data elsewhere override this along with put, get and del.
+     *
+     * @return the pairs, read as they are iterated
+     */
+    protected Iterable<Map.Entry<String, String>> entries() {
+        return store.entrySet();
+    }
+
+    /**
+     * Remove every pair from the store.
+     */
+    protected void clear() {
+        resetStore();
+    }
+
+    /**
+     * Prepare an empty store for a known number of pairs, so a restore
+     * does not keep growing it. Stores that keep their data elsewhere
+     * ignore this.
+     *
+     * @param pairs number of pairs about to be put
+     */
+    protected void presize(long pairs) {
+        int capacity = (int) Math.min(Integer.MAX_VALUE, pairs * 4 / 3 + 1);
+        this.store = new ConcurrentHashMap<String, String>(capacity, 0.75f,
+            Runtime.getRuntime().availableProcessors());
+    }
+
     /**
      * Insert key, value pair into the store.
      *
      * @param  key String key
      * @param  value String value
+     * @throws KVException if a store kept elsewhere than memory cannot
+     *         write the pair
      */
     @Override
-    public void put(String key, String value) {
+    public void put(String key, String value) throws KVException {
         store.put(key, value);
     }
 
@@ -77,6 +123,29 @@ public class KVStore implements KeyValueInterface {
         }
     }
 
+    /**
+     * Get the value associated with key as UTF-8 bytes. Stores that keep
+     * values on disk override this to hand out their bytes without
+     * decoding them.
+     *
+     * @param  key String key
+     * @return read-only buffer of the value's UTF-8 bytes
+     * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in store
+     */
+    public ByteBuffer getBytes(String key) throws KVException {
+        return ByteBuffer.wrap(get(key).getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    }
+
+    /**
+     * Check for a key without returning its value.
+     *
+     * @param  key String key
+     * @return true if the store holds the key
+     */
+    public boolean hasKey(String key) {
+        return this.store.containsKey(key);
+    }
+
     /**
      * Serialize this store to XML. See the spec for specific output format.
      * This method is best effort. Any exceptions that arise can be dropped.
@@ -94,7 +163,7 @@ public class KVStore implements KeyValueInterface {
             Element root = document.createElement("KVStore");
             document.appendChild(root);
 
-            for (Map.Entry<String, String> entry : store.entrySet()) {
+            for (Map.Entry<String, String> entry : entries()) {
                 String key = entry.getKey();
                 String value = entry.getValue();
 
@@ -139,49 +208,479 @@ public class KVStore implements KeyValueInterface {
     }
 
     /**
-     * Serialize to XML and write to a file.
-     * This method is best effort. Any exceptions that      *
+     * Write the store to a file as a binary KVSnapshot, uncompressed. The
+     * pairs are streamed from a weakly consistent iteration of the store,
+     * so a concurrent write may or may not be included.
+     * This method is best effort. Any exceptions that arise can be dropped.
+     *
      * @param fileName the file to write the serialized store
      */
     public void dumpToFile(String fileName) {
+        dumpToFile(fileName, false);
+    }
+
+    /**
+     * Write the store to a file as a binary KVSnapshot.
+     * This method is best effort. Any exceptions that arise can be dropped.
+     *
+     * @param fileName the file to write the serialized store
+     * @param compress true to deflate each chunk of the snapshot
+     */
+    public void dumpToFile(String fileName, boolean compress) {
         try {
-            PrintWriter file = new PrintWriter(fileName);
-            file.write(this.toXML());
-            file.close();
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(fileName));
+            try {
+                writeSnapshot(out, compress);
+            } finally {
+                out.close();
+            }
         } catch (IOException e) { }
     }
 
+    /**
+     * Stream the store to out as a binary KVSnapshot.
+     *
+     * @param out stream to write to, ideally buffered; flushed, not closed
+     * @param compress true to deflate each chunk of the snapshot
+     * @throws IOException if out fails
+     */
+    public void writeSnapshot(OutputStream out, boolean compress) throws IOException {
+        KVSnapshot.Writer snapshot = new KVSnapshot.Writer(out, compress);
+        for (Map.Entry<String, String> entry : entries()) {
+            snapshot.write(entry.getKey(), entry.getValue());
+        }
+        snapshot.finish();
+    }
+
+    /**
+     * Replace the contents of the store with a binary KVSnapshot read from
+     * in. The store is cleared first, so a damaged snapshot leaves it
+     * holding only the pairs read before the damage.
+     *
+     * @param in stream to read from, ideally buffered; not closed
+     * @throws IOException if in fails or holds a damaged snapshot
+     */
+    public void readSnapshot(InputStream in) throws IOException {
+        clear();
+        KVSnapshot.Reader snapshot = new KVSnapshot.Reader(in);
+        try {
+            while (snapshot.next()) {
+                put(snapshot.key(), snapshot.value());
+            }
+        } catch (KVException e) {
+            throw new IOException("Could not store " + snapshot.key());
+        }
+    }
+
     /**
      * Replaces the contents of the store with the contents of a file
-     * written by dumpToFile; the previous contents of the store are lost.
-     * The store is cleared even if the file does not exist.
+     * written by dumpToFile, or by exportXML or an older dumpToFile in
+     * XML; the previous contents of the store are lost. Either format is
+     * read as a stream. The store is cleared even if the file does not
+     * exist.
      * This method is best effort. Any exceptions that arise can be dropped.
      *
      * @param fileName the file containing the serialized store data
      */
     public void restoreFromFile(String fileName) {
-        resetStore();
+        try {
+            readFromFile(fileName);
+        }
+        catch (IOException e) { }
+    }
 
+    /**
+     * Like restoreFromFile, but for callers that must not go on with what
+     * a missing or damaged file leaves behind, which is an empty store or
+     * the pairs read before the damage.
+     *
+     * @param fileName the file containing the serialized store data
+     * @throws IOException if the file cannot be read or is damaged
+     */
+    public void readFromFile(String fileName) throws IOException {
+        clear();
+
+        InputStream in = new BufferedInputStream(new FileInputStream(fileName));
         try {
-            DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-            DocumentBuilder builder = dbf.newDocumentBuilder();
-            Document document = builder.parse(new File(fileName));
+            in.mark(4);
+            byte[] start = new byte[4];
+            int n = in.read(start);
+            in.reset();
+            if (n == 4 && KVSnapshot.isSnapshot(start)) {
+                readSnapshot(in);
+            } else {
+                importXML(in);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Write the store as a partitioned KVSnapshot, one file per partition
+     * plus a manifest, in a directory. The calling thread walks the store
+     * once, weakly consistently, and hands the pairs in batches to up to
+     * one writer thread per core, each owning some of the partitions; the
+     * encoding, compression and file writes run on those threads.
+     *
+     * The partitions are written under the next generation, beside any
+     * previous snapshot in the directory, and the manifest rename replaces
+     * that snapshot in one step; its partition files are deleted after.
+     * If the dump fails the previous snapshot is left as it was.
+     *
+     * @param dirName directory to write to, created if needed
+     * @param partitions number of partition files, at least 1
+     * @param compress true to deflate each chunk
+     * @throws IOException if a file cannot be written
+     */
+    public void dumpToDirectory(String dirName, int partitions, boolean compress)
+            throws IOException {
+        if (partitions < 1) {
+            throw new IllegalArgumentException("partitions must be at least 1");
+        }
+        File dir = new File(dirName);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        long generation = 1;
+        if (new File(dir, KVSnapshot.MANIFEST).exists()) {
+            try {
+                generation = KVSnapshot.readManifest(dir).generation + 1;
+            } catch (IOException e) {
+                // a damaged manifest names no snapshot worth keeping
+            }
+        }
+        long[] counts = new long[partitions];
+        int threads = Math.max(1,
+            Math.min(partitions, Runtime.getRuntime().availableProcessors()));
+        PartitionWriter[] writers = new PartitionWriter[threads];
+        Thread[] running = new Thread[threads];
+        List<List<String>> batches = new ArrayList<List<String>>(threads);
+        for (int i = 0; i < threads; i++) {
+            writers[i] = new PartitionWriter(dir, generation, i, threads, counts, compress);
+            running[i] = new Thread(writers[i]);
+            running[i].start();
+            batches.add(new ArrayList<String>(2 * DUMP_BATCH));
+        }
+        try {
+            for (Map.Entry<String, String> entry : entries()) {
+                int i = KVSnapshot.partition(entry.getKey(), partitions) % threads;
+                List<String> batch = batches.get(i);
+                batch.add(entry.getKey());
+                batch.add(entry.getValue());
+                if (batch.size() == 2 * DUMP_BATCH) {
+                    writers[i].hand(batch);
+                    batches.set(i, new ArrayList<String>(2 * DUMP_BATCH));
+                }
+            }
+            for (int i = 0; i < threads; i++) {
+                if (!batches.get(i).isEmpty()) {
+                    writers[i].hand(batches.get(i));
+                }
+            }
+        } finally {
+            for (int i = 0; i < threads; i++) {
+                writers[i].hand(Collections.<String>emptyList());
+            }
+            for (Thread thread : running) {
+                while (true) {
+                    try {
+                        thread.join();
+                        break;
+                    } catch (InterruptedException e) { }
+                }
+            }
+        }
+        boolean committed = false;
+        try {
+            for (PartitionWriter writer : writers) {
+                if (writer.error != null) {
+                    throw writer.error;
+                }
+            }
+            KVSnapshot.writeManifest(dir, generation, counts);
+            committed = true;
+        } finally {
+            deleteParts(dir, generation, committed);
+        }
+    }
+
+    /**
+     * Delete partition files left in a snapshot directory: after a commit,
+     * those of every other generation; after a failure, those of the
+     * generation that was being written. Files that cannot be deleted are
+     * left, as nothing reads a generation the manifest does not name.
+     */
+    private static void deleteParts(File dir, long generation, boolean committed) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        String current = "part-" + generation + "-";
+        for (File file : files) {
+            String name = file.getName();
+            if (KVSnapshot.isPartFile(name) && name.startsWith(current) != committed) {
+                file.delete();
+            }
+        }
+    }
 
-            NodeList kvPairs = document.getDocumentElement().getElementsByTagName("KVPair");
-            for (int i = 0; i < kvPairs.getLength(); i++) {
-                Element pair = (Element) kvPairs.item(i);
-                String key =
-                    ((Element) pair.getElementsByTagName("Key").item(0))
-                        .getTextContent();
-                String value =
-                    ((Element) pair.getElementsByTagName("Value").item(0))
-                        .getTextContent();
-                store.put(key, value);
+    /**
+     * Replace the contents of the store with a partitioned snapshot written
+     * by dumpToDirectory. The store is presized for the pairs the manifest
+     * lists, and the partitions are loaded concurrently by a fork-join
+     * pool.
+     *
+     * @param dirName directory holding the snapshot
+     * @throws IOException if the manifest or a partition is missing or
+     *         damaged; the store then holds part of the snapshot
+     */
+    public void restoreFromDirectory(String dirName) throws IOException {
+        File dir = new File(dirName);
+        KVSnapshot.Manifest manifest = KVSnapshot.readManifest(dir);
+        long[] counts = manifest.counts;
+        long pairs = 0;
+        for (long count : counts) {
+            pairs += count;
+        }
+        clear();
+        presize(pairs);
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1,
+            Math.min(counts.length, Runtime.getRuntime().availableProcessors())));
+        try {
+            pool.invoke(new RestoreTask(dir, manifest.generation, 0, counts.length, counts));
+        } catch (RuntimeException e) {
+            // the pool may rethrow a copy; the IOException is a cause
+            for (Throwable t = e; t != null; t = t.getCause()) {
+                if (t instanceof IOException) {
+                    throw (IOException) t;
+                }
             }
+            throw e;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /** Pairs handed to a PartitionWriter at a time. */
+    private static final int DUMP_BATCH = 256;
+
+    /**
+     * Writes the partitions of a dump numbered first, first + step, and so
+     * on, from batches of key, value, key, value... handed over by the
+     * thread walking the store. An empty batch ends the dump. After an
+     * error the writer keeps taking batches, so the walk never blocks,
+     * but writes nothing more.
+     */
+    private static class PartitionWriter implements Runnable {
+        private final BlockingQueue<List<String>> queue =
+            new ArrayBlockingQueue<List<String>>(4);
+        private final File dir;
+        private final long generation;
+        private final int first;
+        private final int step;
+        private final long[] counts;
+        private final boolean compress;
+        private final FileOutputStream[] files;
+        private final KVSnapshot.Writer[] snapshots;
+        volatile IOException error;
+
+        PartitionWriter(File dir, long generation, int first, int step, long[] counts,
+                boolean compress) {
+            this.dir = dir;
+            this.generation = generation;
+            this.first = first;
+            this.step = step;
+            this.counts = counts;
+            this.compress = compress;
+            int owned = (counts.length - first + step - 1) / step;
+            files = new FileOutputStream[owned];
+            snapshots = new KVSnapshot.Writer[owned];
+        }
+
+        /** Queue a batch, waiting while the writer is behind. */
+        void hand(List<String> batch) {
+            while (true) {
+                try {
+                    queue.put(batch);
+                    return;
+                } catch (InterruptedException e) { }
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (int i = 0; i < files.length; i++) {
+                    files[i] = new FileOutputStream(
+                        KVSnapshot.partFile(dir, generation, first + i * step));
+                    snapshots[i] = new KVSnapshot.Writer(
+                        new BufferedOutputStream(files[i]), compress);
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+            while (true) {
+                List<String> batch;
+                try {
+                    batch = queue.take();
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                if (batch.isEmpty()) {
+                    break;
+                }
+                if (error != null) {
+                    continue;
+                }
+                try {
+                    for (int i = 0; i < batch.size(); i += 2) {
+                        int partition = KVSnapshot.partition(batch.get(i), counts.length);
+                        snapshots[(partition - first) / step].write(batch.get(i), batch.get(i + 1));
+                    }
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+            try {
+                for (int i = 0; i < files.length && error == null; i++) {
+                    snapshots[i].finish();
+                    files[i].getFD().sync();
+                    counts[first + i * step] = snapshots[i].getCount();
+                }
+            } catch (IOException e) {
+                error = e;
+            } finally {
+                for (FileOutputStream file : files) {
+                    if (file != null) {
+                        try {
+                            file.close();
+                        } catch (IOException e) { }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Restores the partitions lo to hi - 1, splitting the range in half
+     * until each task has one.
+     */
+    private class RestoreTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final File dir;
+        private final long generation;
+        private final int lo;
+        private final int hi;
+        private final long[] counts;
+
+        RestoreTask(File dir, long generation, int lo, int hi, long[] counts) {
+            this.dir = dir;
+            this.generation = generation;
+            this.lo = lo;
+            this.hi = hi;
+            this.counts = counts;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo > 1) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new RestoreTask(dir, generation, lo, mid, counts),
+                    new RestoreTask(dir, generation, mid, hi, counts));
+                return;
+            }
+            try {
+                restorePartition();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private void restorePartition() throws IOException {
+            InputStream in = new BufferedInputStream(
+                new FileInputStream(KVSnapshot.partFile(dir, generation, lo)));
+            try {
+                KVSnapshot.Reader snapshot = new KVSnapshot.Reader(in);
+                while (snapshot.next()) {
+                    put(snapshot.key(), snapshot.value());
+                }
+                if (snapshot.getCount() != counts[lo]) {
+                    throw new IOException("Partition " + lo + " does not match the manifest");
+                }
+            } catch (KVException e) {
+                throw new IOException("Could not store pair", e);
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Write the store to a file in the XML format of toXML(), streaming
+     * it rather than building a document.
+     *
+     * @param fileName the file to write the XML to
+     * @throws IOException if the file cannot be written
+     */
+    public void exportXML(String fileName) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(fileName));
+        try {
+            XMLStreamWriter writer =
+                XMLOutputFactory.newInstance().createXMLStreamWriter(out, "UTF-8");
+            writer.writeStartDocument("UTF-8", "1.0");
+            writer.writeStartElement("KVStore");
+            for (Map.Entry<String, String> entry : entries()) {
+                writer.writeStartElement("KVPair");
+                writer.writeStartElement("Key");
+                writer.writeCharacters(entry.getKey());
+                writer.writeEndElement();
+                writer.writeStartElement("Value");
+                writer.writeCharacters(entry.getValue());
+                writer.writeEndElement();
+                writer.writeEndElement();
+            }
+            writer.writeEndElement();
+            writer.writeEndDocument();
+            writer.close();
+        } catch (XMLStreamException e) {
+            throw new IOException("Could not write XML", e);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Add the KVPairs of an XML document to the store as they are parsed.
+     */
+    private void importXML(InputStream in) throws IOException {
+        try {
+            XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(in);
+            String key = null;
+            String value = null;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    if ("Key".equals(reader.getLocalName())) {
+                        key = reader.getElementText();
+                    } else if ("Value".equals(reader.getLocalName())) {
+                        value = reader.getElementText();
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT
+                        && "KVPair".equals(reader.getLocalName())) {
+                    if (key != null && value != null) {
+                        put(key, value);
+                    }
+                    key = null;
+                    value = null;
+                }
+            }
+            reader.close();
+        } catch (XMLStreamException e) {
+            throw new IOException("Could not parse XML", e);
+        } catch (KVException e) {
+            throw new IOException("Could not store pair", e);
         }
-        catch (IOException e) { }
-        catch (FactoryConfigurationError e) { }
-        catch (ParserConfigurationException e) { }
-        catch (SAXException e) { }
     }
 }
@@ -0,0 +1,1313 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * A KVStore kept on disk as a log-structured merge tree, for data sets
+ * much larger than memory.
+ *
+ * Writes go to a write-ahead log and into a sorted in-memory memtable.
+ * When the memtable reaches memtableBytes it is frozen, a new one and a new
+ * log are started, and the frozen one is written out as an immutable
+ * sorted table (SSTable) of
+ *
+ *   blocks  records of keyLen, key, valLen (-1 for a tombstone), value,
+ *           cut into blocks of about BLOCK_BYTES
+ *   meta    record count, a sparse index holding the first key, offset,
+ *           length and CRC-32 of each block, and a bloom filter of keys
+ *   footer  meta offset, CRC-32 of meta, magic number
+ *
+ * Only the meta of each table is held in memory. A lookup checks the
+ * memtables and then the tables newest first; the bloom filter rules out
+ * most tables that do not hold the key, and for the rest a binary search
+ * of the index finds the one block to read. hasKey() therefore costs no
+ * disk reads for most absent keys.
+ *
+ * Compaction is size-tiered: once FANOUT neighbouring tables are of the
+ * same size tier they are merged into one in the background, newest value
+ * winning, and tombstones are dropped when the merge reaches the oldest
+ * table. A MANIFEST file, rewritten atomically after every flush and
+ * compaction, lists the live tables newest first; anything else in the
+ * directory is left over from a crash and removed on open.
+ *
+ * Writes are serialized by one lock. Reads take no lock: they work from an
+ * immutable view of the memtables and tables, and reference counts keep a
+ * compacted table open until the last reader of an older view is done.
+ */
+public class LsmKVStore extends KVStore {
+
+    /** Memtable size at which it is written out, if none is given. */
+    public static final long DEFAULT_MEMTABLE_BYTES = 4L * 1024 * 1024;
+
+    /** Number of same-tier tables merged by one compaction. */
+    public static final int FANOUT = 4;
+
+    /** Target size of a table block. */
+    public static final int BLOCK_BYTES = 4096;
+
+    private static final int MAGIC = 0x4C534D31;  // "LSM1"
+    private static final int FOOTER_BYTES = 16;
+    private static final int WAL_HEADER_BYTES = 12;
+    private static final int BLOOM_BITS_PER_KEY = 10;
+    private static final int BLOOM_HASHES = 7;
+    private static final String TABLE = ".sst";
+    private static final String WAL = ".wal";
+    private static final String TMP = ".tmp";
+    private static final String MANIFEST = "MANIFEST";
+    // Room for the largest legal key and value in UTF-8, plus framing
+    private static final int MAX_RECORD_BYTES =
+        4 * (KVServer.MAX_KEY_SIZE + KVServer.MAX_VAL_SIZE) + WAL_HEADER_BYTES;
+
+    // Marks a deleted key in memtables and lookups; compared by identity
+    private static final String TOMBSTONE = new String("");
+
+    private final File directory;
+    private final long memtableBytes;
+    private final boolean syncWrites;
+
+    private volatile View view;
+    private long nextId;
+
+    // WAL appends and changes of view hold writeLock; flushes and
+    // compactions each run one at a time
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private final ReentrantLock compactLock = new ReentrantLock();
+    private AtomicLong compactions = new AtomicLong();
+
+    /**
+     * Opens or creates a store in a directory, with DEFAULT_MEMTABLE_BYTES
+     * memtables and writes left to the operating system to flush.
+     *
+     * @param directory directory holding the tables and logs
+     * @throws KVException with ERROR_COULD_NOT_ACCESS_STORE if the files
+     *         cannot be read or created
+     */
+    public LsmKVStore(String directory) throws KVException {
+        this(directory, DEFAULT_MEMTABLE_BYTES, false);
+    }
+
+    /**
+     * Opens or creates a store in a directory.
+     *
+     * @param directory directory holding the tables and logs
+     * @param memtableBytes log bytes after which the memtable is written out
+     * @param syncWrites true to force every put and del to disk before it
+     *        returns
+     * @throws KVException with ERROR_COULD_NOT_ACCESS_STORE if the files
+     *         cannot be read or created
+     */
+    public LsmKVStore(String directory, long memtableBytes, boolean syncWrites)
+            throws KVException {
+        this.directory = new File(directory);
+        this.memtableBytes = memtableBytes;
+        this.syncWrites = syncWrites;
+        try {
+            open();
+        } catch (IOException e) {
+            throw storeError();
+        }
+    }
+
+    /**
+     * Insert key, value pair into the store.
+     *
+     * @param  key String key
+     * @param  value String value
+     * @throws KVException with ERROR_COULD_NOT_ACCESS_STORE if the write
+     *         cannot be logged or a full memtable cannot be written out
+     */
+    @Override
+    public void put(String key, String value) throws KVException {
+        write(key, value);
+    }
+
+    /**
+     * Get the value associated with key in the store.
+     *
+     * @param  key String key
+     * @return String value associated with key
+     * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in
+     *         store, or ERROR_COULD_NOT_ACCESS_STORE if it cannot be read
+     */
+    @Override
+    public String get(String key) throws KVException {
+        String value = lookup(key);
+        if (value == null || value == TOMBSTONE) {
+            throw new KVException(new KVMessage(RESP, ERROR_NO_SUCH_KEY));
+        }
+        return value;
+    }
+
+    /**
+     * Delete the value associated with key in the store.
+     *
+     * @param  key String key
+     * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in
+     *         store, or ERROR_COULD_NOT_ACCESS_STORE if the delete cannot
+     *         be logged
+     */
+    @Override
+    public void del(String key) throws KVException {
+        write(key, null);
+    }
+
+    /**
+     * Check for a key without reading its value. Tables whose bloom filter
+     * rules the key out are not read at all.
+     *
+     * @param  key String key
+     * @return true if the store holds the key
+     */
+    @Override
+    public boolean hasKey(String key) {
+        try {
+            String value = lookup(key);
+            return value != null && value != TOMBSTONE;
+        } catch (KVException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Merge neighbouring tables of the same size tier until no FANOUT of
+     * them are left. Runs on its own after flushes; called directly, it
+     * first waits for any compaction under way.
+     *
+     * @throws KVException with ERROR_COULD_NOT_ACCESS_STORE if a merged
+     *         table cannot be written; the store is left as it was
+     */
+    public void compact() throws KVException {
+        compactLock.lock();
+        try {
+            while (compactOnce()) {
+            }
+        } catch (IOException e) {
+            throw storeError();
+        } finally {
+            compactLock.unlock();
+        }
+    }
+
+    /**
+     * Write the memtable out as a table, even if it is not full.
+     *
+     * @throws KVException with ERROR_COULD_NOT_ACCESS_STORE if the table
+     *         cannot be written
+     */
+    public void flush() throws KVException {
+        writeLock.lock();
+        try {
+            freeze();
+        } catch (IOException e) {
+            throw storeError();
+        } finally {
+            writeLock.unlock();
+        }
+        flushFrozen();
+    }
+
+    /**
+     * @return the number of tables on disk
+     */
+    public int getNumTables() {
+        return view.tables.size();
+    }
+
+    /**
+     * @return the number of compactions completed since the store was opened
+     */
+    public long getNumCompactions() {
+        return compactions.get();
+    }
+
+    /**
+     * Close every file. The memtable is not written out; its log is
+     * replayed on the next open. The store may not be used afterwards.
+     *
+     * @throws KVException with ERROR_COULD_NOT_ACCESS_STORE if the log
+     *         cannot be flushed
+     */
+    public void close() throws KVException {
+        compactLock.lock();
+        flushLock.lock();
+        writeLock.lock();
+        try {
+            View v = view;
+            v.memtable.wal.force(false);
+            v.memtable.wal.close();
+            for (Memtable frozen : v.frozen) {
+                frozen.wal.close();
+            }
+            for (SSTable table : v.tables) {
+                table.release();
+            }
+        } catch (IOException e) {
+            throw storeError();
+        } finally {
+            writeLock.unlock();
+            flushLock.unlock();
+            compactLock.unlock();
+        }
+    }
+
+    /**
+     * The live pairs in the store in key order, merged from the memtables
+     * and tables as they are iterated. The tables stay open until the
+     * iteration reaches its end.
+     */
+    @Override
+    protected Iterable<Map.Entry<String, String>> entries() {
+        return new Iterable<Map.Entry<String, String>>() {
+            @Override
+            public Iterator<Map.Entry<String, String>> iterator() {
+                final View v = acquire();
+                final MergedRun merged;
+                try {
+                    merged = new MergedRun(runs(v));
+                } catch (IOException e) {
+                    release(v);
+                    throw new IllegalStateException("Could not read tables", e);
+                }
+                return new Iterator<Map.Entry<String, String>>() {
+                    private Map.Entry<String, String> next = advance();
+
+                    private Map.Entry<String, String> advance() {
+                        try {
+                            while (merged.advance()) {
+                                if (merged.value() != TOMBSTONE) {
+                                    return new AbstractMap.SimpleImmutableEntry<String, String>(
+                                        merged.key(), merged.value());
+                                }
+                            }
+                        } catch (IOException e) {
+                            release(v);
+                            throw new IllegalStateException("Could not read tables", e);
+                        }
+                        release(v);
+                        return null;
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return next != null;
+                    }
+
+                    @Override
+                    public Map.Entry<String, String> next() {
+                        if (next == null) {
+                            throw new NoSuchElementException();
+                        }
+                        Map.Entry<String, String> entry = next;
+                        next = advance();
+                        return entry;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Delete every table and log and start again empty.
+     */
+    @Override
+    protected void clear() {
+        compactLock.lock();
+        flushLock.lock();
+        writeLock.lock();
+        try {
+            View v = view;
+            Memtable memtable = newMemtable();
+            view = new View(memtable, Collections.<Memtable>emptyList(),
+                Collections.<SSTable>emptyList());
+            writeManifest(view.tables);
+            v.memtable.discard();
+            for (Memtable frozen : v.frozen) {
+                frozen.discard();
+            }
+            for (SSTable table : v.tables) {
+                table.retire();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not recreate store", e);
+        } finally {
+            writeLock.unlock();
+            flushLock.unlock();
+            compactLock.unlock();
+        }
+    }
+
+    /**
+     * Nothing to presize: restored pairs go through the memtable.
+     */
+    @Override
+    protected void presize(long pairs) {
+    }
+
+    /**
+     * Load the directory: open the tables in the manifest, drop anything
+     * else, and replay leftover logs into a new table.
+     */
+    private void open() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        List<Long> tableIds = new ArrayList<Long>();
+        File manifest = new File(directory, MANIFEST);
+        if (manifest.exists()) {
+            ByteBuffer ids = readFile(manifest);
+            while (ids.hasRemaining()) {
+                tableIds.add(ids.getLong());
+            }
+        }
+        Set<Long> live = new HashSet<Long>(tableIds);
+        List<Long> walIds = new ArrayList<Long>();
+        for (File f : directory.listFiles()) {
+            String name = f.getName();
+            if (name.endsWith(TMP) || (name.endsWith(TABLE) && !live.contains(idOf(name, TABLE)))) {
+                f.delete();
+            } else if (name.endsWith(WAL)) {
+                walIds.add(idOf(name, WAL));
+            }
+            if (name.endsWith(TABLE) || name.endsWith(WAL)) {
+                nextId = Math.max(nextId, idOf(name, name.endsWith(TABLE) ? TABLE : WAL) + 1);
+            }
+        }
+
+        List<SSTable> tables = new ArrayList<SSTable>();
+        for (long id : tableIds) {
+            tables.add(SSTable.open(file(id, TABLE), id));
+        }
+
+        // Leftover logs become frozen memtables, newest first, and are
+        // written out as tables at once
+        Collections.sort(walIds, Collections.reverseOrder());
+        List<Memtable> frozen = new ArrayList<Memtable>();
+        for (long id : walIds) {
+            frozen.add(Memtable.replay(file(id, WAL)));
+        }
+        view = new View(newMemtable(), frozen, tables);
+        try {
+            flushFrozen();
+        } catch (KVException e) {
+            throw new IOException("Could not write out replayed logs");
+        }
+    }
+
+    /**
+     * Log and apply a put, or a delete if value is null.
+     */
+    private void write(String key, String value) throws KVException {
+        boolean full;
+        writeLock.lock();
+        try {
+            Memtable memtable = view.memtable;
+            if (value == null) {
+                String current = lookup(key);
+                if (current == null || current == TOMBSTONE) {
+                    throw new KVException(new KVMessage(RESP, ERROR_NO_SUCH_KEY));
+                }
+            }
+            memtable.log(key, value, syncWrites);
+            memtable.map.put(key, (value == null) ? TOMBSTONE : value);
+            full = memtable.bytes >= memtableBytes;
+            if (full) {
+                freeze();
+            }
+        } catch (IOException e) {
+            throw storeError();
+        } finally {
+            writeLock.unlock();
+        }
+        if (full) {
+            flushFrozen();
+        }
+    }
+
+    /**
+     * Swap in an empty memtable and log, keeping the full one readable
+     * until it is flushed. Caller holds writeLock.
+     */
+    private void freeze() throws IOException {
+        View v = view;
+        if (v.memtable.map.isEmpty()) {
+            return;
+        }
+        v.memtable.wal.force(false);
+        List<Memtable> frozen = new ArrayList<Memtable>(v.frozen.size() + 1);
+        frozen.add(v.memtable);
+        frozen.addAll(v.frozen);
+        view = new View(newMemtable(), frozen, v.tables);
+    }
+
+    /**
+     * Write out every frozen memtable, oldest first, and start a
+     * compaction if one is due.
+     */
+    private void flushFrozen() throws KVException {
+        flushLock.lock();
+        try {
+            while (true) {
+                List<Memtable> frozen = view.frozen;
+                if (frozen.isEmpty()) {
+                    break;
+                }
+                Memtable oldest = frozen.get(frozen.size() - 1);
+                SSTable table = writeTable(memtableRun(oldest),
+                    oldest.map.size(), false);
+                writeLock.lock();
+                try {
+                    View v = view;
+                    List<Memtable> remaining = new ArrayList<Memtable>(v.frozen);
+                    remaining.remove(oldest);
+                    List<SSTable> tables = new ArrayList<SSTable>(v.tables.size() + 1);
+                    tables.add(table);
+                    tables.addAll(v.tables);
+                    writeManifest(tables);
+                    view = new View(v.memtable, remaining, tables);
+                } finally {
+                    writeLock.unlock();
+                }
+                oldest.discard();
+            }
+        } catch (IOException e) {
+            throw storeError();
+        } finally {
+            flushLock.unlock();
+        }
+        if (findWindow(view.tables) >= 0 && !compactLock.isLocked()) {
+            Thread compactor = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    if (!compactLock.tryLock()) {
+                        return;
+                    }
+                    try {
+                        while (compactOnce()) {
+                        }
+                    } catch (IOException e) {
+                        // Try again after the next flush
+                    } finally {
+                        compactLock.unlock();
+                    }
+                }
+            }, "lsm-compaction");
+            compactor.setDaemon(true);
+            compactor.start();
+        }
+    }
+
+    /**
+     * Merge the newest window of FANOUT same-tier tables. Caller holds
+     * compactLock.
+     *
+     * @return false if there was nothing to merge
+     */
+    private boolean compactOnce() throws IOException {
+        List<SSTable> tables = view.tables;
+        int start = findWindow(tables);
+        if (start < 0) {
+            return false;
+        }
+        // Flushes only add tables in front, so the window stays intact
+        // and, if it reaches the end now, stays the oldest
+        List<SSTable> inputs = new ArrayList<SSTable>(tables.subList(start, start + FANOUT));
+        boolean oldest = start + FANOUT == tables.size();
+        for (SSTable table : inputs) {
+            table.acquire();
+        }
+        SSTable output;
+        try {
+            List<Run> runs = new ArrayList<Run>();
+            long count = 0;
+            for (SSTable table : inputs) {
+                runs.add(table.scan());
+                count += table.count;
+            }
+            output = writeTable(new MergedRun(runs), count, oldest);
+        } finally {
+            for (SSTable table : inputs) {
+                table.release();
+            }
+        }
+
+        writeLock.lock();
+        try {
+            View v = view;
+            List<SSTable> replaced = new ArrayList<SSTable>(v.tables);
+            int at = replaced.indexOf(inputs.get(0));
+            replaced.subList(at, at + FANOUT).clear();
+            if (output != null) {
+                replaced.add(at, output);
+            }
+            writeManifest(replaced);
+            view = new View(v.memtable, v.frozen, replaced);
+        } finally {
+            writeLock.unlock();
+        }
+        for (SSTable table : inputs) {
+            table.retire();
+        }
+        compactions.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * @return index of the newest FANOUT neighbouring tables of one size
+     *         tier, or -1
+     */
+    private int findWindow(List<SSTable> tables) {
+        for (int i = 0; i + FANOUT <= tables.size(); i++) {
+            int tier = tier(tables.get(i));
+            int j = 1;
+            while (j < FANOUT && tier(tables.get(i + j)) == tier) {
+                j++;
+            }
+            if (j == FANOUT) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int tier(SSTable table) {
+        int tier = 0;
+        for (long size = table.size / Math.max(1, memtableBytes); size >= FANOUT; size /= FANOUT) {
+            tier++;
+        }
+        return tier;
+    }
+
+    /**
+     * Look a key up in the memtables and then the tables, newest first.
+     *
+     * @return its value, TOMBSTONE if it was deleted, or null if the store
+     *         has never held it
+     */
+    private String lookup(String key) throws KVException {
+        View v = acquire();
+        try {
+            String value = v.memtable.map.get(key);
+            for (int i = 0; value == null && i < v.frozen.size(); i++) {
+                value = v.frozen.get(i).map.get(key);
+            }
+            if (value != null) {
+                return value;
+            }
+            byte[] keyBytes = utf8(key);
+            for (SSTable table : v.tables) {
+                value = table.get(key, keyBytes);
+                if (value != null) {
+                    return value;
+                }
+            }
+            return null;
+        } catch (IOException e) {
+            throw storeError();
+        } finally {
+            release(v);
+        }
+    }
+
+    /** Take a reference on every table of the current view. */
+    private View acquire() {
+        while (true) {
+            View v = view;
+            int i = 0;
+            while (i < v.tables.size() && v.tables.get(i).acquire()) {
+                i++;
+            }
+            if (i == v.tables.size()) {
+                return v;
+            }
+            // a compaction retired one; its replacement is in a newer view
+            for (int j = 0; j < i; j++) {
+                v.tables.get(j).release();
+            }
+        }
+    }
+
+    private void release(View v) {
+        for (SSTable table : v.tables) {
+            table.release();
+        }
+    }
+
+    private List<Run> runs(View v) throws IOException {
+        List<Run> runs = new ArrayList<Run>();
+        runs.add(memtableRun(v.memtable));
+        for (Memtable frozen : v.frozen) {
+            runs.add(memtableRun(frozen));
+        }
+        for (SSTable table : v.tables) {
+            runs.add(table.scan());
+        }
+        return runs;
+    }
+
+    /**
+     * Write a sorted run to a new table.
+     *
+     * @param count an upper bound on its records, to size the bloom filter
+     * @param dropTombstones true if no older table can hold the keys
+     * @return the table, or null if nothing was left to write
+     */
+    private SSTable writeTable(Run run, long count, boolean dropTombstones)
+            throws IOException {
+        long id;
+        writeLock.lock();
+        try {
+            id = nextId++;
+        } finally {
+            writeLock.unlock();
+        }
+        File target = file(id, TABLE);
+        File tmp = new File(target.getPath() + TMP);
+        FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.WRITE);
+        long written = 0;
+        try {
+            BloomFilter bloom = new BloomFilter(count);
+            ByteArrayOutputStream index = new ByteArrayOutputStream();
+            DataOutputStream indexOut = new DataOutputStream(index);
+            ByteArrayOutputStream block = new ByteArrayOutputStream(2 * BLOCK_BYTES);
+            DataOutputStream blockOut = new DataOutputStream(block);
+            byte[] firstKey = null;
+            int blocks = 0;
+            long records = 0;
+            long offset = 0;
+            while (run.advance()) {
+                if (dropTombstones && run.value() == TOMBSTONE) {
+                    continue;
+                }
+                byte[] key = utf8(run.key());
+                if (firstKey == null) {
+                    firstKey = key;
+                }
+                blockOut.writeInt(key.length);
+                blockOut.write(key);
+                if (run.value() == TOMBSTONE) {
+                    blockOut.writeInt(-1);
+                } else {
+                    byte[] value = utf8(run.value());
+                    blockOut.writeInt(value.length);
+                    blockOut.write(value);
+                }
+                bloom.add(key);
+                records++;
+                if (block.size() >= BLOCK_BYTES) {
+                    offset += writeBlock(out, offset, block, firstKey, indexOut);
+                    blocks++;
+                    firstKey = null;
+                }
+            }
+            if (block.size() > 0) {
+                offset += writeBlock(out, offset, block, firstKey, indexOut);
+                blocks++;
+            }
+            if (records == 0) {
+                out.close();
+                tmp.delete();
+                return null;
+            }
+
+            ByteArrayOutputStream meta = new ByteArrayOutputStream();
+            DataOutputStream metaOut = new DataOutputStream(meta);
+            metaOut.writeLong(records);
+            metaOut.writeInt(blocks);
+            index.writeTo(metaOut);
+            bloom.writeTo(metaOut);
+            CRC32 crc = new CRC32();
+            crc.update(meta.toByteArray());
+            metaOut.writeLong(offset);
+            metaOut.writeInt((int) crc.getValue());
+            metaOut.writeInt(MAGIC);
+            writeFully(out, ByteBuffer.wrap(meta.toByteArray()), offset);
+            written = offset + meta.size();
+            out.force(true);
+        } finally {
+            out.close();
+            if (written == 0) {
+                tmp.delete();
+            }
+        }
+        if (!tmp.renameTo(target)) {
+            throw new IOException("Could not rename " + tmp);
+        }
+        return SSTable.open(target, id);
+    }
+
+    /** @return the bytes written */
+    private static int writeBlock(FileChannel out, long offset, ByteArrayOutputStream block,
+            byte[] firstKey, DataOutputStream indexOut) throws IOException {
+        byte[] bytes = block.toByteArray();
+        block.reset();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        writeFully(out, ByteBuffer.wrap(bytes), offset);
+        indexOut.writeInt(firstKey.length);
+        indexOut.write(firstKey);
+        indexOut.writeLong(offset);
+        indexOut.writeInt(bytes.length);
+        indexOut.writeInt((int) crc.getValue());
+        return bytes.length;
+    }
+
+    /** Replace the manifest with the ids of tables, atomically. */
+    private void writeManifest(List<SSTable> tables) throws IOException {
+        File manifest = new File(directory, MANIFEST);
+        File tmp = new File(manifest.getPath() + TMP);
+        ByteBuffer ids = ByteBuffer.allocate(8 * tables.size());
+        for (SSTable table : tables) {
+            ids.putLong(table.id);
+        }
+        ids.flip();
+        FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        try {
+            writeFully(out, ids, 0);
+            out.force(true);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(manifest)) {
+            throw new IOException("Could not rename " + tmp);
+        }
+    }
+
+    private Memtable newMemtable() throws IOException {
+        return Memtable.create(file(nextId++, WAL));
+    }
+
+    private static Run memtableRun(Memtable memtable) {
+        final Iterator<Map.Entry<String, String>> entries = memtable.map.entrySet().iterator();
+        return new Run() {
+            private Map.Entry<String, String> entry;
+
+            @Override
+            public boolean advance() {
+                entry = entries.hasNext() ? entries.next() : null;
+                return entry != null;
+            }
+
+            @Override
+            public String key() {
+                return entry.getKey();
+            }
+
+            @Override
+            public String value() {
+                return entry.getValue();
+            }
+        };
+    }
+
+    private static ByteBuffer readFile(File file) throws IOException {
+        FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate((int) in.size());
+            readFully(in, buffer, 0);
+            buffer.flip();
+            return buffer;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        long start = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, start + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        long start = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, start + buffer.position());
+        }
+    }
+
+    private File file(long id, String suffix) {
+        return new File(directory, String.format("%016d%s", id, suffix));
+    }
+
+    private static long idOf(String name, String suffix) {
+        return Long.parseLong(name.substring(0, name.length() - suffix.length()));
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static KVException storeError() {
+        return new KVException(new KVMessage(RESP, ERROR_COULD_NOT_ACCESS_STORE));
+    }
+
+    /** The memtables and tables a read sees, never changed once built. */
+    private static class View {
+        final Memtable memtable;
+        // Newest first
+        final List<Memtable> frozen;
+        final List<SSTable> tables;
+
+        View(Memtable memtable, List<Memtable> frozen, List<SSTable> tables) {
+            this.memtable = memtable;
+            this.frozen = frozen;
+            this.tables = tables;
+        }
+    }
+
+    /** A sorted sequence of keys, each with a value or TOMBSTONE. */
+    private interface Run {
+        boolean advance() throws IOException;
+        String key();
+        String value();
+    }
+
+    /**
+     * Merges runs given newest first, so that for a key found in several
+     * the newest value wins.
+     */
+    private static class MergedRun implements Run {
+        private final PriorityQueue<Ranked> heap;
+        private String key;
+        private String value;
+
+        MergedRun(List<Run> runs) throws IOException {
+            heap = new PriorityQueue<Ranked>(Math.max(1, runs.size()), new Comparator<Ranked>() {
+                @Override
+                public int compare(Ranked a, Ranked b) {
+                    int c = a.run.key().compareTo(b.run.key());
+                    return (c != 0) ? c : a.rank - b.rank;
+                }
+            });
+            for (int i = 0; i < runs.size(); i++) {
+                if (runs.get(i).advance()) {
+                    heap.add(new Ranked(runs.get(i), i));
+                }
+            }
+        }
+
+        @Override
+        public boolean advance() throws IOException {
+            Ranked top = heap.poll();
+            if (top == null) {
+                return false;
+            }
+            key = top.run.key();
+            value = top.run.value();
+            if (top.run.advance()) {
+                heap.add(top);
+            }
+            // skip older values of the same key
+            while (!heap.isEmpty() && heap.peek().run.key().equals(key)) {
+                Ranked older = heap.poll();
+                if (older.run.advance()) {
+                    heap.add(older);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String key() {
+            return key;
+        }
+
+        @Override
+        public String value() {
+            return value;
+        }
+
+        private static class Ranked {
+            final Run run;
+            final int rank;
+
+            Ranked(Run run, int rank) {
+                this.run = run;
+                this.rank = rank;
+            }
+        }
+    }
+
+    /** The active or a frozen memtable, with its write-ahead log. */
+    private static class Memtable {
+        final ConcurrentSkipListMap<String, String> map =
+            new ConcurrentSkipListMap<String, String>();
+        final File file;
+        final FileChannel wal;
+        // Log bytes, guarded by writeLock
+        long bytes;
+
+        private Memtable(File file, FileChannel wal) {
+            this.file = file;
+            this.wal = wal;
+        }
+
+        static Memtable create(File file) throws IOException {
+            return new Memtable(file, FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE));
+        }
+
+        /** Read a leftover log up to its first torn or corrupt record. */
+        static Memtable replay(File file) throws IOException {
+            Memtable memtable = new Memtable(file, FileChannel.open(file.toPath(),
+                StandardOpenOption.READ, StandardOpenOption.WRITE));
+            ByteBuffer header = ByteBuffer.allocate(WAL_HEADER_BYTES);
+            long position = 0;
+            try {
+                while (true) {
+                    header.clear();
+                    readFully(memtable.wal, header, position);
+                    int keyLength = header.getInt(4);
+                    int valueLength = header.getInt(8);
+                    if (keyLength < 0 || valueLength < -1
+                            || (long) keyLength + Math.max(0, valueLength) > MAX_RECORD_BYTES) {
+                        break;
+                    }
+                    ByteBuffer record = ByteBuffer.allocate(
+                        WAL_HEADER_BYTES + keyLength + Math.max(0, valueLength));
+                    header.flip();
+                    record.put(header);
+                    readFully(memtable.wal, record, position + WAL_HEADER_BYTES);
+                    CRC32 crc = new CRC32();
+                    crc.update(record.array(), 4, record.capacity() - 4);
+                    if ((int) crc.getValue() != record.getInt(0)) {
+                        break;
+                    }
+                    String key = new String(record.array(), WAL_HEADER_BYTES, keyLength,
+                        StandardCharsets.UTF_8);
+                    memtable.map.put(key, (valueLength < 0) ? TOMBSTONE
+                        : new String(record.array(), WAL_HEADER_BYTES + keyLength, valueLength,
+                            StandardCharsets.UTF_8));
+                    position += record.capacity();
+                }
+            } catch (EOFException e) {
+                // torn last record
+            }
+            memtable.bytes = position;
+            return memtable;
+        }
+
+        /** Append crc, keyLen, valLen (-1 for a delete), key, value. */
+        void log(String key, String value, boolean sync) throws IOException {
+            byte[] keyBytes = utf8(key);
+            byte[] valueBytes = (value == null) ? null : utf8(value);
+            int length = WAL_HEADER_BYTES + keyBytes.length
+                + ((valueBytes == null) ? 0 : valueBytes.length);
+            ByteBuffer record = ByteBuffer.allocate(length);
+            record.putInt(0).putInt(keyBytes.length)
+                .putInt((valueBytes == null) ? -1 : valueBytes.length).put(keyBytes);
+            if (valueBytes != null) {
+                record.put(valueBytes);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(record.array(), 4, length - 4);
+            record.putInt(0, (int) crc.getValue());
+            record.flip();
+            writeFully(wal, record, bytes);
+            if (sync) {
+                wal.force(false);
+            }
+            bytes += length;
+        }
+
+        /** Close and delete the log once its contents are in a table. */
+        void discard() {
+            try {
+                wal.close();
+            } catch (IOException e) {
+                // deleting anyway
+            }
+            file.delete();
+        }
+    }
+
+    /** An open table: its meta in memory, its blocks on disk. */
+    private static class SSTable {
+        final long id;
+        final File file;
+        final FileChannel channel;
+        final long size;
+        final long count;
+        final String[] firstKeys;
+        final long[] offsets;
+        final int[] lengths;
+        final int[] crcs;
+        final BloomFilter bloom;
+        // One for the view that lists the table, one per reader
+        private final AtomicInteger refs = new AtomicInteger(1);
+        private volatile boolean obsolete;
+
+        private SSTable(long id, File file, FileChannel channel, ByteBuffer meta, long size) {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+            this.size = size;
+            count = meta.getLong();
+            int blocks = meta.getInt();
+            firstKeys = new String[blocks];
+            offsets = new long[blocks];
+            lengths = new int[blocks];
+            crcs = new int[blocks];
+            for (int i = 0; i < blocks; i++) {
+                byte[] key = new byte[meta.getInt()];
+                meta.get(key);
+                firstKeys[i] = new String(key, StandardCharsets.UTF_8);
+                offsets[i] = meta.getLong();
+                lengths[i] = meta.getInt();
+                crcs[i] = meta.getInt();
+            }
+            bloom = new BloomFilter(meta);
+        }
+
+        static SSTable open(File file, long id) throws IOException {
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                long size = channel.size();
+                ByteBuffer footer = ByteBuffer.allocate(FOOTER_BYTES);
+                readFully(channel, footer, size - FOOTER_BYTES);
+                long metaOffset = footer.getLong(0);
+                if (footer.getInt(12) != MAGIC || metaOffset < 0
+                        || metaOffset > size - FOOTER_BYTES) {
+                    throw new IOException("Not a table: " + file);
+                }
+                ByteBuffer meta = ByteBuffer.allocate((int) (size - FOOTER_BYTES - metaOffset));
+                readFully(channel, meta, metaOffset);
+                CRC32 crc = new CRC32();
+                crc.update(meta.array());
+                if ((int) crc.getValue() != footer.getInt(8)) {
+                    throw new IOException("Corrupt table meta: " + file);
+                }
+                meta.flip();
+                return new SSTable(id, file, channel, meta, size);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        boolean acquire() {
+            while (true) {
+                int r = refs.get();
+                if (r == 0) {
+                    return false;
+                }
+                if (refs.compareAndSet(r, r + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void release() {
+            if (refs.decrementAndGet() == 0) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // nothing more to read from it
+                }
+                if (obsolete) {
+                    file.delete();
+                }
+            }
+        }
+
+        /** Drop the view's reference and delete the file once unread. */
+        void retire() {
+            obsolete = true;
+            release();
+        }
+
+        /**
+         * @return the key's value, TOMBSTONE if the table records its
+         *         deletion, or null if the table does not mention it
+         */
+        String get(String key, byte[] keyBytes) throws IOException {
+            if (!bloom.mightContain(keyBytes)) {
+                return null;
+            }
+            int block = Arrays.binarySearch(firstKeys, key);
+            if (block < 0) {
+                block = -block - 2;
+                if (block < 0) {
+                    return null;
+                }
+            }
+            ByteBuffer records = readBlock(block);
+            while (records.hasRemaining()) {
+                byte[] k = new byte[records.getInt()];
+                records.get(k);
+                int valueLength = records.getInt();
+                if (Arrays.equals(k, keyBytes)) {
+                    if (valueLength < 0) {
+                        return TOMBSTONE;
+                    }
+                    return new String(records.array(), records.position(), valueLength,
+                        StandardCharsets.UTF_8);
+                }
+                records.position(records.position() + Math.max(0, valueLength));
+            }
+            return null;
+        }
+
+        ByteBuffer readBlock(int block) throws IOException {
+            ByteBuffer records = ByteBuffer.allocate(lengths[block]);
+            readFully(channel, records, offsets[block]);
+            CRC32 crc = new CRC32();
+            crc.update(records.array());
+            if ((int) crc.getValue() != crcs[block]) {
+                throw new IOException("Corrupt block " + block + " in " + file);
+            }
+            records.flip();
+            return records;
+        }
+
+        /** Read the whole table in order, a block at a time. */
+        Run scan() {
+            return new Run() {
+                private int block = -1;
+                private ByteBuffer records = ByteBuffer.allocate(0);
+                private String key;
+                private String value;
+
+                @Override
+                public boolean advance() throws IOException {
+                    while (!records.hasRemaining()) {
+                        if (++block == firstKeys.length) {
+                            return false;
+                        }
+                        records = readBlock(block);
+                    }
+                    byte[] k = new byte[records.getInt()];
+                    records.get(k);
+                    key = new String(k, StandardCharsets.UTF_8);
+                    int valueLength = records.getInt();
+                    if (valueLength < 0) {
+                        value = TOMBSTONE;
+                    } else {
+                        value = new String(records.array(), records.position(), valueLength,
+                            StandardCharsets.UTF_8);
+                        records.position(records.position() + valueLength);
+                    }
+                    return true;
+                }
+
+                @Override
+                public String key() {
+                    return key;
+                }
+
+                @Override
+                public String value() {
+                    return value;
+                }
+            };
+        }
+    }
+
+    /**
+     * A bloom filter of UTF-8 keys, with BLOOM_HASHES probes derived from
+     * two hashes by double hashing.
+     */
+    private static class BloomFilter {
+        private final long[] bits;
+        private final int hashes;
+
+        BloomFilter(long keys) {
+            long numBits = Math.max(64, Math.min(keys * BLOOM_BITS_PER_KEY, 1L << 31));
+            bits = new long[(int) ((numBits + 63) / 64)];
+            hashes = BLOOM_HASHES;
+        }
+
+        BloomFilter(ByteBuffer in) {
+            hashes = in.getInt();
+            bits = new long[in.getInt()];
+            for (int i = 0; i < bits.length; i++) {
+                bits[i] = in.getLong();
+            }
+        }
+
+        void add(byte[] key) {
+            long h = hash(key);
+            int h1 = (int) h;
+            int h2 = (int) (h >>> 32);
+            long numBits = 64L * bits.length;
+            for (int i = 0; i < hashes; i++) {
+                long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+                bits[(int) (bit >>> 6)] |= 1L << bit;
+            }
+        }
+
+        boolean mightContain(byte[] key) {
+            long h = hash(key);
+            int h1 = (int) h;
+            int h2 = (int) (h >>> 32);
+            long numBits = 64L * bits.length;
+            for (int i = 0; i < hashes; i++) {
+                long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+                if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeInt(hashes);
+            out.writeInt(bits.length);
+            for (long word : bits) {
+                out.writeLong(word);
+            }
+        }
+
+        /** 64-bit FNV-1a, mixed so both halves are usable. */
+        private static long hash(byte[] key) {
+            long h = 0xcbf29ce484222325L;
+            for (byte b : key) {
+                h ^= b & 0xff;
+                h *= 0x100000001b3L;
+            }
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            return h;
+        }
+    }
+}
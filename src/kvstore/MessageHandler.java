@@ -0,0 +1,44 @@
+package kvstore;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Interface for handlers that service one complete request at a time and
+ * leave all socket I/O to the server, as NioSocketServer does.
+ */
+public interface MessageHandler {
+
+    /**
+     * Carry out a request and build the response to send back. Called on a
+     * worker thread, never on the thread doing network I/O.
+     *
+     * @param request complete, validated request
+     * @return response to send to the client
+     * @throws KVException if the request fails; the server replies with a
+     *         RESP carrying the exception's message
+     */
+    public KVMessage service(KVMessage request) throws KVException;
+
+    /**
+     * Carry out a GET request and return just the value, as UTF-8 bytes, so
+     * a server using a binary codec can frame it without turning it into a
+     * String and back. Called on a worker thread.
+     *
+     * @param request complete, validated GET request
+     * @return the value's bytes, which the caller may read but not change
+     * @throws KVException if the request fails, as for service()
+     */
+    public ByteBuffer serviceGet(KVMessage request) throws KVException;
+
+    /**
+     * Group requests that contend for the same resource. A server running
+     * a WorkStealingThreadPool sends requests with equal affinity to the
+     * same worker so they run one after another instead of fighting over
+     * a lock.
+     *
+     * @param request complete, validated request
+     * @return a non-negative group id, or -1 if any worker will do
+     */
+    public int affinity(KVMessage request);
+
+}
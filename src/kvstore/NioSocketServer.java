@@ -0,0 +1,508 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Event-driven variant of SocketServer. A single thread multiplexes every
+ * connection with a Selector and reads without blocking until a complete
+ * request has arrived. Only then is the request handed to a worker in the
+ * ThreadPool, so idle or slow clients never hold on to a worker thread.
+ *
+ * Both wire protocols ServerClientHandler understands are supported: a
+ * legacy one-shot XML request terminated by the client shutting down its
+ * output, and KVConnection's keep-alive framed protocol with codec
+ * negotiation. Requests on one keep-alive connection are serviced one at a
+ * time so responses go out in request order.
+ *
+ * Complete frames are split off and dispatched as they are read, so a
+ * client may pipeline any number of them; only a single frame is limited
+ * to KVConnection.MAX_FRAME_SIZE. A connection stops being read while it
+ * has MAX_QUEUED_REQUESTS requests waiting for a worker or
+ * MAX_QUEUED_OUTPUT bytes of responses the client has not taken yet, and
+ * is read again once it drops below both.
+ *
+ * The handler given to addHandler() must also be a MessageHandler.
+ */
+public class NioSocketServer extends SocketServer {
+
+    private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+
+    /** Requests read ahead on one connection before reading pauses. */
+    public static final int MAX_QUEUED_REQUESTS = 1024;
+
+    /** Unsent response bytes on one connection before reading pauses. */
+    public static final int MAX_QUEUED_OUTPUT = KVConnection.MAX_FRAME_SIZE;
+
+    private ThreadPool threadPool;
+    private MessageHandler messageHandler;
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private volatile boolean stopped = false;
+
+    /** Connections with a finished response, waiting for the selector. */
+    private ConcurrentLinkedQueue<Connection> completed;
+
+    /**
+     * Construct a NioSocketServer listening on a free port.
+     *
+     * @param hostname hostname to report for this server
+     * @param workers number of threads servicing requests
+     */
+    public NioSocketServer(String hostname, int workers) {
+        this(hostname, 0, workers);
+    }
+
+    /**
+     * Construct a NioSocketServer listening on the port given.
+     *
+     * @param hostname hostname to report for this server
+     * @param port port on which to listen for connections
+     * @param workers number of threads servicing requests
+     */
+    public NioSocketServer(String hostname, int port, int workers) {
+        this(hostname, port, new ThreadPool(workers));
+    }
+
+    /**
+     * Construct a NioSocketServer servicing requests on the given pool. The
+     * selector thread never waits for room in the pool's queue, whatever
+     * its RejectionPolicy: a connection whose request finds the queue full
+     * is closed instead.
+     *
+     * @param hostname hostname to report for this server
+     * @param port port on which to listen for connections
+     * @param threadPool pool servicing requests
+     */
+    public NioSocketServer(String hostname, int port, ThreadPool threadPool) {
+        super(hostname, port);
+        this.threadPool = threadPool;
+        this.completed = new ConcurrentLinkedQueue<Connection>();
+    }
+
+    /**
+     * Add the handler for this server.
+     *
+     * @param handler handler that also implements MessageHandler
+     * @throws IllegalArgumentException if handler is not a MessageHandler
+     */
+    @Override
+    public void addHandler(NetworkHandler handler) {
+        if (!(handler instanceof MessageHandler)) {
+            throw new IllegalArgumentException(
+                "NioSocketServer needs a MessageHandler");
+        }
+        super.addHandler(handler);
+        this.messageHandler = (MessageHandler) handler;
+    }
+
+    /**
+     * Open a non-blocking ServerSocketChannel and bind it to an endpoint.
+     * If the given port is 0, an automatically allocated port is used.
+     *
+     * @throws IOException if unable create and bind the channel
+     */
+    @Override
+    public void connect() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(new InetSocketAddress(port));
+        port = serverChannel.socket().getLocalPort();
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Run the event loop until stop() is called. Every open connection is
+     * closed on the way out.
+     *
+     * @throws IOException if the selector fails
+     */
+    @Override
+    public void start() throws IOException {
+        try {
+            while (!stopped) {
+                selector.select();
+                finishCompleted();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            ((Connection) key.attachment()).read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            ((Connection) key.attachment()).write();
+                        }
+                    } catch (IOException e) {
+                        if (key.attachment() != null) {
+                            ((Connection) key.attachment()).close();
+                        }
+                    }
+                }
+            }
+        } catch (ClosedSelectorException e) {
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() != null) {
+                    ((Connection) key.attachment()).close();
+                }
+            }
+            serverChannel.close();
+            selector.close();
+        }
+    }
+
+    /**
+     * Stop the server. The event loop is woken up and exits right away
+     * instead of waiting for a timeout.
+     */
+    @Override
+    public void stop() {
+        stopped = true;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection conn = new Connection(channel);
+            conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+        }
+    }
+
+    /**
+     * Hand finished responses back to their connections. Runs on the
+     * selector thread, which owns all interest-set changes.
+     */
+    private void finishCompleted() {
+        Connection conn;
+        while ((conn = completed.poll()) != null) {
+            conn.busy = false;
+            if (!conn.key.isValid()) {
+                continue;
+            }
+            try {
+                conn.write();
+            } catch (IOException e) {
+                conn.close();
+                continue;
+            }
+            conn.dispatch();
+            conn.updateReadInterest();
+        }
+    }
+
+    /**
+     * Per-connection state, only touched by the selector thread except for
+     * the outgoing queue, which workers append to.
+     */
+    private class Connection {
+        private SocketChannel channel;
+        private SelectionKey key;
+        private ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        private ArrayDeque<byte[]> requests = new ArrayDeque<byte[]>();
+        private ArrayDeque<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+        private long outBytes = 0;
+        private boolean keepAlive = false;
+        private boolean legacy = false;
+        private KVMessageCodec codec;
+        private boolean busy = false;
+        private boolean eof = false;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Read whatever is available, splitting off and dispatching
+         * complete requests after every read, until the socket is drained
+         * or the connection backs up.
+         */
+        void read() throws IOException {
+            while (true) {
+                int n = channel.read(in);
+                if (n < 0) {
+                    eof = true;
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                }
+                in.flip();
+                try {
+                    parse();
+                } finally {
+                    in.compact();
+                }
+                dispatch();
+                if (!in.hasRemaining()) {
+                    // parse() makes room for any frame it has a length
+                    // for, so only a legacy request fills the buffer
+                    if (in.capacity() > KVConnection.MAX_FRAME_SIZE) {
+                        throw new IOException("Request too large");
+                    }
+                    grow(in.capacity() * 2);
+                }
+                if (n <= 0 || backedUp()) {
+                    break;
+                }
+            }
+            write();
+        }
+
+        /**
+         * @return true if too many requests or too much output are waiting
+         *         for this connection to read any more
+         */
+        private synchronized boolean backedUp() {
+            return requests.size() >= MAX_QUEUED_REQUESTS
+                || outBytes >= MAX_QUEUED_OUTPUT;
+        }
+
+        /** Read only while the connection is open and not backed up. */
+        private void updateReadInterest() {
+            if (eof || !key.isValid()) {
+                return;
+            }
+            if (backedUp()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            } else {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        }
+
+        private void parse() throws IOException {
+            if (!keepAlive && !legacy) {
+                if (!in.hasRemaining()) {
+                    return;
+                }
+                if (in.get(in.position()) != KVConnection.KEEP_ALIVE_MAGIC) {
+                    legacy = true;
+                } else if (in.remaining() >= 2) {
+                    in.get();
+                    codec = KVConnection.codecFor(in.get());
+                    keepAlive = true;
+                    queue(ByteBuffer.wrap(new byte[] {(byte) codec.getId()}));
+                } else {
+                    return;
+                }
+            }
+            if (legacy) {
+                // the whole stream up to EOF is one XML request
+                if (eof) {
+                    byte[] request = new byte[in.remaining()];
+                    in.get(request);
+                    requests.add(request);
+                }
+                return;
+            }
+            while (in.remaining() >= 4) {
+                int length = in.getInt(in.position());
+                if (length < 0 || length > KVConnection.MAX_FRAME_SIZE) {
+                    throw new IOException("Bad frame length " + length);
+                }
+                if (in.remaining() < 4 + length) {
+                    if (in.capacity() < 4 + length) {
+                        in.compact();
+                        grow(4 + length);
+                        in.flip();
+                    }
+                    return;
+                }
+                in.getInt();
+                byte[] request = new byte[length];
+                in.get(request);
+                requests.add(request);
+            }
+        }
+
+        private void grow(int capacity) {
+            ByteBuffer bigger = ByteBuffer.allocate(capacity);
+            in.flip();
+            bigger.put(in);
+            in = bigger;
+        }
+
+        /**
+         * Send the next queued request to a worker unless one is already
+         * being serviced for this connection. The selector thread never
+         * waits for room in the pool: if the queue is full the connection
+         * is shed. Requests are decoded on the worker, never here.
+         */
+        void dispatch() {
+            if (busy || requests.isEmpty()) {
+                return;
+            }
+            busy = true;
+            final byte[] request = requests.poll();
+            boolean queued = threadPool.offerJob(new Runnable() {
+                @Override
+                public void run() {
+                    route(request);
+                }
+            });
+            if (!queued) {
+                shedConnections++;
+                close();
+            }
+        }
+
+        /**
+         * Decode a request on the worker that picked it up. With a
+         * WorkStealingThreadPool it is then passed to the worker owning its
+         * handler's affinity, or serviced right here if that worker's
+         * deque is full or the request has no affinity.
+         */
+        private void route(final byte[] request) {
+            KVMessage msg = null;
+            int affinity = -1;
+            try {
+                msg = decode(request);
+                if (threadPool instanceof WorkStealingThreadPool) {
+                    affinity = messageHandler.affinity(msg);
+                }
+            } catch (KVException e) {
+            } catch (RuntimeException e) {
+            }
+            final KVMessage decoded = msg;
+            if (affinity >= 0 && ((WorkStealingThreadPool) threadPool).offerJob(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            service(request, decoded);
+                        }
+                    }, affinity)) {
+                return;
+            }
+            service(request, decoded);
+        }
+
+        private KVMessage decode(byte[] request) throws KVException {
+            return legacy
+                ? new KVMessage(new ByteArrayInputStream(request))
+                : codec.decode(request);
+        }
+
+        /**
+         * Decode (unless already done), service and encode one request.
+         * Runs on a worker. A GET on a binary connection is answered from
+         * the value's bytes as the handler returns them, which the frame
+         * wraps without copying.
+         */
+        private void service(byte[] request, KVMessage msg) {
+            KVMessage response = null;
+            ByteBuffer[] payload = null;
+            try {
+                if (msg == null) {
+                    msg = decode(request);
+                }
+                if (codec instanceof BinaryCodec && GET_REQ.equals(msg.getMsgType())) {
+                    payload = ((BinaryCodec) codec).encodeValue(msg.getKey(),
+                        messageHandler.serviceGet(msg));
+                } else {
+                    response = messageHandler.service(msg);
+                }
+            } catch (KVException e) {
+                response = new KVMessage(RESP, e.getKVMessage().getMessage());
+            } catch (RuntimeException e) {
+                response = new KVMessage(RESP, ERROR_INVALID_FORMAT);
+            }
+            try {
+                if (payload != null) {
+                    queueFrame(payload);
+                } else if (legacy) {
+                    queue(ByteBuffer.wrap(response.toBytes()));
+                } else {
+                    queueFrame(new ByteBuffer[] {ByteBuffer.wrap(codec.encode(response))});
+                }
+            } catch (KVException e) {
+            }
+            completed.add(this);
+            selector.wakeup();
+        }
+
+        private synchronized void queue(ByteBuffer buffer) {
+            outBytes += buffer.remaining();
+            out.add(buffer);
+        }
+
+        /** Queue a length prefix and then the payload buffers. */
+        private synchronized void queueFrame(ByteBuffer[] payload) {
+            int length = 0;
+            for (ByteBuffer buffer : payload) {
+                length += buffer.remaining();
+            }
+            ByteBuffer prefix = ByteBuffer.allocate(4);
+            prefix.putInt(length).flip();
+            outBytes += 4 + length;
+            out.add(prefix);
+            for (ByteBuffer buffer : payload) {
+                out.add(buffer);
+            }
+        }
+
+        /**
+         * Write as much queued output as the socket accepts, gathering the
+         * queued buffers into one write, and register for OP_WRITE only
+         * while something is left over. Reading resumes if this drained
+         * the backlog.
+         */
+        synchronized void write() throws IOException {
+            if (!key.isValid()) {
+                return;
+            }
+            if (!out.isEmpty()) {
+                outBytes -= channel.write(out.toArray(new ByteBuffer[out.size()]));
+                while (!out.isEmpty() && !out.peek().hasRemaining()) {
+                    out.poll();
+                }
+            }
+            if (out.isEmpty()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                closeIfDone();
+            } else {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+            updateReadInterest();
+        }
+
+        /**
+         * Close once the client has finished sending and every response it
+         * is owed has been written.
+         */
+        private synchronized void closeIfDone() {
+            if (eof && !busy && requests.isEmpty() && out.isEmpty()) {
+                close();
+            }
+        }
+
+        void close() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) { }
+        }
+    }
+}
@@ -0,0 +1,569 @@
+package kvstore;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A KVCache that keeps its entries outside the Java heap. Every set owns one
+ * preallocated direct ByteBuffer cut into fixed-size chunks. An entry is
+ * the UTF-8 bytes of its key and value laid over a chain of as many chunks
+ * as it needs, so a set of maxElemsPerSet entries of slotBytes each can as
+ * well hold a few entries of a hundred kilobytes. Everything else about a
+ * set lives in primitive arrays: an open-addressed hash index from key to
+ * entry, the second-chance ring as next/prev entry numbers, the chunk
+ * chains, and a bitset of reference bits. No objects are created per
+ * entry, so a cache of many gigabytes adds nothing for the garbage
+ * collector to trace. get() is safe under the shared set lock: it only
+ * reads the buffer and sets its reference bit atomically.
+ *
+ * Replacement is always the second-chance FIFO of SecondChancePolicy,
+ * since other policies keep their state in CacheEntry objects; getLock()
+ * and getSetId() are inherited unchanged, and the heap sets of KVCache
+ * are left empty. A put() evicts until both an entry and enough chunks
+ * are free. The only difference visible to callers is that an entry
+ * larger than a whole set is not cached: put() drops any older entry for
+ * that key and leaves the set otherwise alone.
+ *
+ * resize() works as for KVCache: new slabs are allocated and the live
+ * slots of each old slab are copied into them, in clock order, while
+ * holding that set's lock. resizeToBudget() counts the bytes of the slabs,
+ * which are allocated in full up front.
+ */
+public class OffHeapKVCache extends KVCache {
+
+    /** Bytes per entry, and chunk size, used when none is given. */
+    public static final int DEFAULT_SLOT_BYTES = 1024;
+
+    // Entry layout over its chunks: key length, value length (-1 for null),
+    // key, value
+    private static final int HEADER_BYTES = 8;
+
+    private final int slotBytes;
+    private volatile Slab[] slabs;
+    // New table while a resize is moving slots into it
+    private volatile Slab[] fresh;
+
+    /**
+     * Creates an off-heap second-chance cache with DEFAULT_SLOT_BYTES slots.
+     *
+     * @param numSets the number of sets this cache will have
+     * @param maxElemsPerSet the size of each set
+     */
+    public OffHeapKVCache(int numSets, int maxElemsPerSet) {
+        this(numSets, maxElemsPerSet, DEFAULT_SLOT_BYTES);
+    }
+
+    /**
+     * Creates an off-heap second-chance cache.
+     *
+     * @param numSets the number of sets this cache will have
+     * @param maxElemsPerSet the size of each set
+     * @param slotBytes chunk size; each set gets maxElemsPerSet chunks, and
+     *        an entry takes 8 bytes plus the UTF-8 of its key and value,
+     *        rounded up to whole chunks
+     */
+    public OffHeapKVCache(int numSets, int maxElemsPerSet, int slotBytes) {
+        super(numSets, maxElemsPerSet, false);
+        if (slotBytes <= HEADER_BYTES) {
+            throw new IllegalArgumentException("Slot too small for an entry header");
+        }
+        if ((long) maxElemsPerSet * slotBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Set too large for one buffer");
+        }
+        this.slotBytes = slotBytes;
+        slabs = new Slab[numSets];
+        for (int i = 0; i < numSets; i++) {
+            slabs[i] = new Slab(maxElemsPerSet);
+        }
+    }
+
+    /**
+     * Retrieves an entry from the cache.
+     * Assumes access to the corresponding set has already been locked by the
+     * caller of this method.
+     *
+     * @param  key the key whose associated value is to be returned.
+     * @return the value associated to this key or null if no value is
+     *         associated with this key in the cache
+     */
+    @Override
+    public String get(String key) {
+        Slab slab = slabOf(key);
+        int slot = slab.find(key.hashCode(), utf8(key));
+        if (slot < 0) {
+            return null;
+        }
+        slab.setReferenced(slot, true);
+        return slab.value(slot);
+    }
+
+    /**
+     * Retrieves an entry without setting its reference bit. Same locking
+     * as get().
+     *
+     * @param  key the key whose associated value is to be returned.
+     * @return the value associated to this key or null if no value is
+     *         associated with this key in the cache
+     */
+    @Override
+    public String peek(String key) {
+        Slab slab = slabOf(key);
+        int slot = slab.find(key.hashCode(), utf8(key));
+        return (slot < 0) ? null : slab.value(slot);
+    }
+
+    /**
+     * Adds a value read from the store after a miss. Second chance counts
+     * no accesses besides reference bits, so this is put().
+     *
+     * @param key the key with which the specified value is to be associated
+     * @param value a value to be associated with the specified key
+     */
+    @Override
+    public void fill(String key, String value) {
+        put(key, value);
+    }
+
+    /**
+     * Adds an entry to this cache, with the same replacement rules as
+     * KVCache.put(). Assumes access to the corresponding set has already
+     * been locked by the caller of this method.
+     *
+     * @param key the key with which the specified value is to be associated
+     * @param value a value to be associated with the specified key
+     */
+    @Override
+    public void put(String key, String value) {
+        Slab slab = slabOf(key);
+        int hash = key.hashCode();
+        byte[] keyBytes = utf8(key);
+        byte[] valueBytes = (value == null) ? null : utf8(value);
+        int length = keyBytes.length + ((valueBytes == null) ? 0 : valueBytes.length);
+
+        int chunks = chunksFor(length);
+        int slot = slab.find(hash, keyBytes);
+        if (chunks > slab.capacity) {
+            if (slot >= 0) {
+                slab.remove(slot);
+            }
+            return;
+        }
+        if (slot >= 0) {
+            slab.setReferenced(slot, true);
+            // as KVCache.put() the entry may itself be evicted for room
+            while (slab.freeChunks < chunks - slab.chunks[slot]) {
+                int victim = slab.victim();
+                slab.remove(victim);
+                if (victim == slot) {
+                    return;
+                }
+            }
+            slab.write(slot, keyBytes, valueBytes);
+            return;
+        }
+        while (!slab.hasRoomFor(chunks)) {
+            slab.remove(slab.victim());
+        }
+        slab.append(hash, keyBytes, valueBytes);
+    }
+
+    /**
+     * Removes an entry from this cache.
+     * Assumes access to the corresponding set has already been locked by the
+     * caller of this method. Does nothing if called on a key not in the cache.
+     *
+     * @param key key with which the specified value is to be associated
+     */
+    @Override
+    public void del(String key) {
+        Slab slab = slabOf(key);
+        int slot = slab.find(key.hashCode(), utf8(key));
+        if (slot >= 0) {
+            slab.remove(slot);
+        }
+    }
+
+    /**
+     * Resize each set so its slab takes about budgetBytes / numSets bytes
+     * of direct memory. The number of sets stays the same.
+     *
+     * @param budgetBytes direct memory the slabs may use
+     */
+    @Override
+    public synchronized void resizeToBudget(long budgetBytes) {
+        long perSet = budgetBytes / slotBytes / NUM_SETS;
+        resize(NUM_SETS, (int) Math.max(1, Math.min(Integer.MAX_VALUE / slotBytes, perSet)));
+    }
+
+    @Override
+    protected void rehashStarted(int numSets, int maxElemsPerSet) {
+        if ((long) maxElemsPerSet * slotBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Set too large for one buffer");
+        }
+        Slab[] table = new Slab[numSets];
+        for (int i = 0; i < numSets; i++) {
+            table[i] = new Slab(maxElemsPerSet);
+        }
+        fresh = table;
+    }
+
+    /**
+     * Copy the live slots of an old slab into the new ones, oldest first,
+     * keeping their reference bits, as KVCache moves its entries.
+     */
+    @Override
+    protected void moveSet(int oldSetId, int numSets,
+            List<ReentrantReadWriteLock> newLocks) {
+        Slab old = slabs[oldSetId];
+        int slot = old.hand;
+        for (int i = 0; i < old.size; i++, slot = old.next[slot]) {
+            String key = old.key(slot);
+            int id = setId(key, numSets);
+            Lock lock = newLocks.get(id).writeLock();
+            lock.lock();
+            try {
+                Slab slab = fresh[id];
+                if (old.chunks[slot] > slab.capacity) {
+                    continue;
+                }
+                while (!slab.hasRoomFor(old.chunks[slot])) {
+                    slab.remove(slab.victim());
+                }
+                int moved = slab.append(old.hashes[slot], old.keyBytes(slot),
+                    old.valueBytes(slot));
+                slab.setReferenced(moved, old.isReferenced(slot));
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    protected void rehashFinished() {
+        // keys count as moved until the resize is over, so fresh stays
+        // valid for them; both fields now hold the same table
+        slabs = fresh;
+    }
+
+    /** The slab a key lives in right now, for a caller holding its lock. */
+    private Slab slabOf(String key) {
+        return isMoved(key) ? fresh[getSetId(key)] : slabs[getSetId(key)];
+    }
+
+    /**
+     * Copy the entries of a set back onto the heap, for toXML().
+     */
+    @Override
+    protected List<CacheEntry> entries(int setId) {
+        Slab slab = slabs[setId];
+        List<CacheEntry> entries = new ArrayList<CacheEntry>(slab.size);
+        int slot = slab.hand;
+        for (int i = 0; i < slab.size; i++, slot = slab.next[slot]) {
+            entries.add(new CacheEntry(slab.key(slot), slab.value(slot),
+                slab.isReferenced(slot)));
+        }
+        return entries;
+    }
+
+    /** Chunks taken by an entry with this many bytes of key and value. */
+    private int chunksFor(int length) {
+        return (int) ((HEADER_BYTES + (long) length + slotBytes - 1) / slotBytes);
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Storage for one set. Entries are numbered 0..capacity-1 and so are
+     * chunks; -1 means none.
+     */
+    private class Slab {
+
+        private ByteBuffer data;
+        final int capacity;
+        // Open-addressed index of entry + 1 (0 is empty), linear probing
+        private int[] table;
+        private int mask;
+        // Per entry: full key hash, clock ring neighbours, first chunk and
+        // number of chunks
+        private int[] hashes;
+        private int[] next;
+        private int[] prev;
+        private int[] first;
+        int[] chunks;
+        // Updated with CAS since readers sharing the set lock set bits
+        private AtomicLongArray referenced;
+        // Free entries as a stack
+        private int[] free;
+        private int freeCount;
+        // Per chunk: the next chunk of its entry; free chunks as a stack
+        private int[] link;
+        private int[] freeChunk;
+        int freeChunks;
+
+        int size;
+        int hand = -1;
+
+        Slab(int capacity) {
+            this.capacity = capacity;
+            data = ByteBuffer.allocateDirect(capacity * slotBytes);
+            int tableSize = Integer.highestOneBit(Math.max(1, capacity) * 2 - 1) << 1;
+            table = new int[tableSize];
+            mask = tableSize - 1;
+            hashes = new int[capacity];
+            next = new int[capacity];
+            prev = new int[capacity];
+            first = new int[capacity];
+            chunks = new int[capacity];
+            referenced = new AtomicLongArray((capacity + 63) / 64);
+            free = new int[capacity];
+            link = new int[capacity];
+            freeChunk = new int[capacity];
+            for (int i = 0; i < capacity; i++) {
+                free[i] = capacity - 1 - i;
+                freeChunk[i] = capacity - 1 - i;
+            }
+            freeCount = capacity;
+            freeChunks = capacity;
+        }
+
+        /** Spread hash codes, which all share the same residue in a set. */
+        private int home(int hash) {
+            int h = hash * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        /** @return entry holding the key, or -1 */
+        int find(int hash, byte[] key) {
+            for (int i = home(hash); table[i] != 0; i = (i + 1) & mask) {
+                int slot = table[i] - 1;
+                if (hashes[slot] == hash && keyEquals(slot, key)) {
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        private int tableIndexOf(int slot) {
+            int i = home(hashes[slot]);
+            while (table[i] != slot + 1) {
+                i = (i + 1) & mask;
+            }
+            return i;
+        }
+
+        private boolean keyEquals(int slot, byte[] key) {
+            int base = first[slot] * slotBytes;
+            if (data.getInt(base) != key.length) {
+                return false;
+            }
+            if (HEADER_BYTES + key.length > slotBytes) {
+                return Arrays.equals(keyBytes(slot), key);
+            }
+            for (int i = 0; i < key.length; i++) {
+                if (data.get(base + HEADER_BYTES + i) != key[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean hasRoomFor(int entryChunks) {
+            return size < capacity && freeChunks >= entryChunks;
+        }
+
+        /**
+         * Store a key and value in an entry, growing or shrinking its chain
+         * to fit. Growing assumes the chunks are free.
+         */
+        void write(int slot, byte[] key, byte[] value) {
+            int length = key.length + ((value == null) ? 0 : value.length);
+            int wanted = chunksFor(length);
+            if (chunks[slot] == 0) {
+                first[slot] = freeChunk[--freeChunks];
+                link[first[slot]] = -1;
+                chunks[slot] = 1;
+            }
+            int last = first[slot];
+            for (int i = 1; i < Math.min(wanted, chunks[slot]); i++) {
+                last = link[last];
+            }
+            if (wanted < chunks[slot]) {
+                releaseChunks(link[last]);
+                link[last] = -1;
+            }
+            for (int i = chunks[slot]; i < wanted; i++) {
+                int chunk = freeChunk[--freeChunks];
+                link[last] = chunk;
+                link[chunk] = -1;
+                last = chunk;
+            }
+            chunks[slot] = wanted;
+
+            int base = first[slot] * slotBytes;
+            data.putInt(base, key.length);
+            data.putInt(base + 4, (value == null) ? -1 : value.length);
+            copy(slot, HEADER_BYTES, key, true);
+            if (value != null) {
+                copy(slot, HEADER_BYTES + key.length, value, true);
+            }
+        }
+
+        private void releaseChunks(int chunk) {
+            for (; chunk >= 0; chunk = link[chunk]) {
+                freeChunk[freeChunks++] = chunk;
+            }
+        }
+
+        /**
+         * Copy bytes into or out of an entry's chain, starting that many
+         * bytes into the entry.
+         */
+        private void copy(int slot, int offset, byte[] bytes, boolean in) {
+            int chunk = first[slot];
+            for (; offset >= slotBytes; offset -= slotBytes) {
+                chunk = link[chunk];
+            }
+            ByteBuffer dup = data.duplicate();
+            for (int done = 0; done < bytes.length; offset = 0, chunk = link[chunk]) {
+                int n = Math.min(slotBytes - offset, bytes.length - done);
+                dup.position(chunk * slotBytes + offset);
+                if (in) {
+                    dup.put(bytes, done, n);
+                } else {
+                    dup.get(bytes, done, n);
+                }
+                done += n;
+            }
+        }
+
+        byte[] keyBytes(int slot) {
+            byte[] key = new byte[data.getInt(first[slot] * slotBytes)];
+            copy(slot, HEADER_BYTES, key, false);
+            return key;
+        }
+
+        /** @return the value's bytes, or null for a null value */
+        byte[] valueBytes(int slot) {
+            int base = first[slot] * slotBytes;
+            int valueLength = data.getInt(base + 4);
+            if (valueLength < 0) {
+                return null;
+            }
+            byte[] value = new byte[valueLength];
+            copy(slot, HEADER_BYTES + data.getInt(base), value, false);
+            return value;
+        }
+
+        String key(int slot) {
+            return new String(keyBytes(slot), StandardCharsets.UTF_8);
+        }
+
+        String value(int slot) {
+            byte[] value = valueBytes(slot);
+            return (value == null) ? null : new String(value, StandardCharsets.UTF_8);
+        }
+
+        boolean isReferenced(int slot) {
+            return (referenced.get(slot >>> 6) & (1L << slot)) != 0;
+        }
+
+        void setReferenced(int slot, boolean bit) {
+            int word = slot >>> 6;
+            long bitMask = 1L << slot;
+            long old;
+            long updated;
+            do {
+                old = referenced.get(word);
+                updated = bit ? (old | bitMask) : (old & ~bitMask);
+            } while (old != updated && !referenced.compareAndSet(word, old, updated));
+        }
+
+        /**
+         * Store a new entry behind all existing ones, just before the hand.
+         * Assumes hasRoomFor() its chunks.
+         *
+         * @return the entry it was stored in
+         */
+        int append(int hash, byte[] key, byte[] value) {
+            int slot = free[--freeCount];
+            chunks[slot] = 0;
+            write(slot, key, value);
+            hashes[slot] = hash;
+            setReferenced(slot, false);
+
+            int i = home(hash);
+            while (table[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            table[i] = slot + 1;
+
+            if (hand < 0) {
+                next[slot] = slot;
+                prev[slot] = slot;
+                hand = slot;
+            } else {
+                next[slot] = hand;
+                prev[slot] = prev[hand];
+                next[prev[hand]] = slot;
+                prev[hand] = slot;
+            }
+            size++;
+            return slot;
+        }
+
+        void remove(int slot) {
+            unindex(tableIndexOf(slot));
+            if (next[slot] == slot) {
+                hand = -1;
+            } else {
+                next[prev[slot]] = next[slot];
+                prev[next[slot]] = prev[slot];
+                if (hand == slot) {
+                    hand = next[slot];
+                }
+            }
+            releaseChunks(first[slot]);
+            chunks[slot] = 0;
+            free[freeCount++] = slot;
+            size--;
+        }
+
+        /**
+         * Clear a table cell and shift later members of its probe run back
+         * so lookups never need tombstones.
+         */
+        private void unindex(int hole) {
+            int i = hole;
+            while (true) {
+                i = (i + 1) & mask;
+                if (table[i] == 0) {
+                    break;
+                }
+                int h = home(hashes[table[i] - 1]);
+                // move the entry if its home is not between hole and i
+                if (((i - h) & mask) >= ((i - hole) & mask)) {
+                    table[hole] = table[i];
+                    hole = i;
+                }
+            }
+            table[hole] = 0;
+        }
+
+        /** Second chance, as in SecondChancePolicy.victim(). */
+        int victim() {
+            while (isReferenced(hand)) {
+                setReferenced(hand, false);
+                hand = next[hand];
+            }
+            return hand;
+        }
+    }
+}
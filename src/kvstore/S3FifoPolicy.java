@@ -0,0 +1,135 @@
+package kvstore;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import kvstore.KVCache.CacheEntry;
+import kvstore.KVCache.EntryQueue;
+
+/**
+ * S3-FIFO: a small FIFO that new keys enter, a main FIFO for keys that
+ * proved themselves, and a ghost list remembering keys recently dropped
+ * from the small queue. An entry still unread when it reaches the end of
+ * the small queue is evicted, so a scan over many keys that are each read
+ * once only ever churns the small queue and leaves the main queue alone.
+ * An entry read while in the small queue moves to the main queue, where it
+ * gets one more pass per access (up to three) before being evicted. A key
+ * coming back while still on the ghost list goes straight to main.
+ *
+ * The small queue is kept to a tenth of the entries in the set and the
+ * ghost list to as many keys as the set holds, counted when a victim is
+ * needed, so the policy works the same whether a set is limited by
+ * entries or by bytes.
+ *
+ * Accesses only bump a small per-entry counter, so like second chance it
+ * is safe under the shared set lock; a lost update from two readers racing
+ * just makes the count one lower.
+ */
+public class S3FifoPolicy implements EvictionPolicy {
+
+    /** Makes an S3-FIFO policy for each set. */
+    public static final EvictionPolicy.Factory FACTORY = new EvictionPolicy.Factory() {
+        @Override
+        public EvictionPolicy create(int capacity) {
+            return new S3FifoPolicy();
+        }
+
+        @Override
+        public String toString() {
+            return "s3-fifo";
+        }
+    };
+
+    private static final int SMALL = 0;
+    private static final int MAIN = 1;
+    private static final int MAX_FREQUENCY = 3;
+
+    private EntryQueue small = new EntryQueue();
+    private EntryQueue main = new EntryQueue();
+    private LinkedHashSet<String> ghost = new LinkedHashSet<String>();
+
+    @Override
+    public void touched(String key, CacheEntry entry) {
+        if (entry != null) {
+            if (entry.frequency < MAX_FREQUENCY) {
+                entry.frequency++;
+            }
+            entry.isReferenced = true;
+        }
+    }
+
+    @Override
+    public void inserted(CacheEntry entry) {
+        entry.frequency = 0;
+        if (ghost.remove(entry.key)) {
+            entry.queue = MAIN;
+            main.add(entry);
+        } else {
+            entry.queue = SMALL;
+            small.add(entry);
+        }
+    }
+
+    @Override
+    public void removed(CacheEntry entry, boolean evicted) {
+        if (entry.queue == SMALL) {
+            small.remove(entry);
+            if (evicted) {
+                remember(entry.key);
+            }
+        } else {
+            main.remove(entry);
+        }
+    }
+
+    private void remember(String key) {
+        ghost.add(key);
+        if (ghost.size() > Math.max(1, small.size() + main.size())) {
+            Iterator<String> oldest = ghost.iterator();
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    @Override
+    public CacheEntry victim() {
+        int smallCapacity = Math.max(1, (small.size() + main.size()) / 10);
+        while (true) {
+            if (small.size() > 0 && (small.size() >= smallCapacity || main.size() == 0)) {
+                CacheEntry ce = small.oldest();
+                if (ce.frequency == 0) {
+                    return ce;
+                }
+                // promote
+                small.remove(ce);
+                ce.frequency = 0;
+                ce.isReferenced = false;
+                ce.queue = MAIN;
+                main.add(ce);
+            } else {
+                CacheEntry ce = main.oldest();
+                if (ce.frequency == 0) {
+                    return ce;
+                }
+                ce.frequency--;
+                ce.isReferenced = ce.frequency > 0;
+                main.rotate();
+            }
+        }
+    }
+
+    @Override
+    public boolean admit(String key, CacheEntry victim) {
+        return true;
+    }
+
+    @Override
+    public List<CacheEntry> entries() {
+        List<CacheEntry> entries = new ArrayList<CacheEntry>(small.size() + main.size());
+        small.addTo(entries);
+        main.addTo(entries);
+        return entries;
+    }
+}
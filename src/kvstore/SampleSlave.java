@@ -36,7 +36,10 @@ public class SampleSlave {
 
         keyServer = new KVServer(100, 10);
         logPath = "bin/log." + slaveID + "@" + server.getHostname();
-        log = new TPCLog(logPath, keyServer);
+        log = new TPCLog(logPath, keyServer,
+            Runtime.getRuntime().availableProcessors());
+        System.out.println("Replayed " + log.getNumReplayed() + " log entries in "
+            + log.getRecoveryMillis() + " ms");
 
         TPCMasterHandler handler = new TPCMasterHandler(slaveID, keyServer, log);
         server.addHandler(handler);
@@ -0,0 +1,70 @@
+package kvstore;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import kvstore.KVCache.CacheEntry;
+import kvstore.KVCache.EntryQueue;
+
+/**
+ * Second-chance FIFO, the policy of the original KVCache. Entries sit on a
+ * clock ring in insertion order and an access sets the entry's reference
+ * bit. To find a victim the hand moves past referenced entries, clearing
+ * their bits, and stops at the first one that is not.
+ */
+public class SecondChancePolicy implements EvictionPolicy {
+
+    /** Makes a second-chance policy for each set. */
+    public static final EvictionPolicy.Factory FACTORY = new EvictionPolicy.Factory() {
+        @Override
+        public EvictionPolicy create(int capacity) {
+            return new SecondChancePolicy();
+        }
+
+        @Override
+        public String toString() {
+            return "second-chance";
+        }
+    };
+
+    // oldest() is the hand
+    private EntryQueue ring = new EntryQueue();
+
+    @Override
+    public void touched(String key, CacheEntry entry) {
+        if (entry != null) {
+            entry.isReferenced = true;
+        }
+    }
+
+    @Override
+    public void inserted(CacheEntry entry) {
+        ring.add(entry);
+    }
+
+    @Override
+    public void removed(CacheEntry entry, boolean evicted) {
+        ring.remove(entry);
+    }
+
+    @Override
+    public CacheEntry victim() {
+        while (ring.oldest().isReferenced) {
+            ring.oldest().isReferenced = false;
+            ring.rotate();
+        }
+        return ring.oldest();
+    }
+
+    @Override
+    public boolean admit(String key, CacheEntry victim) {
+        return true;
+    }
+
+    @Override
+    public List<CacheEntry> entries() {
+        List<CacheEntry> entries = new ArrayList<CacheEntry>(ring.size());
+        ring.addTo(entries);
+        return entries;
+    }
+}
@@ -3,16 +3,30 @@ package kvstore;
 import static kvstore.KVConstants.*;
 
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.io.*;
 
 /**
  * This NetworkHandler will asynchronously handle the socket connections.
  * Uses a thread pool to ensure that none of its methods are blocking.
+ * It is also a MessageHandler, so it can be plugged into NioSocketServer.
  */
-public class ServerClientHandler implements NetworkHandler {
+public class ServerClientHandler implements NetworkHandler, MessageHandler {
     private KVServer kvServer;
     private ThreadPool threadPool;
 
+    /**
+     * How long a keep-alive connection may sit idle between requests, in
+     * milliseconds, before it is closed.
+     */
+    public static final int KEEP_ALIVE_TIMEOUT = 5000;
+
+    /**
+     * How often, in milliseconds, an idle keep-alive connection checks
+     * whether other jobs are waiting for its worker thread.
+     */
+    private static final int IDLE_POLL = 50;
+
     /**
      * Constructs a ServerClientHandler with ThreadPool of a single thread.
      *
@@ -30,13 +44,28 @@ public class ServerClientHandler implements NetworkHandler {
      * @param connections number of threads in threadPool to service requests
      */
     public ServerClientHandler(KVServer kvServer, int connections) {
-        threadPool = new ThreadPool(connections);
+        this(kvServer, new ThreadPool(connections));
+    }
+
+    /**
+     * Constructs a ServerClientHandler that services requests on the given
+     * ThreadPool. With RejectionPolicy.REJECT, handle() throws a
+     * RejectedExecutionException when the pool is full, which SocketServer
+     * answers by closing the connection. Pass a VirtualThreadPool to run
+     * each connection on its own virtual thread.
+     *
+     * @param kvServer KVServer to carry out requests
+     * @param threadPool pool to service requests
+     */
+    public ServerClientHandler(KVServer kvServer, ThreadPool threadPool) {
+        this.threadPool = threadPool;
         this.kvServer = kvServer; 
     }
 
     /**
      * Creates a job to service the request for a socket and enqueues that job
-     * in the thread pool. Ignore all InterruptedExceptions.
+     * in the thread pool. Ignore all InterruptedExceptions. A
+     * RejectedExecutionException from a full pool is passed on to the caller.
      *
      * @param client Socket connected to the client with the request
      */
@@ -49,11 +78,68 @@ public class ServerClientHandler implements NetworkHandler {
         }
     }
 
+    /**
+     * Carry out a request against the KVServer.
+     *
+     * @param receivedMessage request from the client
+     * @return response to send back
+     * @throws KVException if the request fails or is not a client request
+     */
+    @Override
+    public KVMessage service(KVMessage receivedMessage) throws KVException {
+        KVMessage responseMessage = new KVMessage(RESP);
+
+        switch(receivedMessage.getMsgType()) {
+            case GET_REQ:  
+                responseMessage.setValue(kvServer.get(receivedMessage.getKey()));
+                responseMessage.setKey(receivedMessage.getKey());
+                return responseMessage;
+            case PUT_REQ:
+                kvServer.put(receivedMessage.getKey(),receivedMessage.getValue());
+                break;
+            case DEL_REQ:
+                kvServer.del(receivedMessage.getKey());
+                break;
+            default: 
+                throw(new KVException(ERROR_INVALID_FORMAT));
+        }
+        responseMessage.setMessage(SUCCESS);
+        return responseMessage;
+    }
+
+    /**
+     * Carry out a GET request against the KVServer, leaving the value as
+     * the bytes KVServer.getBytes() returns.
+     *
+     * @param request GET request from the client
+     * @return UTF-8 bytes of the value
+     * @throws KVException if the key is not in the server
+     */
+    @Override
+    public ByteBuffer serviceGet(KVMessage request) throws KVException {
+        return kvServer.getBytes(request.getKey());
+    }
+
+    /**
+     * Requests are grouped by the KVCache set of their key, since that set's
+     * lock is what requests on the KVServer contend for.
+     *
+     * @param request request from the client
+     * @return cache set of the request's key, or -1 if it has none
+     */
+    @Override
+    public int affinity(KVMessage request) {
+        String key = request.getKey();
+        return (key == null) ? -1 : kvServer.getSetId(key);
+    }
+
     /**
      * Runnable class containing routine to service a request from the client.
      */
     private class ClientHandler implements Runnable {
         private Socket client;
+        private KVConnection conn;
+        private long idleSince;
 
         /**
          * Construct a ClientHandler.
@@ -65,62 +151,107 @@ public class ServerClientHandler implements NetworkHandler {
         }
 
         /**
-         * Processes request from client and sends back a response with the
-         * result. The delivery of the response is best-effort. If we are
-         * unable to return any response, there is nothing else we can do.
+         * Processes requests from client and sends back responses with the
+         * result. A legacy client sends a single XML request and half-closes
+         * the socket; a keep-alive client opens with KVConnection's preamble
+         * and then sends any number of framed, possibly pipelined, requests.
+         * A keep-alive connection that is requeued to give up its worker
+         * resumes here, and is left open.
+         * The delivery of a response is best-effort. If we are unable to
+         * return any response, there is nothing else we can do.
          */
         @Override
         public void run() {
-            String returnValue = "";
-            String returnKey = "";
-            String messageType = "";
-            String returnMessage = SUCCESS;
-            boolean isError = false;
-            
+            boolean requeued = false;
             try {
-                KVMessage receivedMessage = new KVMessage(client);
-                messageType = receivedMessage.getMsgType();
-
-                switch(messageType) {
-                    case GET_REQ:  
-                        returnValue = kvServer.get(receivedMessage.getKey());
-                        returnKey = receivedMessage.getKey(); 
-                        break;
-                    case PUT_REQ:
-                        kvServer.put(receivedMessage.getKey(),receivedMessage.getValue());
-                        break;
-                    case DEL_REQ:
-                        kvServer.del(receivedMessage.getKey());
-                        break;
-                    default: 
-                        throw(new KVException(ERROR_INVALID_FORMAT));
+                if (conn == null) {
+                    BufferedInputStream in =
+                        new BufferedInputStream(client.getInputStream());
+                    conn = KVConnection.accept(client, in);
+                    if (conn == null) {
+                        serveOnce(in);
+                        return;
+                    }
+                    idleSince = System.currentTimeMillis();
+                }
+                requeued = serveKeepAlive();
+            }
+            catch(IOException | KVException e) {
+            }
+            finally {
+                if (!requeued) {
+                    try {
+                        client.close();
+                    } 
+                    catch(IOException e) {
+                    }
                 }
-            } 
-            catch(KVException kvErr) {
-                returnMessage = kvErr.getKVMessage().getMessage();
-                isError = true;
             }
+        }
 
+        /**
+         * Serve a single unframed XML request.
+         */
+        private void serveOnce(InputStream in) {
+            KVMessage responseMessage;
+            try {
+                responseMessage = service(new KVMessage(in));
+            }
+            catch(KVException kvErr) {
+                responseMessage = new KVMessage(RESP, kvErr.getKVMessage().getMessage());
+            }
             try {
-                KVMessage responseMessage = new KVMessage(RESP);
-
-                if(messageType.equals(GET_REQ) && !isError) {
-                    responseMessage.setValue(returnValue);
-                    responseMessage.setKey(returnKey);
-                }
-                else 
-                    responseMessage.setMessage(returnMessage);
                 responseMessage.sendMessage(client);
             } 
             catch(KVException kvErr) {
             } 
-            finally {
+        }
+
+        /**
+         * Serve framed requests until the client closes the connection or
+         * stays idle longer than KEEP_ALIVE_TIMEOUT. Responses to pipelined
+         * requests are buffered and flushed together once no further request
+         * is waiting to be read.
+         *
+         * Between requests the connection gives its worker back whenever
+         * other jobs are queued, by requeueing itself behind them, so idle
+         * keep-alive clients cannot hold every worker of a small pool.
+         *
+         * @return true if the connection was requeued rather than finished
+         */
+        private boolean serveKeepAlive() throws KVException {
+            while (true) {
+                while (!conn.hasBufferedInput()) {
+                    if (threadPool.getNumJobs() > 0 && threadPool.offerJob(this)) {
+                        return true;
+                    }
+                    if (conn.awaitInput(IDLE_POLL)) {
+                        break;
+                    }
+                    if (System.currentTimeMillis() - idleSince >= KEEP_ALIVE_TIMEOUT) {
+                        return false;
+                    }
+                }
+                conn.setTimeout(KEEP_ALIVE_TIMEOUT);
+                KVMessage request = conn.receive();
+                if (request == null) {
+                    conn.flush();
+                    return false;
+                }
+                KVMessage responseMessage;
                 try {
-                    client.close();
-                } 
-                catch(IOException e) {
+                    responseMessage = service(request);
                 }
+                catch(KVException kvErr) {
+                    responseMessage = new KVMessage(RESP, kvErr.getKVMessage().getMessage());
+                }
+                conn.write(responseMessage);
+                if (!conn.hasBufferedInput()) {
+                    conn.flush();
+                }
+                idleSince = System.currentTimeMillis();
             }
-       }
+        }
+
    } // End of ClientHandler class
 } // End of ServerClientHandler class
@@ -2,6 +2,8 @@ package kvstore;
 
 import java.io.IOException;
 import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * This is a generic class that should handle all TCP network connections
@@ -12,10 +14,11 @@ import java.net.ServerSocket;
 public class SocketServer 
 {
     private String hostname;
-    private int port;
+    protected int port;
     private ServerSocket server;
-    private NetworkHandler handler;
+    protected NetworkHandler handler;
     private boolean stopped = false;
+    protected long shedConnections = 0;
 
     private static final int TIMEOUT = 100;
     private static final int DEFAULT_PORT = 0;
@@ -71,22 +74,50 @@ public class SocketServer
     /**
      * Accept and enqeue requests as jobs to be serviced asynchronously.
      * A call to stop() should result in the closing of the ServerSocket
-     * within TIMEOUT milliseconds.
+     * within TIMEOUT milliseconds. If the handler's ThreadPool is full and
+     * rejects the job, the connection is closed straight away so overload
+     * sheds clients instead of queueing them without bound.
      *
      * @throws IOException if there is an unexpected network error while
      *         listening for or servicing requests
      */
     public void start() throws IOException {
         while (!stopped) {
+            Socket client = null;
             try {
-                handler.handle(server.accept());
+                client = server.accept();
+                handler.handle(client);
             }
             catch(java.net.SocketTimeoutException e) {
             } 
+            catch(RejectedExecutionException e) {
+                shed(client);
+            }
         }
         server.close();
     }
 
+    /**
+     * Drop a connection the handler had no room for.
+     *
+     * @param client socket to close
+     */
+    protected void shed(Socket client) {
+        shedConnections++;
+        try {
+            client.close();
+        } catch(IOException e) {
+        }
+    }
+
+    /**
+     * @return the number of connections closed because the handler was
+     *         overloaded
+     */
+    public long getNumShedConnections() {
+        return shedConnections;
+    }
+
     /**
      * Stops the ServerSocket cleanly (do not force an exception to be thrown).
      * A call to stop() will result in the closing of the server no more than
@@ -32,9 +32,22 @@ public class TPCClientHandler implements NetworkHandler {
      * @param connections number of threads in threadPool to service requests
      */
     public TPCClientHandler(TPCMaster tpcMaster, int connections) {
-        // implement me
-    	threadPool = new ThreadPool(connections);
-		this.tpcMaster = tpcMaster;
+        this(tpcMaster, new ThreadPool(connections));
+    }
+
+    /**
+     * Constructs a TPCClientHandler that services requests on the given
+     * ThreadPool. With RejectionPolicy.REJECT, handle() throws a
+     * RejectedExecutionException when the pool is full, which SocketServer
+     * answers by closing the connection. Pass a VirtualThreadPool to run
+     * each connection on its own virtual thread.
+     *
+     * @param tpcMaster TPCMaster to carry out requests
+     * @param threadPool pool to service requests
+     */
+    public TPCClientHandler(TPCMaster tpcMaster, ThreadPool threadPool) {
+        this.threadPool = threadPool;
+        this.tpcMaster = tpcMaster;
     }
 
     /**
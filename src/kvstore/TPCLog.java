@@ -1,119 +1,563 @@
 package kvstore;
 
 import static kvstore.KVConstants.*;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
 
+/**
+ * Write-ahead log of the KVMessages a slave receives from the master.
+ *
+ * The log file is a 4-byte magic number followed by records, each
+ *
+ *   length  4 bytes, of the payload
+ *   crc     4 bytes, CRC-32 of the payload
+ *   payload the message in BinaryCodec form
+ *
+ * Entries are only ever appended, through a FileChannel, so an append
+ * costs the same however long the log is. A crash part way through an
+ * append leaves a torn last record; on recovery the log is read up to the
+ * first record that is short or fails its checksum and cut off there.
+ * A log written by the old format, a serialized list of messages, is
+ * converted on first load.
+ *
+ * Appends from concurrent callers are group committed. A caller queues its
+ * record and waits until it is durable; whichever waiting caller finds no
+ * flush under way becomes the leader, writes every queued record with one
+ * write and one force(), and wakes the callers it covered. Records queued
+ * while a force() runs go out together in the next one, so the number of
+ * forces per second stays bounded by the device while commits per second
+ * grow with the number of callers. setGroupCommit() can also make a leader
+ * wait a little for a batch to fill. If the write or force() of a batch
+ * fails, its records are cut off the log again and every caller in it
+ * gets the error, so no caller is told a record is durable unless it is.
+ *
+ * A checkpoint notes how far the log is durable, writes the KVStore to a
+ * snapshot file next to the log, and then cuts off the log before that
+ * point, keeping the last entry there, which may be a request still
+ * waiting for the master's decision. Commits are held off while the store
+ * is dumped, so the snapshot holds exactly the operations committed up to
+ * that point; votes go on being appended, and they and any later commits
+ * are carried over into the new log. Recovery loads the snapshot, if there
+ * is one, and replays the short log after it. Checkpoints are taken on demand or
+ * every so many entries once setCheckpointInterval() is set.
+ *
+ * Replay normally performs each committed operation on the KVServer in
+ * log order. Given more than one replay thread, it instead works out the
+ * last committed operation on each key and loads only those into the
+ * KVStore, in parallel and past the cache.
+ */
 public class TPCLog {
 
+    private static final int MAGIC = 0x54504C31;  // "TPL1"
+    private static final int RECORD_HEADER_BYTES = 8;
+    // Room for the largest legal key and value in UTF-8, plus framing
+    private static final int MAX_RECORD_BYTES =
+        4 * (KVServer.MAX_KEY_SIZE + KVServer.MAX_VAL_SIZE) + 1024;
+
     private String logPath;
     private KVServer kvServer;
-    private ArrayList<KVMessage> entries;
+    private FileChannel channel;
+    private KVMessage lastEntry;
+    private BinaryCodec codec = new BinaryCodec();
+
+    // Group commit state, guarded by lock. pending collects the records
+    // queued since the last batch went out; writing is the batch in flight.
+    private ReentrantLock lock = new ReentrantLock();
+    private Condition batchFull = lock.newCondition();
+    private Condition flushed = lock.newCondition();
+    private Batch pending = new Batch();
+    private Batch writing;
+    private boolean flushing;
+    // Length of the log up to its last forced record, and that record
+    private long durableEnd;
+    private KVMessage durableEntry;
+    private volatile long maxDelayNanos = 0;
+    private volatile int maxBatch = 1024;
+    private AtomicLong forces = new AtomicLong();
+
+    // Commits hold the read lock, a checkpoint the write lock while it
+    // dumps the store; checkpoints run one at a time
+    private ReentrantReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+    private ReentrantLock checkpointing = new ReentrantLock();
+    private String snapshotPath;
+    private volatile int checkpointInterval = 0;
+    private AtomicInteger sinceCheckpoint = new AtomicInteger();
+
+    private int replayThreads;
+    private long recoveryNanos;
+    private int replayed;
 
     /**
      * Constructs a TPCLog to log KVMessages from the master.
      *
      * @param logPath path to location of log file for this server
      * @param kvServer reference to the KVServer of this slave
+     * @throws KVException with ERROR_COULD_NOT_ACCESS_LOG if the log file
+     *         cannot be opened, or any error from replaying it
      */
     public TPCLog(String logPath, KVServer kvServer) throws KVException {
+        this(logPath, kvServer, 1);
+    }
+
+    /**
+     * Constructs a TPCLog that replays the log on several threads.
+     *
+     * @param logPath path to location of log file for this server
+     * @param kvServer reference to the KVServer of this slave, whose cache
+     *        must not hold any keys yet if replayThreads is more than one
+     * @param replayThreads threads to load the replayed state with; 1 to
+     *        perform every operation in order through the KVServer
+     * @throws KVException with ERROR_COULD_NOT_ACCESS_LOG if the log file
+     *         cannot be opened, or any error from replaying it
+     */
+    public TPCLog(String logPath, KVServer kvServer, int replayThreads)
+            throws KVException {
         this.logPath = logPath;
+        this.snapshotPath = logPath + ".snapshot";
         this.kvServer = kvServer;
-        this.entries = new ArrayList<KVMessage>();
+        this.replayThreads = replayThreads;
         rebuildServer();
     }
 
     /**
-     * Add an entry to the log and flush the entire log to disk.
-     * You do not have to efficiently append entries onto the log stored on disk.
+     * Append an entry to the log and wait until it has been forced to disk,
+     * so the entry survives a crash once this returns. Concurrent calls
+     * share writes and forces.
      *
      * @param entry KVMessage to write to the log
+     * @throws KVException with ERROR_COULD_NOT_ACCESS_LOG if the entry could
+     *         not be written and forced; it is then not in the log
      */
-    public void appendAndFlush(KVMessage entry) {
-        entries.add(entry);
-        flushToDisk();
+    public void appendAndFlush(KVMessage entry) throws KVException {
+        append(entry);
+        checkpointIfDue();
     }
 
     /**
-     * Get last entry in the log.
+     * Log the master's decision to commit the request logged last and apply
+     * that request to the KVServer. A commit that follows no request, such
+     * as one the master sends again, is not logged or applied.
      *
-     * @return last entry put into the log
+     * @param decision the COMMIT message from the master
+     * @throws KVException with ERROR_COULD_NOT_ACCESS_LOG if the decision
+     *         could not be logged; the request is then not applied
      */
-    public KVMessage getLastEntry() {
-        if (entries.size() > 0) {
-            return entries.get(entries.size() - 1);
+    public void commit(KVMessage decision) throws KVException {
+        Lock shared = checkpointLock.readLock();
+        shared.lock();
+        try {
+            KVMessage request = getLastEntry();
+            if (request == null || !(PUT_REQ.equals(request.getMsgType())
+                    || DEL_REQ.equals(request.getMsgType()))) {
+                return;
+            }
+            append(decision);
+            apply(request);
+        } finally {
+            shared.unlock();
         }
-        return null;
+        checkpointIfDue();
+    }
+
+    private void append(KVMessage entry) throws KVException {
+        ByteBuffer record = record(entry);
+        lock.lock();
+        try {
+            Batch batch = pending;
+            if (batch.records.isEmpty()) {
+                batch.before = lastEntry;
+            }
+            batch.records.add(record);
+            batch.last = entry;
+            lastEntry = entry;
+            if (batch.records.size() >= maxBatch) {
+                batchFull.signal();
+            }
+            awaitDurable(batch);
+        } catch (IOException e) {
+            throw new KVException(ERROR_COULD_NOT_ACCESS_LOG);
+        } finally {
+            lock.unlock();
+        }
+        sinceCheckpoint.incrementAndGet();
     }
 
     /**
-     * Load log from persistent storage at logPath.
+     * Take a checkpoint once this many entries have been appended since the
+     * last one.
+     *
+     * @param entries entries between checkpoints, 0 to only take them when
+     *        checkpoint() is called
      */
-    @SuppressWarnings("unchecked")
-    public void loadFromDisk() {
-        ObjectInputStream inputStream = null;
+    public void setCheckpointInterval(int entries) {
+        checkpointInterval = entries;
+    }
 
+    /**
+     * Snapshot the KVStore and cut the log down to the entries it does not
+     * cover, which are the last entry forced before it started and any
+     * appended since. Commits wait while the store is dumped; appends
+     * only wait for the new log to be swapped in.
+     *
+     * @throws KVException with ERROR_COULD_NOT_ACCESS_LOG if the snapshot or
+     *         log could not be written; the old snapshot and log are then
+     *         still good
+     */
+    public void checkpoint() throws KVException {
+        checkpointing.lock();
+        File tmpLog = new File(logPath + ".tmp");
+        FileChannel copy = null;
         try {
-            inputStream = new ObjectInputStream(new FileInputStream(logPath));
-            entries = (ArrayList<KVMessage>) inputStream.readObject();
-        } catch (Exception e) {
-        } finally {
-            // if log did not exist, creating empty entries list
-            if (entries == null) {
-                entries = new ArrayList<KVMessage>();
+            long mark;
+            KVMessage markEntry;
+            Lock exclusive = checkpointLock.writeLock();
+            exclusive.lock();
+            try {
+                // every commit up to here has been applied
+                lock.lock();
+                try {
+                    mark = durableEnd;
+                    markEntry = durableEntry;
+                    sinceCheckpoint.set(0);
+                } finally {
+                    lock.unlock();
+                }
+                File tmp = new File(snapshotPath + ".tmp");
+                kvServer.dumpStore(tmp.getPath());
+                if (!tmp.renameTo(new File(snapshotPath))) {
+                    throw new IOException("Could not replace " + snapshotPath);
+                }
+            } finally {
+                exclusive.unlock();
             }
-
+            // once the snapshot is in place, replaying the old log over it
+            // changes nothing, so a crash from here on is harmless
+            tmpLog.delete();
+            copy = FileChannel.open(tmpLog.toPath(), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+            ByteBuffer header = ByteBuffer.allocate(4);
+            header.putInt(MAGIC).flip();
+            ArrayList<ByteBuffer> records = new ArrayList<ByteBuffer>();
+            records.add(header);
+            if (markEntry != null) {
+                try {
+                    records.add(record(markEntry));
+                } catch (KVException e) {
+                    throw new IOException(e);
+                }
+            }
+            ByteBuffer[] srcs = records.toArray(new ByteBuffer[records.size()]);
+            while (srcs[srcs.length - 1].hasRemaining()) {
+                copy.write(srcs);
+            }
+            // records forced since the mark no longer change, so most of
+            // the tail is copied without holding up appends
+            long copied;
+            lock.lock();
             try {
-                if (inputStream != null) {
-                    inputStream.close();
+                copied = durableEnd;
+            } finally {
+                lock.unlock();
+            }
+            transfer(mark, copied, copy);
+            lock.lock();
+            try {
+                while (flushing) {
+                    flushed.awaitUninterruptibly();
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
+                // no flush can start until the new log is in place
+                transfer(copied, channel.size(), copy);
+                copy.force(true);
+                if (!tmpLog.renameTo(new File(logPath))) {
+                    throw new IOException("Could not replace " + logPath);
+                }
+                closeChannel();
+                channel = copy;
+                copy = null;
+                channel.position(channel.size());
+                durableEnd = channel.size();
+            } finally {
+                lock.unlock();
+            }
+        } catch (IOException e) {
+            throw new KVException(ERROR_COULD_NOT_ACCESS_LOG);
+        } finally {
+            if (copy != null) {
+                try {
+                    copy.close();
+                } catch (IOException e) { }
+                tmpLog.delete();
+            }
+            checkpointing.unlock();
+        }
+    }
+
+    /** Copy the log from one position up to another onto the end of out. */
+    private void transfer(long from, long to, FileChannel out) throws IOException {
+        while (from < to) {
+            from += channel.transferTo(from, to - from, out);
+        }
+    }
+
+    private void checkpointIfDue() {
+        int interval = checkpointInterval;
+        if (interval <= 0 || sinceCheckpoint.get() < interval) {
+            return;
+        }
+        // a checkpoint already under way will do
+        if (!checkpointing.tryLock()) {
+            return;
+        }
+        try {
+            // another caller may have taken it while we checked
+            if (sinceCheckpoint.get() >= interval) {
+                checkpoint();
             }
+        } catch (KVException e) {
+            e.printStackTrace();
+        } finally {
+            checkpointing.unlock();
         }
     }
 
     /**
-     * Writes the log to persistent storage at logPath.
+     * Bound how long a group commit leader waits for more records before
+     * writing. With a delay of 0, the default, a leader writes at once and
+     * batches form only from records queued during the previous force().
+     *
+     * @param maxDelayMicros longest a leader waits for its batch to fill
+     * @param maxBatchSize records after which a leader stops waiting
      */
-    public void flushToDisk() {
-        ObjectOutputStream outputStream = null;
+    public void setGroupCommit(long maxDelayMicros, int maxBatchSize) {
+        maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+        maxBatch = Math.max(1, maxBatchSize);
+    }
 
+    /** @return number of times the log has been forced to disk */
+    public long getNumForces() {
+        return forces.get();
+    }
+
+    /**
+     * Get last entry in the log.
+     *
+     * @return last entry put into the log
+     */
+    public KVMessage getLastEntry() {
+        lock.lock();
         try {
-            outputStream = new ObjectOutputStream(new FileOutputStream(logPath));
-            outputStream.writeObject(entries);
-        } catch (Exception e) {
-            e.printStackTrace();
+            return lastEntry;
         } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the batch holding the last record queued, or null if every
+     *         record queued has been written. Must hold lock.
+     */
+    private Batch lastBatch() {
+        return pending.records.isEmpty() ? writing : pending;
+    }
+
+    /**
+     * Wait until a batch has been written and forced, leading a flush when
+     * no other caller is. Must hold lock.
+     *
+     * @param batch the batch to wait for, or null for none
+     * @throws IOException the error writing or forcing the batch failed with
+     */
+    private void awaitDurable(Batch batch) throws IOException {
+        while (batch != null && !batch.done) {
+            if (flushing) {
+                flushed.awaitUninterruptibly();
+                continue;
+            }
+            // with no flush under way, batch is the one still queueing
+            flushing = true;
             try {
-                if (outputStream != null) {
-                    outputStream.flush();
-                    outputStream.close();
+                long deadline = System.nanoTime() + maxDelayNanos;
+                long wait;
+                while (pending.records.size() < maxBatch
+                        && (wait = deadline - System.nanoTime()) > 0) {
+                    try {
+                        batchFull.awaitNanos(wait);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
+                writing = pending;
+                pending = new Batch();
+                lock.unlock();
+                IOException error = null;
+                long end = 0;
+                try {
+                    end = channel.size();
+                    try {
+                        writeBatch(writing.records);
+                        channel.force(false);
+                        forces.incrementAndGet();
+                        end = channel.size();
+                    } catch (IOException e) {
+                        error = e;
+                        // keep the failed records from being replayed
+                        channel.truncate(end);
+                    }
+                } catch (IOException e) {
+                    if (error == null) {
+                        error = e;
+                    }
+                } finally {
+                    lock.lock();
+                }
+                if (error == null) {
+                    durableEnd = end;
+                    durableEntry = writing.last;
+                } else if (pending.records.isEmpty()) {
+                    // none of the batch is in the log
+                    lastEntry = writing.before;
+                } else {
+                    pending.before = writing.before;
+                }
+                writing.error = error;
+                writing.done = true;
+                writing = null;
+            } finally {
+                flushing = false;
+                flushed.signalAll();
             }
         }
+        if (batch != null && batch.error != null) {
+            throw batch.error;
+        }
+    }
+
+    /**
+     * Load log from persistent storage at logPath, cutting off a torn last
+     * record, and leave the log open for appending.
+     *
+     * @return the entries in the log, oldest first
+     * @throws KVException with ERROR_COULD_NOT_ACCESS_LOG if the file
+     *         cannot be read or written
+     */
+    public List<KVMessage> loadFromDisk() throws KVException {
+        lock.lock();
+        try {
+            awaitDurable(lastBatch());
+            closeChannel();
+            File file = new File(logPath);
+            if (isOldFormat(file)) {
+                List<KVMessage> entries = readOldFormat(file);
+                rewrite(entries);
+                return entries;
+            }
+
+            List<KVMessage> entries = new ArrayList<KVMessage>();
+            long valid = readRecords(file, entries);
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (valid == 0) {
+                ByteBuffer header = ByteBuffer.allocate(4);
+                header.putInt(MAGIC).flip();
+                channel.truncate(0);
+                writeFully(header, 0);
+                channel.force(true);
+            } else if (valid < channel.size()) {
+                channel.truncate(valid);
+                channel.force(true);
+            }
+            channel.position(channel.size());
+            lastEntry = entries.isEmpty() ? null : entries.get(entries.size() - 1);
+            durableEnd = channel.size();
+            durableEntry = lastEntry;
+            return entries;
+        } catch (IOException e) {
+            throw new KVException(ERROR_COULD_NOT_ACCESS_LOG);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until every entry appended so far is on persistent storage at
+     * logPath.
+     *
+     * @throws KVException with ERROR_COULD_NOT_ACCESS_LOG if the last of
+     *         them could not be written
+     */
+    public void flushToDisk() throws KVException {
+        lock.lock();
+        try {
+            awaitDurable(lastBatch());
+        } catch (IOException e) {
+            throw new KVException(ERROR_COULD_NOT_ACCESS_LOG);
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
-     * Load log and rebuild KVServer by iterating over log entries. You do not
-     * need to restore the previous cache state (i.e. ignore GETS).
+     * Load the latest snapshot and log and rebuild KVServer by iterating over
+     * log entries. You do not need to restore the previous cache state (i.e.
+     * ignore GETS).
      *
-     * @throws KVException if an error occurs in KVServer (though we expect none)
+     * @throws KVException with ERROR_COULD_NOT_ACCESS_LOG if the snapshot or
+     *         log cannot be read in full
      */
     public void rebuildServer() throws KVException {
-        loadFromDisk();
+        long start = System.nanoTime();
+        if (new File(snapshotPath).exists()) {
+            try {
+                kvServer.restoreStore(snapshotPath);
+            } catch (IOException e) {
+                // the log was cut down when the snapshot was taken, so it
+                // cannot make up for what the snapshot lost
+                throw new KVException(ERROR_COULD_NOT_ACCESS_LOG);
+            }
+        }
+        List<KVMessage> entries = loadFromDisk();
+        // Key -> last committed value, null once deleted
+        Map<String, String> state = new HashMap<String, String>();
         KVMessage request = null;
 
         for(KVMessage entry : entries) {
             switch(entry.getMsgType()) {
                 case COMMIT:
-                    handleRestoreOperation(request);
+                    if (request == null) {
+                        break;
+                    }
+                    if (replayThreads > 1) {
+                        state.put(request.getKey(), PUT_REQ.equals(request.getMsgType())
+                            ? request.getValue() : null);
+                    } else {
+                        apply(request);
+                    }
+                    request = null;
+                    break;
+                case ABORT:
                     request = null;
                     break;
                 case DEL_REQ:
@@ -123,23 +567,193 @@ public class TPCLog {
                     break;
             }
         }
+        if (!state.isEmpty()) {
+            kvServer.loadStore(state, replayThreads);
+        }
+        replayed = entries.size();
+        recoveryNanos = System.nanoTime() - start;
+    }
+
+    /** @return how long the last rebuildServer() took, in milliseconds */
+    public long getRecoveryMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(recoveryNanos);
+    }
+
+    /** @return how many log entries the last rebuildServer() replayed */
+    public int getNumReplayed() {
+        return replayed;
     }
 
     /**
-     * Restore the requested operation to the KVServer. This method is intended
-     * to be run during restoration froma  log file following a system crash.
+     * Perform a committed operation on the KVServer, either when the master
+     * commits it or when replaying the log following a system crash.
      *
-     * @param request is the operation to be re-performed against the server.
+     * @param request is the operation to be performed against the server.
      */
-    private void handleRestoreOperation(KVMessage request) {
-        assert request != null: "ERROR invalid log. COMMIT with no action";
+    private void apply(KVMessage request) {
         try {
             switch(request.getMsgType()) {
                 case PUT_REQ:
                     kvServer.put(request.getKey(), request.getValue());
+                    break;
                 case DEL_REQ:
                     kvServer.del(request.getKey());
+                    break;
             }
         } catch(KVException e) {}
     }
+
+    /** Frame an entry as a log record, ready to write. */
+    private ByteBuffer record(KVMessage entry) throws KVException {
+        byte[] payload = codec.encode(entry);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + payload.length);
+        record.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+        return record;
+    }
+
+    /** Append records at the end of the file with one gathering write. */
+    private void writeBatch(List<ByteBuffer> records) throws IOException {
+        ByteBuffer[] srcs = records.toArray(new ByteBuffer[records.size()]);
+        long end = channel.size();
+        try {
+            channel.position(end);
+            while (srcs.length > 0 && srcs[srcs.length - 1].hasRemaining()) {
+                channel.write(srcs);
+            }
+        } catch (IOException e) {
+            // drop whatever part made it so later appends stay readable
+            channel.truncate(end);
+            throw e;
+        }
+    }
+
+    private void writeFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += channel.write(buf, position);
+        }
+    }
+
+    /**
+     * Read the records of a log file into entries, stopping at the first
+     * record that is incomplete or fails its checksum.
+     *
+     * @return the length of the file up to the end of the last good record,
+     *         or 0 if the file is missing or has no complete header
+     */
+    private long readRecords(File file, List<KVMessage> entries) throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+        DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(file)));
+        long valid = 0;
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a TPCLog: " + logPath);
+            }
+            valid = 4;
+            CRC32 crc = new CRC32();
+            while (true) {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length < 0 || length > MAX_RECORD_BYTES) {
+                    return valid;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    return valid;
+                }
+                try {
+                    entries.add(codec.decode(payload));
+                } catch (KVException e) {
+                    return valid;
+                }
+                valid += RECORD_HEADER_BYTES + length;
+            }
+        } catch (EOFException e) {
+            // torn record or header; keep what came before
+            return valid;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static boolean isOldFormat(File file) throws IOException {
+        if (file.length() < 2) {
+            return false;
+        }
+        FileInputStream in = new FileInputStream(file);
+        try {
+            // ObjectOutputStream's STREAM_MAGIC
+            return in.read() == 0xAC && in.read() == 0xED;
+        } finally {
+            in.close();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<KVMessage> readOldFormat(File file) throws IOException {
+        ObjectInputStream in = new ObjectInputStream(new FileInputStream(file));
+        try {
+            return (List<KVMessage>) in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Replace the log file with one holding just these entries. */
+    private void rewrite(List<KVMessage> entries) throws IOException {
+        File file = new File(logPath);
+        File tmp = new File(logPath + ".tmp");
+        tmp.delete();
+        channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(4);
+        header.putInt(MAGIC).flip();
+        writeFully(header, 0);
+        ArrayList<ByteBuffer> records = new ArrayList<ByteBuffer>();
+        try {
+            for (KVMessage entry : entries) {
+                records.add(record(entry));
+            }
+        } catch (KVException e) {
+            throw new IOException(e);
+        }
+        writeBatch(records);
+        lastEntry = entries.isEmpty() ? null : entries.get(entries.size() - 1);
+        channel.force(true);
+        closeChannel();
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not replace " + logPath);
+        }
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        durableEnd = channel.size();
+        durableEntry = lastEntry;
+    }
+
+    private void closeChannel() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /** Records written with one write and one force(), and how it went. */
+    private static class Batch {
+        ArrayList<ByteBuffer> records = new ArrayList<ByteBuffer>();
+        // lastEntry when the first record was queued, and the last record
+        KVMessage before;
+        KVMessage last;
+        boolean done;
+        IOException error;
+    }
 }
@@ -4,8 +4,12 @@ import static kvstore.KVConstants.*;
 
 import java.net.Socket;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class TPCMaster {
     private class Lib extends AssertWrapper {}
@@ -13,8 +17,10 @@ public class TPCMaster {
     private int numSlaves;
     private KVCache masterCache;
     Object registrationBlock = new Object();
-    Object keyBlock = new Object();
-    String workingKey;
+    HashMap<String, KeyLock> keyLocks;
+    HashMap<Long, ReentrantLock> replicaLocks;
+    ThreadPool fanOut;
+    ThreadPool decisions;
     TreeMap<Long, TPCSlaveInfo> registeredTreeMap;
     ReentrantLock slavesLock;
 
@@ -27,11 +33,30 @@ public class TPCMaster {
      * @param cache KVCache to cache results on master
      */
     public TPCMaster(int numSlaves, KVCache cache) {
+        this(numSlaves, cache, new ThreadPool(numSlaves));
+    }
+
+    /**
+     * Creates TPCMaster that sends votes to the second replica of each
+     * transaction on the given ThreadPool while it contacts the first
+     * itself, so both replicas are reached at once. Decisions, which are
+     * retried until they are acknowledged, go out on a pool of their own
+     * so a dead replica cannot tie up fanOut.
+     *
+     * @param numSlaves number of slave servers expected to register
+     * @param cache KVCache to cache results on master
+     * @param fanOut pool to send votes to second replicas on
+     */
+    public TPCMaster(int numSlaves, KVCache cache, ThreadPool fanOut) {
         this.numSlaves = numSlaves;
+        this.fanOut = fanOut;
+        this.decisions = new ThreadPool(numSlaves);
         this.masterCache = cache;
         // implement me
         this.registeredTreeMap = new TreeMap<Long, TPCSlaveInfo>(new unsignedComparator());
         slavesLock=new ReentrantLock();
+        this.keyLocks = new HashMap<String, KeyLock>();
+        this.replicaLocks = new HashMap<Long, ReentrantLock>();
     }
 
     /**
@@ -173,7 +198,9 @@ public class TPCMaster {
     /**
      * Perform 2PC operations from the master node perspective. This method
      * contains the bulk of the two-phase commit logic. It performs phase 1
-     * and phase 2 with appropriate timeouts and retries.
+     * and phase 2 with appropriate timeouts and retries. Requests on the
+     * same key are serialized; requests on keys with no replica in common
+     * run in parallel.
      *
      * See the spec for details on the expected behavior.
      *
@@ -181,28 +208,44 @@ public class TPCMaster {
      * @param isPutReq boolean to distinguish put and del requests
      * @throws KVException if the operation cannot be carried out for any reason
      */
-    public synchronized void handleTPCRequest(KVMessage msg, boolean isPutReq)
+    public void handleTPCRequest(KVMessage msg, boolean isPutReq)
             throws KVException {
         okayToService(msg);
         Lib.assertTrue(numSlaves == getNumRegisteredSlaves());
-        synchronized(keyBlock) {
-            workingKey = msg.getKey();
-        }
-
-        /* Phase 1: VOTE_REQ */
-        TPCSlaveInfo firstReplica = findFirstReplica(msg.getKey());
-        TPCSlaveInfo secondReplica = findSuccessor(firstReplica);
-        KVClient firstClient = new KVClient(firstReplica.getHostname(), firstReplica.getPort(), TIMEOUT);
-        KVClient secondClient = new KVClient(secondReplica.getHostname(), secondReplica.getPort(), TIMEOUT);
-        KVMessage firstReply = new KVMessage(ABORT);
-        KVMessage secondReply = new KVMessage(ABORT);
+        KeyLock keyLock = lockKey(msg.getKey());
         try {
-            firstReply = firstClient.sendMessage(msg.getMsgType(), msg.getKey(), msg.getValue());
-            secondReply = secondClient.sendMessage(msg.getMsgType(), msg.getKey(), msg.getValue());
-        } catch(KVException e) {
-            firstReply = e.getKVMessage(); 
-            secondReply = e.getKVMessage(); 
+            keyLock.lock.writeLock().lock();
+            try {
+                TPCSlaveInfo firstReplica = findFirstReplica(msg.getKey());
+                TPCSlaveInfo secondReplica = findSuccessor(firstReplica);
+                Lock[] held = lockReplicas(firstReplica, secondReplica);
+                try {
+                    runTransaction(msg, firstReplica, secondReplica);
+                } finally {
+                    held[1].unlock();
+                    held[0].unlock();
+                }
+            } finally {
+                keyLock.lock.writeLock().unlock();
+            }
+        } finally {
+            unlockKey(msg.getKey(), keyLock);
         }
+    }
+
+    /**
+     * Both phases of a transaction, with the key and replicas locked.
+     */
+    private void runTransaction(KVMessage msg, TPCSlaveInfo firstReplica,
+            TPCSlaveInfo secondReplica) throws KVException {
+        /* Phase 1: VOTE_REQ, to both replicas at once */
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT);
+        ReplicaCall secondVote = new VoteCall(secondReplica, msg);
+        fanOut(fanOut, secondVote);
+        KVMessage firstReply = new VoteCall(firstReplica, msg).call();
+        // sent here if no worker has taken it up yet
+        secondVote.run();
+        KVMessage secondReply = secondVote.await(deadline);
 
         Lib.assertTrue(firstReplica.getSlaveID() != secondReplica.getSlaveID(),
             "ERROR: handleTPCRequest got two of the same slave.");
@@ -211,48 +254,173 @@ public class TPCMaster {
         if(firstReply.getMsgType().equals(READY) && secondReply.getMsgType().equals(READY)) {
             sendDecision(msg.getKey(), COMMIT);
             cache(msg);
-            synchronized(keyBlock) {
-                workingKey = null;
-                keyBlock.notify();
-            }
         } else {
             sendDecision(msg.getKey(), ABORT);
-            synchronized(keyBlock) {
-                workingKey = null;
-                keyBlock.notify();
-            }
-            throw new KVException(firstReply.getMessage());
+            KVMessage vote = firstReply.getMsgType().equals(READY) ? secondReply : firstReply;
+            throw new KVException(vote.getMessage());
         }
     }
 
     /**
      * Send a decision (i.e., COMMIT or ABORT) to a replica set. 
-     * Block until an ACK is received from both slaves involved.
+     * Block until an ACK is received from both slaves involved. Both
+     * slaves are sent the decision at once, each retried until it ACKs.
      *
      * @param key The Key we're updating in this 2PC. 
      * @param decision COMMIT or ABOR
      */
     private void sendDecision(String key, String decision) {
-        KVClient firstClient, secondClient;
-        TPCSlaveInfo firstReplica;
-        boolean firstAck = false;
-        boolean secondAck = false;
-
-        do {
-            firstReplica = findFirstReplica(key);
-            firstClient = new KVClient(firstReplica.getHostname(), firstReplica.getPort(), TIMEOUT);
+        ReplicaCall secondAck = new DecisionCall(key, decision, true);
+        fanOut(decisions, secondAck);
+        new DecisionCall(key, decision, false).call();
+        secondAck.run();
+        secondAck.await(Long.MAX_VALUE);
+    }
+
+    /**
+     * Offer a ReplicaCall to a pool, or run it on this thread if the pool
+     * will not take it. The caller runs it itself once it is done with the
+     * first replica, which does nothing if a worker has it by then, so a
+     * call never waits in the queue behind busy workers for long.
+     *
+     * @param pool the pool to run the call on
+     * @param call the message to send
+     */
+    private static void fanOut(ThreadPool pool, ReplicaCall call) {
+        if (!pool.offerJob(call)) {
+            call.run();
+        }
+    }
+
+    /**
+     * A message sent to one replica, possibly on another thread, whose
+     * reply the sender collects with await(). A call runs at most once:
+     * run() does nothing if the call was cancelled or already ran.
+     */
+    private abstract static class ReplicaCall implements Runnable {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private volatile KVMessage reply;
+
+        /**
+         * Send the message and wait for the reply.
+         *
+         * @return the reply, or the error the message failed with
+         */
+        abstract KVMessage call();
+
+        @Override
+        public void run() {
+            if (!claimed.compareAndSet(false, true)) {
+                return;
+            }
             try {
-                firstAck = firstClient.sendMessage(decision).getMsgType().equals(ACK);
-            } catch(Exception e) {}
-        } while(!firstAck);
+                reply = call();
+            } finally {
+                done.countDown();
+            }
+        }
 
-        do {
-            TPCSlaveInfo secondReplica = findSuccessor(firstReplica);
-            secondClient = new KVClient(secondReplica.getHostname(), secondReplica.getPort(), TIMEOUT);
+        /**
+         * Wait for the reply until a deadline shared with the other replica.
+         * A call not started by then is cancelled. One already under way is
+         * waited for all the same, so its message cannot reach the replica
+         * after the decision; a VoteCall is bounded by the socket timeout.
+         *
+         * @param deadline System.nanoTime() to give up at, Long.MAX_VALUE
+         *        to wait as long as it takes
+         * @return the reply, or an ABORT with ERROR_SOCKET_TIMEOUT if none
+         *         came by the deadline
+         */
+        KVMessage await(long deadline) {
+            boolean inTime = true;
+            if (deadline != Long.MAX_VALUE) {
+                try {
+                    inTime = done.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    inTime = false;
+                }
+            }
+            // a call still queued is cancelled; one under way is joined
+            if (inTime || !claimed.compareAndSet(false, true)) {
+                join();
+            }
+            KVMessage result = reply;
+            return (inTime && result != null)
+                ? result : new KVMessage(ABORT, ERROR_SOCKET_TIMEOUT);
+        }
+
+        /** Wait for the call to finish, keeping any interrupt for later. */
+        private void join() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    done.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /** Phase 1 vote request to one replica. */
+    private static class VoteCall extends ReplicaCall {
+        private final TPCSlaveInfo replica;
+        private final KVMessage msg;
+
+        VoteCall(TPCSlaveInfo replica, KVMessage msg) {
+            this.replica = replica;
+            this.msg = msg;
+        }
+
+        @Override
+        KVMessage call() {
+            KVClient client = new KVClient(replica.getHostname(), replica.getPort(), TIMEOUT);
             try {
-                secondAck = secondClient.sendMessage(decision).getMsgType().equals(ACK);
-            } catch(Exception e) {}
-        } while(!secondAck);
+                return client.sendMessage(msg.getMsgType(), msg.getKey(), msg.getValue());
+            } catch(KVException e) {
+                return e.getKVMessage();
+            }
+        }
+    }
+
+    /**
+     * Phase 2 decision to one replica, retried until it ACKs. The replica
+     * is looked up again on every try, since a slave that comes back
+     * online may have moved.
+     */
+    private class DecisionCall extends ReplicaCall {
+        private final String key;
+        private final String decision;
+        private final boolean successor;
+
+        DecisionCall(String key, String decision, boolean successor) {
+            this.key = key;
+            this.decision = decision;
+            this.successor = successor;
+        }
+
+        @Override
+        KVMessage call() {
+            while (true) {
+                TPCSlaveInfo replica = findFirstReplica(key);
+                if (successor) {
+                    replica = findSuccessor(replica);
+                }
+                KVClient client = new KVClient(replica.getHostname(), replica.getPort(), TIMEOUT);
+                try {
+                    KVMessage reply = client.sendMessage(decision);
+                    if (reply.getMsgType().equals(ACK)) {
+                        return reply;
+                    }
+                } catch(Exception e) {}
+            }
+        }
     }
 
     /**
@@ -270,32 +438,41 @@ public class TPCMaster {
      *         the value from either slave for any reason
      */
     public String handleGet(KVMessage msg) throws KVException {
-        okayToService(msg);           
-        Lib.assertTrue(msg.getKey() != workingKey, "ERROR: Key conflict");
-        KVMessage responseMessage = null;
+        okayToService(msg);
         String response = null;
-        TPCSlaveInfo firstSlave = findFirstReplica(msg.getKey());
-
-        if((response = masterCache.get(msg.getKey())) != null)
-            return response;
-        if((response = getFromSlave(msg, firstSlave)) != null)
-            return response;
-        if((response = getFromSlave(msg, findSuccessor(firstSlave))) != null)
-            return response;
-        throw new KVException(ERROR_NO_SUCH_KEY);
+        KeyLock keyLock = lockKey(msg.getKey());
+        try {
+            keyLock.lock.readLock().lock();
+            try {
+                TPCSlaveInfo firstSlave = findFirstReplica(msg.getKey());
+
+                Lock cacheLock = masterCache.getReadLock(msg.getKey());
+                cacheLock.lock();
+                try {
+                    response = masterCache.get(msg.getKey());
+                } finally {
+                    cacheLock.unlock();
+                }
+                if(response != null)
+                    return response;
+                if((response = getFromSlave(msg, firstSlave)) != null)
+                    return response;
+                if((response = getFromSlave(msg, findSuccessor(firstSlave))) != null)
+                    return response;
+                throw new KVException(ERROR_NO_SUCH_KEY);
+            } finally {
+                keyLock.lock.readLock().unlock();
+            }
+        } finally {
+            unlockKey(msg.getKey(), keyLock);
+        }
     }
 
     /** 
-     * Check for data conflicts or too few slaves registered 
+     * Check for too few slaves registered. Conflicts on a key are handled
+     * by its KeyLock.
      */
     private  void okayToService(KVMessage msg) {
-        synchronized(keyBlock) {
-            if(msg.getKey().equals(workingKey) && workingKey != null) {
-                try {
-                    keyBlock.wait();
-                } catch(InterruptedException e) {}
-            }
-        }
         synchronized(registrationBlock) {
             if(getNumRegisteredSlaves() < numSlaves) {
                 try {
@@ -334,16 +511,107 @@ public class TPCMaster {
      * @param msg to be parsed for cache manipulation.
      */
      private void cache(KVMessage msg) {
-        switch(msg.getMsgType()) {
-            case PUT_REQ:
-                masterCache.put(msg.getKey(), msg.getValue());
-                break;
-            case DEL_REQ:
-                masterCache.del(msg.getKey());
-                break;
+        Lock lock = masterCache.getLock(msg.getKey());
+        lock.lock();
+        try {
+            switch(msg.getMsgType()) {
+                case PUT_REQ:
+                    masterCache.put(msg.getKey(), msg.getValue());
+                    break;
+                case DEL_REQ:
+                    masterCache.del(msg.getKey());
+                    break;
+            }
+        } finally {
+            lock.unlock();
         }
      }
 
+    /**
+     * Find or create the lock on a key and count this thread as a user of
+     * it. Every call must be followed by unlockKey() once the caller has
+     * released the lock.
+     *
+     * @param key the key a transaction or get is working on
+     * @return the KeyLock for key
+     */
+    private KeyLock lockKey(String key) {
+        synchronized(keyLocks) {
+            KeyLock keyLock = keyLocks.get(key);
+            if (keyLock == null) {
+                keyLock = new KeyLock();
+                keyLocks.put(key, keyLock);
+            }
+            keyLock.users++;
+            return keyLock;
+        }
+    }
+
+    /**
+     * Stop using the lock on a key, dropping it from the lock table once no
+     * thread holds or waits on it.
+     *
+     * @param key the key passed to lockKey()
+     * @param keyLock the KeyLock returned by lockKey()
+     */
+    private void unlockKey(String key, KeyLock keyLock) {
+        synchronized(keyLocks) {
+            if (--keyLock.users == 0) {
+                keyLocks.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Lock both replicas of a transaction. A slave keeps only one request
+     * between its vote and the decision, so two transactions sharing a
+     * replica must not overlap, even on different keys. The locks are
+     * always taken in ring order, so transactions never deadlock.
+     *
+     * @param firstReplica primary replica of the key
+     * @param secondReplica successor of firstReplica
+     * @return the two locks taken, in the order they were taken
+     */
+    private Lock[] lockReplicas(TPCSlaveInfo firstReplica, TPCSlaveInfo secondReplica) {
+        Lock first = getReplicaLock(firstReplica.getSlaveID());
+        Lock second = getReplicaLock(secondReplica.getSlaveID());
+        if (isLessThanUnsigned(secondReplica.getSlaveID(), firstReplica.getSlaveID())) {
+            Lock swap = first;
+            first = second;
+            second = swap;
+        }
+        first.lock();
+        second.lock();
+        return new Lock[] { first, second };
+    }
+
+    /**
+     * @param slaveID ID of a registered slave
+     * @return the lock serializing 2PC on that slave
+     */
+    private ReentrantLock getReplicaLock(long slaveID) {
+        synchronized(replicaLocks) {
+            ReentrantLock lock = replicaLocks.get(slaveID);
+            if (lock == null) {
+                lock = new ReentrantLock();
+                replicaLocks.put(slaveID, lock);
+            }
+            return lock;
+        }
+    }
+
+    /**
+     * Lock table entry for one key. 2PC requests on a key take its write
+     * lock, so they run one at a time while requests on other keys go
+     * ahead in parallel; gets take the read lock so they never see a
+     * request halfway through. users counts the threads holding or
+     * waiting on the lock, guarded by keyLocks.
+     */
+    private static class KeyLock {
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        int users;
+    }
+
     /** 
      * Wrapper to catch errors during development. 
      * This class' functionality can be disabled with the configuration variable:
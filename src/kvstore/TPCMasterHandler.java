@@ -38,10 +38,24 @@ public class TPCMasterHandler implements NetworkHandler {
      * @param connections the number of connections in this slave's ThreadPool
      */
     public TPCMasterHandler(long slaveID, KVServer kvServer, TPCLog log, int connections) {
+        this(slaveID, kvServer, log, new ThreadPool(connections));
+    }
+
+    /**
+     * Constructs a TPCMasterHandler that services requests on the given
+     * ThreadPool. Pass a VirtualThreadPool to run each request from the
+     * master on its own virtual thread.
+     *
+     * @param slaveID the ID for this slave server
+     * @param kvServer KVServer for this slave
+     * @param log the log for this slave
+     * @param threadpool pool to service requests
+     */
+    public TPCMasterHandler(long slaveID, KVServer kvServer, TPCLog log, ThreadPool threadpool) {
         this.slaveID = slaveID;
         this.kvServer = kvServer;
         this.tpcLog = log;
-        this.threadpool = new ThreadPool(connections);
+        this.threadpool = threadpool;
     }
 
     /**
@@ -128,12 +142,14 @@ public class TPCMasterHandler implements NetworkHandler {
                 String msgTyp = kvm.getMsgType();
                 switch(msgTyp) {
                     case PUT_REQ:
-                        tpcLog.appendAndFlush(kvm);
-                        handlePutReq(kvm.getKey(), kvm.getValue());
+                        if (logVote(kvm)) {
+                            handlePutReq(kvm.getKey(), kvm.getValue());
+                        }
                         break;
                     case DEL_REQ:
-                        tpcLog.appendAndFlush(kvm);
-                        handleDelReq(kvm.getKey());
+                        if (logVote(kvm)) {
+                            handleDelReq(kvm.getKey());
+                        }
                         break;
                     case GET_REQ:
                         handleGetReq(kvm.getKey());
@@ -153,6 +169,26 @@ public class TPCMasterHandler implements NetworkHandler {
         }
         
 
+        /**
+         * Log a request before voting on it. If it cannot be logged, vote
+         * ABORT, since a READY vote promises the request survives a crash.
+         *
+         * @param request the PUT_REQ or DEL_REQ from the master
+         * @return true if the request is logged and the vote is still to do
+         */
+        private boolean logVote(KVMessage request) {
+            try {
+                tpcLog.appendAndFlush(request);
+                return true;
+            } catch (KVException e) {
+                try {
+                    new KVMessage(ABORT, ERROR_COULD_NOT_ACCESS_LOG).sendMessage(master);
+                } catch (KVException f) {
+                }
+                return false;
+            }
+        }
+
         private void handlePutReq(String key, String value) {
             /* Check if key, value pair possible if not send abort
              * and error message else send ready vote 
@@ -208,25 +244,10 @@ public class TPCMasterHandler implements NetworkHandler {
             }
         }
         
-        private void handleCommit(KVMessage currentKvm) {
-            // Grab the last entry
-            KVMessage lastKvm = tpcLog.getLastEntry();
-            if (lastKvm.getMsgType().equals(PUT_REQ)) {
-            	tpcLog.appendAndFlush(currentKvm);
-                String key = lastKvm.getKey();
-                String value = lastKvm.getValue();
-                try {
-                    kvServer.put(key, value);
-                } catch (KVException e) {
-                }
-            } else if (lastKvm.getMsgType().equals(DEL_REQ)) {
-            	tpcLog.appendAndFlush(currentKvm);
-                String key = lastKvm.getKey();
-                try {
-                    kvServer.del(key);
-                } catch (KVException e) {
-                }
-            }
+        private void handleCommit(KVMessage currentKvm) throws KVException {
+            // Log the decision and apply the request it commits; if that
+            // fails, send no ACK so the master sends the decision again
+            tpcLog.commit(currentKvm);
 
             // Send ack to master
             KVMessage kvm = new KVMessage(ACK);
@@ -31,7 +31,19 @@ public class TPCRegistrationHandler implements NetworkHandler {
      * @param connections number of threads in threadPool to service requests
      */
     public TPCRegistrationHandler(TPCMaster master, int connections) {
-        this.threadpool = new ThreadPool(connections);
+        this(master, new ThreadPool(connections));
+    }
+
+    /**
+     * Constructs a TPCRegistrationHandler that services requests on the
+     * given ThreadPool. Pass a VirtualThreadPool to run each registration
+     * on its own virtual thread.
+     *
+     * @param master TPCMaster to carry out requests
+     * @param threadpool pool to service requests
+     */
+    public TPCRegistrationHandler(TPCMaster master, ThreadPool threadpool) {
+        this.threadpool = threadpool;
         this.master = master;
     }
 
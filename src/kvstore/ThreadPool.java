@@ -1,13 +1,28 @@
 package kvstore;
-import java.util.ArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class ThreadPool 
 {
+    /** Queue capacity used when none is given. */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * What addJob() does when the queue is full.
+     * BLOCK makes the caller wait for room, pushing back on whoever is
+     * producing work. REJECT throws a RejectedExecutionException right away
+     * so the caller can shed the work instead.
+     */
+    public enum RejectionPolicy { BLOCK, REJECT }
+
     private Thread threads[];
-    private ArrayList<Runnable> jobQueue; 
+    private RejectionPolicy policy;
+    private JobQueue jobQueue;
     private ReentrantLock jobQueueLock;
-    private Object sleepObject;
+    private Condition notEmpty;
+    private Condition notFull;
 
     /**
      * Constructs a Threadpool with a starting number of threads.
@@ -15,18 +30,30 @@ public class ThreadPool
      * @param size number of threads in the thread pool
      */
     public ThreadPool(int size) 
+    {
+        this(size, DEFAULT_CAPACITY, RejectionPolicy.BLOCK);
+    }
+
+    /**
+     * Constructs a Threadpool with a bounded job queue.
+     *
+     * @param size number of threads in the thread pool
+     * @param capacity maximum number of jobs waiting in the queue
+     * @param policy what to do when a job is added to a full queue
+     */
+    public ThreadPool(int size, int capacity, RejectionPolicy policy)
     {
         threads = new Thread[size];
-        jobQueue = new ArrayList<Runnable>();
+        jobQueue = new JobQueue(capacity);
+        this.policy = policy;
         jobQueueLock = new ReentrantLock();
-        sleepObject = new Object();
-       
-        jobQueueLock.lock();
-            for(int i = 0; i<size; i++)  {
-                threads[i] = new WorkerThread(this); 
-                threads[i].start();
-            }
-        jobQueueLock.unlock();
+        notEmpty = jobQueueLock.newCondition();
+        notFull = jobQueueLock.newCondition();
+
+        for(int i = 0; i<size; i++)  {
+            threads[i] = new WorkerThread(this);
+            threads[i].start();
+        }
     }
 
     /**
@@ -35,17 +62,61 @@ public class ThreadPool
      * if one exists and start processing it.
      *
      * @param r job that has to be executed
-     * @throws InterruptedException if thread is interrupted while in blocked
-     *         state. Your implementation may or may not actually throw this.
+     * @throws InterruptedException if thread is interrupted while waiting for
+     *         room in the queue under RejectionPolicy.BLOCK
+     * @throws RejectedExecutionException if the queue is full under
+     *         RejectionPolicy.REJECT
      */
     public void addJob(Runnable r) throws InterruptedException 
+    {
+        jobQueueLock.lockInterruptibly();
+        try {
+            while(jobQueue.count == jobQueue.jobs.length) {
+                if(policy == RejectionPolicy.REJECT) {
+                    jobQueue.jobsRejected++;
+                    throw new RejectedExecutionException("Job queue full");
+                }
+                notFull.await();
+            }
+            enqueue(r);
+        } finally {
+            jobQueueLock.unlock();
+        }
+    }
+
+    /**
+     * Add a job only if there is room in the queue right now, whatever the
+     * pool's RejectionPolicy.
+     *
+     * @param r job that has to be executed
+     * @return true if the job was queued, false if the queue was full
+     */
+    public boolean offerJob(Runnable r)
     {
         jobQueueLock.lock();
-            jobQueue.add(r);
-            synchronized(sleepObject) {
-                sleepObject.notify();
+        try {
+            if(jobQueue.count == jobQueue.jobs.length) {
+                jobQueue.jobsRejected++;
+                return false;
             }
-        jobQueueLock.unlock();
+            enqueue(r);
+            return true;
+        } finally {
+            jobQueueLock.unlock();
+        }
+    }
+
+    /** Must hold jobQueueLock and have room in the queue. */
+    private void enqueue(Runnable r)
+    {
+        JobQueue q = jobQueue;
+        int tail = (q.head + q.count) % q.jobs.length;
+        q.jobs[tail] = r;
+        q.enqueueTimes[tail] = System.nanoTime();
+        q.count++;
+        if(q.count > q.maxQueueDepth)
+            q.maxQueueDepth = q.count;
+        notEmpty.signal();
     }
 
     /**
@@ -56,18 +127,26 @@ public class ThreadPool
      */
     public Runnable getJob() throws InterruptedException  
     {
-        Runnable nextTask = null;
-        jobQueueLock.lock();
-            while(!(jobQueue.size() > 0)) {
-                synchronized(sleepObject) {
-                    jobQueueLock.unlock();
-                    sleepObject.wait();
-                }
-                jobQueueLock.lock();
-            }
-        nextTask = jobQueue.remove(0);
-        jobQueueLock.unlock();
-        return nextTask;
+        jobQueueLock.lockInterruptibly();
+        try {
+            JobQueue q = jobQueue;
+            while(q.count == 0)
+                notEmpty.await();
+            Runnable nextTask = q.jobs[q.head];
+            long waited = System.nanoTime() - q.enqueueTimes[q.head];
+            q.jobs[q.head] = null;
+            q.head = (q.head + 1) % q.jobs.length;
+            q.count--;
+
+            q.jobsStarted++;
+            q.totalWaitNanos += waited;
+            if(waited > q.maxWaitNanos)
+                q.maxWaitNanos = waited;
+            notFull.signal();
+            return nextTask;
+        } finally {
+            jobQueueLock.unlock();
+        }
     }
 
     /** Return the number of WorkerThreads still alive. Used for debug */
@@ -83,7 +162,99 @@ public class ThreadPool
     /** Return the number of jobs currently in the queue. Used for debug */
     protected int getNumJobs() 
     {
-        return jobQueue.size();
+        jobQueueLock.lock();
+        try {
+            return jobQueue.count;
+        } finally {
+            jobQueueLock.unlock();
+        }
+    }
+
+    /** @return the maximum number of jobs the queue holds */
+    public int getCapacity()
+    {
+        return jobQueue.jobs.length;
+    }
+
+    /** @return the largest number of jobs ever waiting at once */
+    public int getMaxQueueDepth()
+    {
+        jobQueueLock.lock();
+        try {
+            return jobQueue.maxQueueDepth;
+        } finally {
+            jobQueueLock.unlock();
+        }
+    }
+
+    /** @return the number of jobs handed to a worker so far */
+    public long getNumJobsStarted()
+    {
+        jobQueueLock.lock();
+        try {
+            return jobQueue.jobsStarted;
+        } finally {
+            jobQueueLock.unlock();
+        }
+    }
+
+    /** @return the number of jobs turned away because the queue was full */
+    public long getNumJobsRejected()
+    {
+        jobQueueLock.lock();
+        try {
+            return jobQueue.jobsRejected;
+        } finally {
+            jobQueueLock.unlock();
+        }
+    }
+
+    /** @return mean time a job spent queued before a worker took it, in ms */
+    public double getAverageWaitMillis()
+    {
+        jobQueueLock.lock();
+        try {
+            if(jobQueue.jobsStarted == 0)
+                return 0;
+            return (double) jobQueue.totalWaitNanos / jobQueue.jobsStarted / TimeUnit.MILLISECONDS.toNanos(1);
+        } finally {
+            jobQueueLock.unlock();
+        }
+    }
+
+    /** @return longest time a job spent queued, in ms */
+    public double getMaxWaitMillis()
+    {
+        jobQueueLock.lock();
+        try {
+            return (double) jobQueue.maxWaitNanos / TimeUnit.MILLISECONDS.toNanos(1);
+        } finally {
+            jobQueueLock.unlock();
+        }
+    }
+
+    /**
+     * Ring buffer of jobs plus its counters, guarded by jobQueueLock. Kept
+     * in one object so every reference to the pool shares the same state.
+     */
+    private static class JobQueue
+    {
+        Runnable jobs[];
+        long enqueueTimes[];
+        int head;
+        int count;
+
+        long jobsStarted;
+        long jobsRejected;
+        long totalWaitNanos;
+        long maxWaitNanos;
+        int maxQueueDepth;
+
+        JobQueue(int capacity)
+        {
+            jobs = new Runnable[capacity];
+            enqueueTimes = new long[capacity];
+        }
     }
 
     /** A thread in the thread pool. */
@@ -112,13 +283,13 @@ public class ThreadPool
                 while(alive) {
                     try {
                         threadPool.getJob().run();
-                    } 
+                    }
                     catch(Exception e) {
                     }
-                } 
-            } 
+                }
+            }
             catch(Exception e) {
-            } 
+            }
             finally {
                 alive = false;
             }
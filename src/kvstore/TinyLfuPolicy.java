@@ -0,0 +1,130 @@
+package kvstore;
+
+import java.util.List;
+
+import kvstore.KVCache.CacheEntry;
+
+/**
+ * TinyLFU admission in front of any other policy. Every access, hit or
+ * miss, is counted in a small count-min sketch of recent key frequencies,
+ * and a new key only replaces the victim the wrapped policy picked if the
+ * sketch has seen it more often. A burst of keys that are each used once
+ * therefore cannot push out entries that are used again and again. The
+ * counts are halved every ten accesses per entry of capacity so the
+ * sketch follows a changing workload.
+ *
+ * The sketch is guarded by its own monitor because readers holding the
+ * shared set lock all count into it.
+ */
+public class TinyLfuPolicy implements EvictionPolicy {
+
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    // Bigger sets share counters rather than grow the sketch further
+    private static final int MAX_CAPACITY = 1 << 20;
+    private static final int[] SEEDS = {
+        0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F
+    };
+
+    private final EvictionPolicy policy;
+    private final int[] counts;
+    private final int mask;
+    private final int sampleSize;
+    private int samples;
+
+    /**
+     * Wrap the policies made by another factory in TinyLFU admission.
+     *
+     * @param  policy makes the policy that picks victims
+     * @return a factory for admission-filtered policies
+     */
+    public static EvictionPolicy.Factory factory(final EvictionPolicy.Factory policy) {
+        return new EvictionPolicy.Factory() {
+            @Override
+            public EvictionPolicy create(int capacity) {
+                return new TinyLfuPolicy(policy.create(capacity), capacity);
+            }
+
+            @Override
+            public String toString() {
+                return "tinylfu+" + policy;
+            }
+        };
+    }
+
+    /**
+     * @param policy the policy that picks victims
+     * @param capacity the maximum number of entries in the set
+     */
+    public TinyLfuPolicy(EvictionPolicy policy, int capacity) {
+        this.policy = policy;
+        capacity = Math.min(capacity, MAX_CAPACITY);
+        int width = Integer.highestOneBit(Math.max(16, capacity * 2) - 1) << 1;
+        counts = new int[DEPTH * width];
+        mask = width - 1;
+        sampleSize = Math.max(16, capacity * 10);
+    }
+
+    /** @return the sketch's estimate of how often key was used lately */
+    synchronized int frequency(String key) {
+        int h = key.hashCode();
+        int min = MAX_COUNT;
+        for (int i = 0; i < DEPTH; i++) {
+            min = Math.min(min, counts[index(h, i)]);
+        }
+        return min;
+    }
+
+    private synchronized void increment(String key) {
+        int h = key.hashCode();
+        for (int i = 0; i < DEPTH; i++) {
+            int j = index(h, i);
+            if (counts[j] < MAX_COUNT) {
+                counts[j]++;
+            }
+        }
+        if (++samples == sampleSize) {
+            for (int j = 0; j < counts.length; j++) {
+                counts[j] >>>= 1;
+            }
+            samples /= 2;
+        }
+    }
+
+    private int index(int hash, int row) {
+        int h = hash * SEEDS[row];
+        h ^= h >>> 16;
+        return row * (mask + 1) + (h & mask);
+    }
+
+    @Override
+    public void touched(String key, CacheEntry entry) {
+        increment(key);
+        policy.touched(key, entry);
+    }
+
+    @Override
+    public void inserted(CacheEntry entry) {
+        policy.inserted(entry);
+    }
+
+    @Override
+    public void removed(CacheEntry entry, boolean evicted) {
+        policy.removed(entry, evicted);
+    }
+
+    @Override
+    public CacheEntry victim() {
+        return policy.victim();
+    }
+
+    @Override
+    public boolean admit(String key, CacheEntry victim) {
+        return frequency(key) > frequency(victim.key) && policy.admit(key, victim);
+    }
+
+    @Override
+    public List<CacheEntry> entries() {
+        return policy.entries();
+    }
+}
@@ -0,0 +1,101 @@
+package kvstore;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replays a key trace against KVCaches with different eviction policies
+ * and prints the hit ratio of each. A trace is a text file with one
+ * request per line, either a bare key or "GET key", "PUT key" or
+ * "DEL key"; blank lines and lines starting with # are skipped. A GET
+ * that misses fills the cache the way KVServer does on a store read.
+ *
+ * Usage: TraceReplay trace-file [numSets maxElemsPerSet]
+ */
+public class TraceReplay {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1 && args.length != 3) {
+            System.err.println("Usage: TraceReplay trace-file [numSets maxElemsPerSet]");
+            System.exit(1);
+        }
+        int numSets = (args.length == 3) ? Integer.parseInt(args[1]) : 100;
+        int maxElemsPerSet = (args.length == 3) ? Integer.parseInt(args[2]) : 10;
+        List<String> trace = read(args[0]);
+
+        EvictionPolicy.Factory[] policies = {
+            SecondChancePolicy.FACTORY,
+            S3FifoPolicy.FACTORY,
+            TinyLfuPolicy.factory(SecondChancePolicy.FACTORY),
+            TinyLfuPolicy.factory(S3FifoPolicy.FACTORY)
+        };
+        System.out.println(trace.size() + " requests, " + numSets + " sets of "
+            + maxElemsPerSet);
+        for (EvictionPolicy.Factory policy : policies) {
+            KVCache cache = new KVCache(numSets, maxElemsPerSet, policy);
+            System.out.printf("%-24s %6.2f%%%n", policy,
+                100 * hitRatio(cache, trace));
+        }
+    }
+
+    /**
+     * Read a trace file into a list of requests.
+     *
+     * @param  fileName trace to read
+     * @return requests in trace order
+     * @throws IOException if the file cannot be read
+     */
+    public static List<String> read(String fileName) throws IOException {
+        List<String> trace = new ArrayList<String>();
+        BufferedReader in = new BufferedReader(new FileReader(fileName));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    trace.add(line);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return trace;
+    }
+
+    /**
+     * Run a trace against a cache from a single thread.
+     *
+     * @param  cache cache to replay against, normally empty
+     * @param  trace requests as described for the trace file
+     * @return the fraction of GETs that hit
+     */
+    public static double hitRatio(KVCache cache, Iterable<String> trace) {
+        long gets = 0;
+        long hits = 0;
+        for (String request : trace) {
+            String op = "GET";
+            String key = request;
+            int space = request.indexOf(' ');
+            if (space > 0) {
+                op = request.substring(0, space).toUpperCase();
+                key = request.substring(space + 1).trim();
+            }
+            if (op.equals("PUT")) {
+                cache.put(key, key);
+            } else if (op.equals("DEL")) {
+                cache.del(key);
+            } else {
+                gets++;
+                if (cache.get(key) != null) {
+                    hits++;
+                } else {
+                    cache.fill(key, key);
+                }
+            }
+        }
+        return (gets == 0) ? 0 : (double) hits / gets;
+    }
+}
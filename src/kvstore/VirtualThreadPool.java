@@ -0,0 +1,187 @@
+package kvstore;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A ThreadPool that runs every job on a thread of its own instead of
+ * queueing it for a fixed set of workers. On a JVM with virtual threads
+ * (Java 21 and up) each job gets a virtual thread, so blocking socket code
+ * in the handlers can serve tens of thousands of connections at once
+ * without sizing a pool.
+ *
+ * On older JVMs, and on Java 19 and 20 unless --enable-preview is given,
+ * it falls back to one platform thread per job. Nothing is logged when
+ * that happens; isVirtual() tells which mode is in use, and a caller
+ * that relies on very many blocked jobs should check it. The build stays
+ * at source level 1.7, so the virtual thread factory is looked up by
+ * reflection once, when the class loads; asking for it has no side
+ * effects, and jobs are then started through the plain ThreadFactory.
+ *
+ * Any handler that takes a ThreadPool can be switched to this mode at
+ * construction, e.g.
+ *     new ServerClientHandler(kvServer, new VirtualThreadPool());
+ */
+public class VirtualThreadPool extends ThreadPool
+{
+    /** Thread.ofVirtual().factory(), or null if unavailable. */
+    private static final ThreadFactory VIRTUAL = findVirtualFactory();
+
+    private Semaphore permits;
+    private RejectionPolicy policy;
+    private int maxThreads;
+    private AtomicInteger running = new AtomicInteger();
+    private AtomicLong jobsStarted = new AtomicLong();
+    private AtomicLong jobsRejected = new AtomicLong();
+
+    /**
+     * Constructs a VirtualThreadPool with no limit on concurrent jobs.
+     */
+    public VirtualThreadPool()
+    {
+        this(0, RejectionPolicy.BLOCK);
+    }
+
+    /**
+     * Constructs a VirtualThreadPool that runs at most maxThreads jobs at
+     * once. Past that, addJob() waits or rejects according to policy.
+     *
+     * @param maxThreads maximum concurrent jobs, 0 for no limit
+     * @param policy what to do when maxThreads jobs are already running
+     */
+    public VirtualThreadPool(int maxThreads, RejectionPolicy policy)
+    {
+        super(0, 1, policy);
+        this.maxThreads = maxThreads;
+        this.policy = policy;
+        if(maxThreads > 0)
+            permits = new Semaphore(maxThreads);
+    }
+
+    /**
+     * @return whether jobs run on virtual threads on this JVM; false if
+     *         they fall back to platform threads
+     */
+    public static boolean isVirtual()
+    {
+        return VIRTUAL != null;
+    }
+
+    /**
+     * Start a thread for the job right away.
+     *
+     * @param r job that has to be executed
+     * @throws InterruptedException if interrupted while waiting for a free
+     *         slot under RejectionPolicy.BLOCK
+     * @throws RejectedExecutionException if maxThreads jobs are running
+     *         under RejectionPolicy.REJECT
+     */
+    @Override
+    public void addJob(Runnable r) throws InterruptedException
+    {
+        if(permits != null) {
+            if(policy == RejectionPolicy.REJECT) {
+                if(!permits.tryAcquire()) {
+                    jobsRejected.incrementAndGet();
+                    throw new RejectedExecutionException("Too many running jobs");
+                }
+            } else {
+                permits.acquire();
+            }
+        }
+        start(r);
+    }
+
+    /**
+     * Start a thread for the job if a slot is free right now.
+     *
+     * @param r job that has to be executed
+     * @return true if the job was started, false if maxThreads are running
+     */
+    @Override
+    public boolean offerJob(Runnable r)
+    {
+        if(permits != null && !permits.tryAcquire()) {
+            jobsRejected.incrementAndGet();
+            return false;
+        }
+        start(r);
+        return true;
+    }
+
+    private void start(final Runnable r)
+    {
+        Runnable job = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    r.run();
+                } catch(RuntimeException e) {
+                } finally {
+                    running.decrementAndGet();
+                    if(permits != null)
+                        permits.release();
+                }
+            }
+        };
+        running.incrementAndGet();
+        jobsStarted.incrementAndGet();
+        try {
+            Thread thread = (VIRTUAL != null) ? VIRTUAL.newThread(job) : new Thread(job);
+            thread.start();
+        } catch(RuntimeException e) {
+            running.decrementAndGet();
+            if(permits != null)
+                permits.release();
+            throw new RejectedExecutionException("Could not start thread", e);
+        }
+    }
+
+    /** Return the number of jobs currently running. Used for debug */
+    @Override
+    protected int getNumLivingThreads()
+    {
+        return running.get();
+    }
+
+    /** Jobs never wait in a queue here. */
+    @Override
+    protected int getNumJobs()
+    {
+        return 0;
+    }
+
+    /** @return maxThreads, or Integer.MAX_VALUE if unlimited */
+    @Override
+    public int getCapacity()
+    {
+        return (maxThreads > 0) ? maxThreads : Integer.MAX_VALUE;
+    }
+
+    @Override
+    public long getNumJobsStarted()
+    {
+        return jobsStarted.get();
+    }
+
+    @Override
+    public long getNumJobsRejected()
+    {
+        return jobsRejected.get();
+    }
+
+    private static ThreadFactory findVirtualFactory()
+    {
+        try {
+            // Java 19 and 20 have the method but throw unless preview is on
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+                .getMethod("factory").invoke(builder);
+        } catch(Exception e) {
+            return null;
+        }
+    }
+}
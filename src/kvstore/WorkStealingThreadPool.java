@@ -0,0 +1,389 @@
+package kvstore;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A ThreadPool where every worker has its own job deque instead of all of
+ * them sharing one queue. New jobs are spread over the workers round-robin
+ * (a job added from inside a worker stays with that worker), each worker
+ * takes jobs from the head of its own deque, and a worker that runs dry
+ * steals from the tail of another worker's deque. Workers only contend on
+ * a lock when they touch the same deque.
+ *
+ * Jobs can also be added with an affinity. All jobs with the same affinity
+ * go to the same worker and are never stolen, so they run one after
+ * another on one thread. NioSocketServer uses the KVCache set of a
+ * request's key as its affinity, which turns contention on a hot set lock
+ * into uncontended sequential work.
+ */
+public class WorkStealingThreadPool extends ThreadPool
+{
+    /** How long an idle worker sleeps before looking for work to steal. */
+    private static final long IDLE_WAIT_MILLIS = 10;
+
+    private Worker workers[];
+    private RejectionPolicy policy;
+    private int capacity;
+    private AtomicInteger nextWorker = new AtomicInteger();
+    private ConcurrentLinkedQueue<Worker> idle = new ConcurrentLinkedQueue<Worker>();
+
+    private AtomicLong jobsStarted = new AtomicLong();
+    private AtomicLong jobsStolen = new AtomicLong();
+    private AtomicLong jobsRejected = new AtomicLong();
+
+    /**
+     * Constructs a WorkStealingThreadPool whose workers each hold up to
+     * DEFAULT_CAPACITY jobs and make the caller wait when full.
+     *
+     * @param size number of threads in the thread pool
+     */
+    public WorkStealingThreadPool(int size)
+    {
+        this(size, DEFAULT_CAPACITY, RejectionPolicy.BLOCK);
+    }
+
+    /**
+     * Constructs a WorkStealingThreadPool with bounded per-worker deques.
+     *
+     * @param size number of threads in the thread pool
+     * @param capacity maximum number of jobs waiting for each worker
+     * @param policy what to do when a job is added to a full deque
+     */
+    public WorkStealingThreadPool(int size, int capacity, RejectionPolicy policy)
+    {
+        super(0, 1, policy);
+        this.policy = policy;
+        this.capacity = capacity;
+        workers = new Worker[size];
+        for(int i = 0; i < size; i++)
+            workers[i] = new Worker(i);
+        for(int i = 0; i < size; i++)
+            workers[i].start();
+    }
+
+    /**
+     * Add a job that any worker may run.
+     *
+     * @param r job that has to be executed
+     * @throws InterruptedException if interrupted while waiting for room
+     *         under RejectionPolicy.BLOCK
+     * @throws RejectedExecutionException if the chosen deque is full under
+     *         RejectionPolicy.REJECT
+     */
+    @Override
+    public void addJob(Runnable r) throws InterruptedException
+    {
+        enqueue(r, -1, policy == RejectionPolicy.BLOCK);
+    }
+
+    /**
+     * Add a job that must run on the worker owning the given affinity.
+     * Jobs with equal affinity run in the order added, one at a time.
+     *
+     * @param r job that has to be executed
+     * @param affinity any int; negative means no affinity
+     * @throws InterruptedException if interrupted while waiting for room
+     *         under RejectionPolicy.BLOCK
+     * @throws RejectedExecutionException if the worker's deque is full under
+     *         RejectionPolicy.REJECT
+     */
+    public void addJob(Runnable r, int affinity) throws InterruptedException
+    {
+        enqueue(r, affinity, policy == RejectionPolicy.BLOCK);
+    }
+
+    @Override
+    public boolean offerJob(Runnable r)
+    {
+        return offerJob(r, -1);
+    }
+
+    /**
+     * Add a job with an affinity only if its worker has room right now.
+     *
+     * @param r job that has to be executed
+     * @param affinity any int; negative means no affinity
+     * @return true if the job was queued, false if the deque was full
+     */
+    public boolean offerJob(Runnable r, int affinity)
+    {
+        try {
+            enqueue(r, affinity, false);
+            return true;
+        } catch(RejectedExecutionException e) {
+            return false;
+        } catch(InterruptedException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Pick a worker for the job and queue it there. A worker never waits
+     * on its own full deque, since nobody else would drain it.
+     */
+    private void enqueue(Runnable r, int affinity, boolean block)
+            throws InterruptedException
+    {
+        Thread current = Thread.currentThread();
+        Worker w;
+        if(affinity >= 0) {
+            w = workers[affinity % workers.length];
+        } else if(current instanceof Worker && ((Worker) current).pool() == this) {
+            w = (Worker) current;
+            if(w.add(r, false, false))
+                return;
+            w = nextWorker();
+        } else {
+            w = nextWorker();
+        }
+        if(!w.add(r, affinity >= 0, block && w != current)) {
+            jobsRejected.incrementAndGet();
+            throw new RejectedExecutionException("Job deque full");
+        }
+    }
+
+    /**
+     * Block until some worker holds a job without an affinity and steal it,
+     * as an idle worker would, for the caller to run. Jobs with an affinity
+     * are never handed out, since they must run on their own worker.
+     *
+     * @return A runnable task that has to be executed
+     * @throws InterruptedException if interrupted while waiting for a job
+     */
+    @Override
+    public Runnable getJob() throws InterruptedException
+    {
+        while(true) {
+            Runnable job = steal(null);
+            if(job != null)
+                return job;
+            Thread.sleep(IDLE_WAIT_MILLIS);
+        }
+    }
+
+    private Worker nextWorker()
+    {
+        return workers[(nextWorker.getAndIncrement() & Integer.MAX_VALUE) % workers.length];
+    }
+
+    /** Wake one idle worker so it can steal a job that was just added. */
+    private void wakeIdle()
+    {
+        Worker w = idle.poll();
+        if(w != null)
+            w.wake();
+    }
+
+    /**
+     * Take a stealable job from the tail of some other worker's deque.
+     * A null thief may take from any worker.
+     */
+    private Runnable steal(Worker thief)
+    {
+        int start = (thief == null) ? 0 : (thief.index + 1) % workers.length;
+        for(int i = 0; i < workers.length; i++) {
+            Worker victim = workers[(start + i) % workers.length];
+            if(victim == thief)
+                continue;
+            Runnable job = victim.pollStealable();
+            if(job != null) {
+                jobsStolen.incrementAndGet();
+                return job;
+            }
+        }
+        return null;
+    }
+
+    /** Return the number of WorkerThreads still alive. Used for debug */
+    @Override
+    protected int getNumLivingThreads()
+    {
+        int aliveCount = 0;
+        for(int i = 0; i < workers.length; i++)
+            if(workers[i].alive)
+                aliveCount++;
+        return aliveCount;
+    }
+
+    /** Return the number of jobs waiting in all deques. Used for debug */
+    @Override
+    protected int getNumJobs()
+    {
+        int total = 0;
+        for(int i = 0; i < workers.length; i++)
+            total += workers[i].size();
+        return total;
+    }
+
+    /** @return the maximum number of jobs each worker's deque holds */
+    @Override
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    @Override
+    public long getNumJobsStarted()
+    {
+        return jobsStarted.get();
+    }
+
+    @Override
+    public long getNumJobsRejected()
+    {
+        return jobsRejected.get();
+    }
+
+    /** @return the number of jobs a worker took from another worker */
+    public long getNumJobsStolen()
+    {
+        return jobsStolen.get();
+    }
+
+    /**
+     * A worker and its deques. Pinned jobs have an affinity and stay with
+     * this worker; shared jobs may be stolen.
+     */
+    private class Worker extends Thread
+    {
+        private final int index;
+        private ArrayDeque<Runnable> pinned = new ArrayDeque<Runnable>();
+        private ArrayDeque<Runnable> shared = new ArrayDeque<Runnable>();
+        private ReentrantLock lock = new ReentrantLock();
+        private Condition hasWork = lock.newCondition();
+        private Condition notFull = lock.newCondition();
+        private volatile boolean alive = true;
+
+        Worker(int index)
+        {
+            this.index = index;
+        }
+
+        WorkStealingThreadPool pool()
+        {
+            return WorkStealingThreadPool.this;
+        }
+
+        /** @return false if the deque is full and block is false */
+        boolean add(Runnable r, boolean pin, boolean block) throws InterruptedException
+        {
+            lock.lockInterruptibly();
+            try {
+                while(pinned.size() + shared.size() >= capacity) {
+                    if(!block)
+                        return false;
+                    notFull.await();
+                }
+                if(pin)
+                    pinned.add(r);
+                else
+                    shared.add(r);
+                hasWork.signal();
+            } finally {
+                lock.unlock();
+            }
+            if(!pin)
+                wakeIdle();
+            return true;
+        }
+
+        /** Take the next job of our own, pinned ones first. */
+        private Runnable pollOwn()
+        {
+            lock.lock();
+            try {
+                Runnable job = pinned.poll();
+                if(job == null)
+                    job = shared.poll();
+                if(job != null)
+                    notFull.signal();
+                return job;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        Runnable pollStealable()
+        {
+            lock.lock();
+            try {
+                Runnable job = shared.pollLast();
+                if(job != null)
+                    notFull.signal();
+                return job;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int size()
+        {
+            lock.lock();
+            try {
+                return pinned.size() + shared.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void wake()
+        {
+            lock.lock();
+            try {
+                hasWork.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Wait briefly for work of our own, then go back to stealing. */
+        private void waitForWork() throws InterruptedException
+        {
+            lock.lock();
+            try {
+                if(pinned.isEmpty() && shared.isEmpty()) {
+                    idle.add(this);
+                    hasWork.await(IDLE_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+                    idle.remove(this);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Scan for and process tasks. */
+        @Override
+        public void run()
+        {
+            try {
+                while(alive) {
+                    Runnable job = pollOwn();
+                    if(job == null)
+                        job = steal(this);
+                    if(job == null) {
+                        waitForWork();
+                        continue;
+                    }
+                    jobsStarted.incrementAndGet();
+                    try {
+                        job.run();
+                    }
+                    catch(Exception e) {
+                    }
+                }
+            }
+            catch(Exception e) {
+            }
+            finally {
+                alive = false;
+            }
+        }
+    } // End Worker class
+} // End WorkStealingThreadPool class
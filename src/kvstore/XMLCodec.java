@@ -0,0 +1,26 @@
+package kvstore;
+
+import java.io.ByteArrayInputStream;
+
+/**
+ * Codec using the same XML format as the one-shot KVMessage protocol.
+ */
+public class XMLCodec implements KVMessageCodec {
+
+    public static final int ID = 0;
+
+    @Override
+    public int getId() {
+        return ID;
+    }
+
+    @Override
+    public byte[] encode(KVMessage msg) throws KVException {
+        return msg.toBytes();
+    }
+
+    @Override
+    public KVMessage decode(byte[] payload) throws KVException {
+        return new KVMessage(new ByteArrayInputStream(payload));
+    }
+}
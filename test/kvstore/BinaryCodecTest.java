@@ -0,0 +1,96 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.*;
+
+/**
+ * Tests for BinaryCodec and for negotiating it on a KVConnection.
+ */
+public class BinaryCodecTest {
+
+    BinaryCodec codec = new BinaryCodec();
+
+    @Test
+    public void roundTripsAllFields() throws KVException {
+        KVMessage put = new KVMessage(PUT_REQ);
+        put.setKey("k\u00e9y <&>");
+        put.setValue(new String(new char[1000]).replace('\0', '\u4e2d'));
+        KVMessage decoded = codec.decode(codec.encode(put));
+        assertEquals(PUT_REQ, decoded.getMsgType());
+        assertEquals(put.getKey(), decoded.getKey());
+        assertEquals(put.getValue(), decoded.getValue());
+        assertNull(decoded.getMessage());
+
+        KVMessage resp = new KVMessage(RESP, ERROR_NO_SUCH_KEY);
+        decoded = codec.decode(codec.encode(resp));
+        assertEquals(RESP, decoded.getMsgType());
+        assertEquals(ERROR_NO_SUCH_KEY, decoded.getMessage());
+        assertNull(decoded.getKey());
+    }
+
+    @Test
+    public void encodeValueMatchesEncode() throws KVException {
+        KVMessage resp = new KVMessage(RESP);
+        resp.setKey("k\u00e9y");
+        resp.setValue(new String(new char[300]).replace('\0', '\u4e2d'));
+        ByteBuffer value = ByteBuffer.wrap(resp.getValue().getBytes(StandardCharsets.UTF_8));
+
+        ByteBuffer joined = ByteBuffer.allocate(64 * 1024);
+        for (ByteBuffer part : codec.encodeValue(resp.getKey(), value)) {
+            joined.put(part);
+        }
+        joined.flip();
+        byte[] payload = new byte[joined.remaining()];
+        joined.get(payload);
+        assertTrue(Arrays.equals(codec.encode(resp), payload));
+        assertEquals(0, value.position());
+    }
+
+    @Test
+    public void rejectsInvalidMessages() throws KVException {
+        KVMessage put = new KVMessage(PUT_REQ);
+        put.setKey("only a key");
+        try {
+            codec.encode(put);
+            fail("put without value should not encode");
+        } catch (KVException e) {
+            assertEquals(ERROR_INVALID_FORMAT, e.getKVMessage().getMessage());
+        }
+
+        byte[] truncated = codec.encode(new KVMessage(RESP, SUCCESS));
+        byte[] shorter = new byte[truncated.length - 1];
+        System.arraycopy(truncated, 0, shorter, 0, shorter.length);
+        try {
+            codec.decode(shorter);
+            fail("truncated payload should not decode");
+        } catch (KVException e) {
+            assertEquals(ERROR_INVALID_FORMAT, e.getKVMessage().getMessage());
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void negotiatedOverConnection() throws IOException, InterruptedException, KVException {
+        String hostname = InetAddress.getLocalHost().getHostAddress();
+        SocketServer ss = new SocketServer(hostname, 8080);
+        ss.addHandler(new ServerClientHandler(new KVServer(100, 10), 2));
+        ServerRunner serverRunner = new ServerRunner(ss, "server");
+        serverRunner.start();
+        KVClient client = new KVClient(hostname, 8080, 0, true, codec);
+        try {
+            client.put("binary", "value");
+            assertEquals("value", client.get("binary"));
+            assertEquals("value", new KVClient(hostname, 8080).get("binary"));
+        } finally {
+            client.close();
+            serverRunner.stop();
+        }
+    }
+}
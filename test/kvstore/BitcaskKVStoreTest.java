@@ -0,0 +1,173 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.*;
+
+public class BitcaskKVStoreTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("bitcask", "");
+        dir.delete();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static void assertMissing(KVStore store, String key) {
+        try {
+            store.get(key);
+            fail(key + " should have been deleted");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+    }
+
+    @Test
+    public void putGetDel() throws KVException {
+        BitcaskKVStore store = new BitcaskKVStore(dir.getPath());
+        store.put("key", "value");
+        store.put("key", "newer \u00e9");
+        store.put("other", "");
+        assertEquals("newer \u00e9", store.get("key"));
+        assertEquals("", store.get("other"));
+        store.del("key");
+        assertMissing(store, "key");
+        try {
+            store.del("key");
+            fail("second del should fail");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+        store.close();
+    }
+
+    @Test
+    public void reopenRestoresKeys() throws KVException {
+        BitcaskKVStore store = new BitcaskKVStore(dir.getPath(), 256, false);
+        for (int i = 0; i < 50; i++) {
+            store.put("key" + i, "value" + i);
+        }
+        for (int i = 0; i < 50; i += 2) {
+            store.del("key" + i);
+        }
+        assertTrue(store.getNumFiles() > 1);
+        store.close();
+
+        BitcaskKVStore reopened = new BitcaskKVStore(dir.getPath(), 256, false);
+        for (int i = 0; i < 50; i++) {
+            if (i % 2 == 0) {
+                assertMissing(reopened, "key" + i);
+            } else {
+                assertEquals("value" + i, reopened.get("key" + i));
+            }
+        }
+        reopened.close();
+    }
+
+    @Test
+    public void tornTailIsCutOffWithoutHint() throws KVException, IOException {
+        BitcaskKVStore store = new BitcaskKVStore(dir.getPath());
+        store.put("kept", "value");
+        store.put("torn", "value");
+        // Simulate a crash: no close(), so no hint, and a half-written record
+        File data = dir.listFiles()[0];
+        RandomAccessFile raf = new RandomAccessFile(data, "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+
+        BitcaskKVStore reopened = new BitcaskKVStore(dir.getPath());
+        assertEquals("value", reopened.get("kept"));
+        assertMissing(reopened, "torn");
+        reopened.put("after", "crash");
+        reopened.close();
+
+        reopened = new BitcaskKVStore(dir.getPath());
+        assertEquals("crash", reopened.get("after"));
+        reopened.close();
+    }
+
+    @Test
+    public void mergeDropsDeadRecords() throws KVException {
+        BitcaskKVStore store = new BitcaskKVStore(dir.getPath(), 1024, false);
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 10; i++) {
+                store.put("key" + i, "round" + round);
+            }
+        }
+        store.del("key0");
+        store.merge();
+        assertTrue(store.getNumMerges() >= 1);
+        assertTrue(store.getNumFiles() <= 3);
+        assertMissing(store, "key0");
+        for (int i = 1; i < 10; i++) {
+            assertEquals("round19", store.get("key" + i));
+        }
+        store.close();
+
+        BitcaskKVStore reopened = new BitcaskKVStore(dir.getPath(), 1024, false);
+        assertMissing(reopened, "key0");
+        for (int i = 1; i < 10; i++) {
+            assertEquals("round19", reopened.get("key" + i));
+        }
+        reopened.close();
+    }
+
+    @Test
+    public void getBytesSlicesClosedFiles() throws KVException {
+        BitcaskKVStore store = new BitcaskKVStore(dir.getPath(), 256, false);
+        store.put("closed", "value \u00e9");
+        for (int i = 0; i < 20; i++) {
+            store.put("filler" + i, "value" + i);
+        }
+        store.put("active", "latest");
+
+        ByteBuffer closed = store.getBytes("closed");
+        assertTrue(closed.isDirect());
+        assertTrue(closed.isReadOnly());
+        assertEquals("value \u00e9", StandardCharsets.UTF_8.decode(closed).toString());
+        ByteBuffer active = store.getBytes("active");
+        assertTrue(active.isReadOnly());
+        assertEquals("latest", StandardCharsets.UTF_8.decode(active).toString());
+
+        // a slice stays readable after a merge deletes its file
+        ByteBuffer filler = store.getBytes("filler0");
+        store.put("filler0", "changed");
+        store.merge();
+        assertEquals("value0", StandardCharsets.UTF_8.decode(filler).toString());
+        assertEquals("changed", store.get("filler0"));
+        store.close();
+    }
+
+    @Test
+    public void servesKVServer() throws KVException {
+        KVServer server = new KVServer(new KVCache(2, 2),
+            new BitcaskKVStore(dir.getPath(), 512, false));
+        for (int i = 0; i < 20; i++) {
+            server.put("key" + i, "value" + i);
+        }
+        server.del("key3");
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i != 3, server.hasKey("key" + i));
+        }
+        assertEquals("value7", server.get("key7"));
+    }
+}
@@ -0,0 +1,149 @@
+package kvstore;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.*;
+
+public class EvictionPolicyTest {
+
+    private static final EvictionPolicy.Factory[] POLICIES = {
+        SecondChancePolicy.FACTORY,
+        S3FifoPolicy.FACTORY,
+        TinyLfuPolicy.factory(SecondChancePolicy.FACTORY),
+        TinyLfuPolicy.factory(S3FifoPolicy.FACTORY)
+    };
+
+    @Test
+    public void everyPolicyOnlyReturnsCurrentValues() {
+        for (EvictionPolicy.Factory policy : POLICIES) {
+            KVCache cache = new KVCache(3, 8, policy);
+            Map<String, String> latest = new HashMap<String, String>();
+            Random random = new Random(12);
+            for (int i = 0; i < 20000; i++) {
+                String key = "key" + random.nextInt(100);
+                int op = random.nextInt(10);
+                if (op < 5) {
+                    String value = cache.get(key);
+                    if (value != null) {
+                        assertEquals(policy.toString(), latest.get(key), value);
+                    }
+                } else if (op < 9) {
+                    String value = "value" + i;
+                    cache.put(key, value);
+                    latest.put(key, value);
+                } else {
+                    cache.del(key);
+                    latest.remove(key);
+                    assertNull(cache.get(key));
+                }
+                for (int j = 0; j < 3; j++) {
+                    assertTrue(cache.entries(j).size() <= 8);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void scanDoesNotFlushHotKeys() {
+        List<String> trace = new ArrayList<String>();
+        Random random = new Random(1);
+        int scanned = 0;
+        for (int round = 0; round < 200; round++) {
+            for (int i = 0; i < 200; i++) {
+                trace.add("hot" + random.nextInt(60));
+            }
+            for (int i = 0; i < 100; i++) {
+                trace.add("scan" + scanned++);
+            }
+        }
+        double secondChance = TraceReplay.hitRatio(
+            new KVCache(1, 80, SecondChancePolicy.FACTORY), trace);
+        double s3Fifo = TraceReplay.hitRatio(
+            new KVCache(1, 80, S3FifoPolicy.FACTORY), trace);
+        double tinyLfu = TraceReplay.hitRatio(new KVCache(1, 80,
+            TinyLfuPolicy.factory(SecondChancePolicy.FACTORY)), trace);
+        // two thirds of the requests are hot keys that all fit
+        assertTrue(s3Fifo > 0.64);
+        assertTrue(tinyLfu > 0.64);
+        assertTrue(secondChance < 0.55);
+    }
+
+    @Test
+    public void tinyLfuRejectsOneHitWonders() {
+        KVCache cache = new KVCache(1, 4,
+            TinyLfuPolicy.factory(SecondChancePolicy.FACTORY));
+        for (int i = 0; i < 4; i++) {
+            cache.put("hot" + i, "value");
+            cache.get("hot" + i);
+            cache.get("hot" + i);
+        }
+        cache.put("once", "value");
+        assertNull(cache.get("once"));
+        for (int i = 0; i < 4; i++) {
+            assertEquals("value", cache.get("hot" + i));
+        }
+    }
+
+    @Test
+    public void readThroughCountsOneAccess() throws KVException {
+        KVCache cache = new KVCache(1, 4,
+            TinyLfuPolicy.factory(SecondChancePolicy.FACTORY));
+        KVStore store = new KVStore();
+        KVServer server = new KVServer(cache, store);
+        for (int i = 0; i < 4; i++) {
+            server.put("hot" + i, "value");
+            server.get("hot" + i);
+        }
+        store.put("once", "value");
+        assertEquals("value", server.get("once"));
+        // one miss is not worth more than keys used twice
+        assertNull(cache.peek("once"));
+        for (int i = 0; i < 4; i++) {
+            assertEquals("value", cache.peek("hot" + i));
+        }
+    }
+
+    @Test
+    public void tinyLfuDecidesBeforeEvicting() {
+        KVCache cache = new KVCache(1, 300, 0,
+            TinyLfuPolicy.factory(SecondChancePolicy.FACTORY));
+        cache.put("a", "0123456789");
+        cache.put("b", "0123456789");
+        for (int i = 0; i < 5; i++) {
+            cache.get("b");
+        }
+        for (int i = 0; i < 3; i++) {
+            cache.get("big");
+        }
+        // needs both a and b gone; admitted against a, the first victim
+        String big = "0123456789012345678901234567890123456789"
+            + "0123456789012345678901234567890123456789";
+        cache.put("big", big);
+        assertEquals(big, cache.get("big"));
+    }
+
+    @Test
+    public void s3FifoPromotesKeysSeenAgain() {
+        KVCache cache = new KVCache(1, 10, S3FifoPolicy.FACTORY);
+        cache.put("reread", "value");
+        cache.get("reread");
+        for (int i = 0; i < 50; i++) {
+            cache.put("scan" + i, "value");
+        }
+        assertEquals("value", cache.get("reread"));
+        // just evicted from the small queue, so it comes back into main
+        assertNull(cache.get("scan40"));
+        cache.put("scan40", "again");
+        for (int i = 50; i < 100; i++) {
+            cache.put("scan" + i, "value");
+        }
+        assertEquals("again", cache.get("scan40"));
+        assertEquals("value", cache.get("reread"));
+    }
+}
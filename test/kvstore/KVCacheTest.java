@@ -4,8 +4,7 @@ import static org.junit.Assert.*;
 
 import java.io.IOException;
 import java.io.StringReader;
-import java.util.LinkedList;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.Lock;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -32,6 +31,208 @@ public class KVCacheTest {
         assertEquals("world", cache.get("hello"));
     }
     
+    /**
+     * Readers of a set share its lock; a writer shuts them out.
+     */
+    @Test(timeout = 10000)
+    public void readLockIsShared() throws InterruptedException {
+        final KVCache cache = new KVCache(1, 4);
+        cache.put("key", "value");
+        Lock read = cache.getReadLock("key");
+        read.lock();
+        final boolean[] results = new boolean[2];
+        Thread other = new Thread(new Runnable() {
+            public void run() {
+                Lock otherRead = cache.getReadLock("key");
+                results[0] = otherRead.tryLock();
+                if (results[0]) {
+                    results[1] = "value".equals(cache.get("key"));
+                    otherRead.unlock();
+                }
+            }
+        });
+        other.start();
+        other.join();
+        assertTrue(results[0]);
+        assertTrue(results[1]);
+
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                results[0] = cache.getLock("key").tryLock();
+            }
+        });
+        writer.start();
+        writer.join();
+        assertFalse(results[0]);
+        read.unlock();
+    }
+
+    /**
+     * Random puts, gets and deletes on a large set must evict exactly what a
+     * plain second-chance FIFO over a list would.
+     */
+    @Test
+    public void largeSetMatchesSecondChanceModel() {
+        int size = 2000;
+        CacheTest cache = new CacheTest(1, size);
+        java.util.LinkedList<String> order = new java.util.LinkedList<String>();
+        java.util.HashMap<String, Boolean> ref = new java.util.HashMap<String, Boolean>();
+        java.util.Random rand = new java.util.Random(42);
+        for (int op = 0; op < 50000; op++) {
+            String key = "k" + rand.nextInt(3 * size);
+            int kind = rand.nextInt(10);
+            if (kind < 5) {
+                cache.put(key, "v" + op);
+                if (ref.containsKey(key)) {
+                    ref.put(key, true);
+                } else {
+                    while (order.size() == size) {
+                        String head = order.pop();
+                        if (ref.get(head)) {
+                            ref.put(head, false);
+                            order.add(head);
+                        } else {
+                            ref.remove(head);
+                        }
+                    }
+                    order.add(key);
+                    ref.put(key, false);
+                }
+            } else if (kind < 9) {
+                boolean present = cache.get(key) != null;
+                assertEquals(ref.containsKey(key), present);
+                if (present) {
+                    ref.put(key, true);
+                }
+            } else {
+                cache.del(key);
+                if (ref.remove(key) != null) {
+                    order.remove(key);
+                }
+            }
+        }
+        assertEquals(order.size(), cache.getSetSize("k0"));
+        for (int i = 0; i < order.size(); i++) {
+            assertEquals(order.get(i), cache.set.get(0).get(i).key);
+            assertEquals(ref.get(order.get(i)), cache.getRefrenceAt("k0", i));
+        }
+    }
+
+    /**
+     * Resizing keeps what fits and drops what the new sets have no room for.
+     */
+    @Test
+    public void resizeKeepsEntries() {
+        KVCache cache = new KVCache(4, 10);
+        for (int i = 0; i < 20; i++) {
+            cache.put("key" + i, "value" + i);
+        }
+        cache.resize(7, 10);
+        for (int i = 0; i < 20; i++) {
+            assertEquals("value" + i, cache.get("key" + i));
+            assertEquals(Math.abs(("key" + i).hashCode() % 7), cache.getSetId("key" + i));
+        }
+        cache.resize(1, 3);
+        int kept = 0;
+        for (int i = 0; i < 20; i++) {
+            String value = cache.get("key" + i);
+            if (value != null) {
+                assertEquals("value" + i, value);
+                kept++;
+            }
+        }
+        assertEquals(3, kept);
+        cache.put("new", "value");
+        assertEquals("value", cache.get("new"));
+    }
+
+    /**
+     * A set lock taken during a resize still excludes every other holder
+     * for the key, whichever table the key is in.
+     */
+    @Test(timeout = 30000)
+    public void resizeUnderLoad() throws InterruptedException {
+        final KVCache cache = new KVCache(5, 4);
+        cache.put("counter", "0");
+        final int perThread = 2000;
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        Lock lock = cache.getLock("counter");
+                        lock.lock();
+                        try {
+                            int count = Integer.parseInt(cache.get("counter"));
+                            cache.put("counter", String.valueOf(count + 1));
+                        } finally {
+                            lock.unlock();
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        int round = 0;
+        while (threads[threads.length - 1].isAlive()) {
+            cache.resize(1 + (round++ % 13), 4);
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertTrue(round > 1);
+        assertEquals(String.valueOf(threads.length * perThread), cache.get("counter"));
+    }
+
+    /**
+     * A byte-limited set evicts as many entries as it takes to fit a big one.
+     */
+    @Test
+    public void byteBudgetEvictsUntilEntryFits() {
+        KVCache cache = new KVCache(1, 1000L, 0, SecondChancePolicy.FACTORY);
+        for (int i = 0; i < 10; i++) {
+            cache.put("k" + i, "v");
+            assertTrue(cache.getNumBytes() <= 1000);
+        }
+        // each small entry takes 134 bytes
+        assertEquals(7 * KVCache.footprint("k0", "v"), cache.getNumBytes());
+        String big = new String(new char[300]).replace('\0', 'x');
+        cache.put("big", big);
+        assertEquals(big, cache.get("big"));
+        assertEquals(KVCache.footprint("big", big) + KVCache.footprint("k9", "v"),
+            cache.getNumBytes());
+        cache.put("big", "small again");
+        assertEquals(KVCache.footprint("big", "small again") + KVCache.footprint("k9", "v"),
+            cache.getNumBytes());
+    }
+
+    /**
+     * Entries over the threshold are not cached and drop the old value.
+     */
+    @Test
+    public void largeEntriesBypassCache() {
+        KVCache cache = new KVCache(4, 1L << 20, 500, S3FifoPolicy.FACTORY);
+        String big = new String(new char[200]).replace('\0', 'x');
+        cache.put("key", "value");
+        cache.put("other", "value");
+        cache.put("key", big);
+        assertNull(cache.get("key"));
+        cache.put("new", big);
+        assertNull(cache.get("new"));
+        assertEquals("value", cache.get("other"));
+        assertEquals(KVCache.footprint("other", "value"), cache.getNumBytes());
+
+        java.util.Random rand = new java.util.Random(3);
+        cache = new KVCache(4, 40000L, 0, S3FifoPolicy.FACTORY);
+        for (int i = 0; i < 5000; i++) {
+            String value = new String(new char[rand.nextInt(2000)]).replace('\0', 'v');
+            cache.put("k" + rand.nextInt(500), value);
+            assertTrue(cache.getNumBytes() <= 40000);
+        }
+        cache.resizeToBudget(20000);
+        assertTrue(cache.getNumBytes() <= 20000);
+    }
+
     /**
      * A Bunch of tests
      */
@@ -224,15 +425,20 @@ public class KVCacheTest {
         }
     }
     
+    /** Threads waiting on the set lock of a key in globalCache */
+    private static int queueLength(String key) {
+        return globalCache.lockSet.get(globalCache.getSetId(key)).getQueueLength();
+    }
+
     public static class GrabsLock implements Runnable {
 
 		@Override
 		public void run() {
 			System.out.println("First Thread Running");
-			ReentrantLock rl = (ReentrantLock) globalCache.getLock("pudding");
+			Lock rl = globalCache.getLock("pudding");
 			rl.lock();
 			System.out.println("First Thread Locking");
-			assertEquals(rl.getQueueLength(), 0);
+			assertEquals(queueLength("pudding"), 0);
 			globalCache.put("pudding", "tastey");
 			try {
 				System.out.println("First Thread Sleeping");
@@ -242,7 +448,7 @@ public class KVCacheTest {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
 			}
-			assertEquals(rl.getQueueLength(), 1);
+			assertEquals(queueLength("pudding"), 1);
 			rl.unlock();
 			System.out.println("First Thread Released Lock");
 		}
@@ -254,7 +460,7 @@ public class KVCacheTest {
 		@Override
 		public void run() {
 			System.out.println("Second Thread Running");
-			ReentrantLock rl = (ReentrantLock) globalCache.getLock("pudding");
+			Lock rl = globalCache.getLock("pudding");
 			rl.lock();
 			System.out.println("Second Thread Locking");
 			globalCache.put("pudding", "bad");
@@ -272,7 +478,7 @@ public class KVCacheTest {
     	
 		public Boolean getIsReferenced(String key) {
 		 	int index = getSetId(key);
-			LinkedList<CacheEntry> ll = set.get(index);
+			CacheSet ll = set.get(index);
 			for (int i = 0; i < ll.size(); i++) {
 				CacheEntry ce = ll.get(i);
 				if (ce.key == key) {
@@ -313,7 +519,7 @@ public class KVCacheTest {
 	     */
 	    public int indexInSet(String key) {
 	    	int setid = getSetId(key);
-	        LinkedList<CacheEntry> ll = set.get(setid);
+	        CacheSet ll = set.get(setid);
 	    	for (int i = 0; i < ll.size(); i++) {
 	            CacheEntry ce = ll.get(i);
 	    		if (ce.key == key) {
@@ -329,7 +535,7 @@ public class KVCacheTest {
 	     */
 	    public void setAllIsReferenced(String key) {
 	    	int setid = getSetId(key);
-	        LinkedList<CacheEntry> ll = set.get(setid);
+	        CacheSet ll = set.get(setid);
 	    	for (int i = 0; i < ll.size(); i++) {
 	            CacheEntry ce = ll.get(i);
 	            ce.isReferenced = true;
@@ -338,21 +544,21 @@ public class KVCacheTest {
 	    
 	    public Boolean getRefrenceAt(String key, int index) {
 	    	int setid = getSetId(key);
-	        LinkedList<CacheEntry> ll = set.get(setid);
+	        CacheSet ll = set.get(setid);
 	        CacheEntry ce = ll.get(index);
 	        return ce.isReferenced;
 	    }
 	    
 	    public void setRefrenceAt(String key, int index) {
 	     	int setid = getSetId(key);
-	        LinkedList<CacheEntry> ll = set.get(setid);
+	        CacheSet ll = set.get(setid);
 	        CacheEntry ce = ll.get(index);
 	        ce.isReferenced = true;
 	    }
 	    
 	    public void fillCache() {
 	    	for (int i = 0; i < NUM_SETS; i++) {
-	    		LinkedList<CacheEntry> ll = set.get(i);
+	    		CacheSet ll = set.get(i);
 	    		while(ll.size() < MAX_ELEMS_PER_SET) {
 	    			put(randomString(6), randomString(6));
 	    		}
@@ -361,7 +567,7 @@ public class KVCacheTest {
 	    
 	    public int getSetSize(String key) {
 	        int setid = getSetId(key);
-	        LinkedList<CacheEntry> ll = set.get(setid);
+	        CacheSet ll = set.get(setid);
 	        return ll.size();
 	    }
 	    
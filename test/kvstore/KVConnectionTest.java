@@ -0,0 +1,125 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.*;
+
+/**
+ * Tests for keep-alive, framed connections between KVClient and
+ * ServerClientHandler.
+ */
+public class KVConnectionTest {
+
+    int NUM_THREADS = 4;
+    String hostname;
+    ServerRunner serverRunner;
+    KVClient client;
+
+    @Before
+    public void setUp() throws IOException, InterruptedException {
+        hostname = InetAddress.getLocalHost().getHostAddress();
+
+        SocketServer ss = new SocketServer(hostname, 8080);
+        ss.addHandler(new ServerClientHandler(new KVServer(100, 10), NUM_THREADS));
+        serverRunner = new ServerRunner(ss, "server");
+        serverRunner.start();
+
+        client = new KVClient(hostname, 8080, 0, true);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        client.close();
+        serverRunner.stop();
+    }
+
+    @Test(timeout = 20000)
+    public void manyRequestsOneConnection() throws KVException {
+        for (int i = 0; i < 100; i++) {
+            client.put("key" + i, "value" + i);
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals("value" + i, client.get("key" + i));
+        }
+        client.del("key0");
+        try {
+            client.get("key0");
+            fail("get of deleted key should fail");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void pipelinedResponsesInOrder() throws KVException {
+        List<KVMessage> requests = new ArrayList<KVMessage>();
+        for (int i = 0; i < 50; i++) {
+            KVMessage put = new KVMessage(PUT_REQ);
+            put.setKey("p" + i);
+            put.setValue("v" + i);
+            requests.add(put);
+        }
+        for (int i = 0; i < 50; i++) {
+            KVMessage get = new KVMessage(GET_REQ);
+            get.setKey("p" + i);
+            requests.add(get);
+        }
+        KVMessage missing = new KVMessage(GET_REQ);
+        missing.setKey("not there");
+        requests.add(missing);
+
+        List<KVMessage> responses = client.sendPipelined(requests);
+        assertEquals(requests.size(), responses.size());
+        for (int i = 0; i < 50; i++) {
+            assertEquals(SUCCESS, responses.get(i).getMessage());
+            assertEquals("v" + i, responses.get(50 + i).getValue());
+        }
+        assertEquals(ERROR_NO_SUCH_KEY, responses.get(100).getMessage());
+    }
+
+    @Test(timeout = 20000)
+    public void legacyClientStillServed() throws KVException {
+        client.put("shared", "value");
+        KVClient legacy = new KVClient(hostname, 8080);
+        assertEquals("value", legacy.get("shared"));
+        legacy.put("shared", "other");
+        assertEquals("other", client.get("shared"));
+    }
+
+    @Test(timeout = 20000)
+    public void idleConnectionGivesBackLastWorker()
+            throws IOException, InterruptedException, KVException {
+        client.close();
+        serverRunner.stop();
+        SocketServer ss = new SocketServer(hostname, 8080);
+        ss.addHandler(new ServerClientHandler(new KVServer(100, 10), 1));
+        serverRunner = new ServerRunner(ss, "server");
+        serverRunner.start();
+
+        client.put("idle", "held");
+        long start = System.currentTimeMillis();
+        KVClient other = new KVClient(hostname, 8080, 0, true);
+        try {
+            assertEquals("held", other.get("idle"));
+            assertTrue(System.currentTimeMillis() - start
+                < ServerClientHandler.KEEP_ALIVE_TIMEOUT / 2);
+            other.put("idle", "released");
+            assertEquals("released", client.get("idle"));
+        } finally {
+            other.close();
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void reconnectsAfterClose() throws KVException {
+        client.put("a", "b");
+        client.close();
+        assertEquals("b", client.get("a"));
+    }
+}
@@ -112,6 +112,70 @@ public class KVServerTest {
         server.put("key does not matter", stringOfLength(256*1024));
     }
 
+    @Test
+    public void getFillsCacheOnMiss() throws KVException {
+        KVCache cache = new KVCache(1, 1);
+        KVServer small = new KVServer(cache);
+        small.put("a", "1");
+        small.put("b", "2");
+        assertNull(cache.get("a"));
+        assertEquals("1", small.get("a"));
+        assertEquals("1", cache.get("a"));
+    }
+
+    @Test
+    public void missesAreRememberedUntilPut() throws KVException {
+        server.setNegativeCaching(60000, 10);
+        for (int i = 0; i < 3; i++) {
+            try {
+                server.get("ghost");
+                fail("missing key should fail");
+            } catch (KVException e) {
+                assertEquals(KVConstants.ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+            }
+        }
+        assertEquals(2, server.getNumNegativeHits());
+        server.put("ghost", "here now");
+        assertEquals("here now", server.get("ghost"));
+    }
+
+    @Test
+    public void missesExpire() throws KVException, InterruptedException {
+        server.setNegativeCaching(1, 10);
+        try {
+            server.get("ghost");
+            fail("missing key should fail");
+        } catch (KVException e) { }
+        Thread.sleep(20);
+        try {
+            server.get("ghost");
+            fail("missing key should fail");
+        } catch (KVException e) { }
+        assertEquals(0, server.getNumNegativeHits());
+    }
+
+    @Test
+    public void failedStoreWriteIsNotCached() throws KVException {
+        final boolean[] failing = { false };
+        KVStore store = new KVStore() {
+            @Override
+            public void put(String key, String value) throws KVException {
+                if (failing[0]) {
+                    throw new KVException(KVConstants.ERROR_COULD_NOT_ACCESS_STORE);
+                }
+                super.put(key, value);
+            }
+        };
+        server = new KVServer(new KVCache(10, 10), store);
+        server.put("key", "kept");
+        failing[0] = true;
+        try {
+            server.put("key", "lost");
+            fail("put should fail with the store");
+        } catch (KVException e) { }
+        assertEquals("kept", server.get("key"));
+    }
+
     private static String stringOfLength(int n) {
         StringBuilder result = new StringBuilder();
         for (int i = 0; i < n; i++) {
@@ -5,6 +5,7 @@ import static org.junit.Assert.*;
 
 import org.junit.*;
 
+import java.io.*;
 import java.util.*;
 
 public class KVStoreTest {
@@ -56,6 +57,145 @@ public class KVStoreTest {
         assertTrue(map.size() == 0);
     }
 
+    @Test
+    public void compressedSnapshotRoundTripsAndDetectsDamage() throws IOException, KVException {
+        KVStore original = new KVStore();
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < KVServer.MAX_VAL_SIZE; i++) {
+            big.append((char) ('a' + i % 26));
+        }
+        original.put("big", big.toString());
+        for (int i = 0; i < 20000; i++) {
+            original.put("key" + i, "value \u00e9 " + i);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        original.writeSnapshot(bytes, true);
+        byte[] snapshot = bytes.toByteArray();
+        KVStore restored = new KVStore();
+        restored.readSnapshot(new ByteArrayInputStream(snapshot));
+        assertEquals(big.toString(), restored.get("big"));
+        for (int i = 0; i < 20000; i++) {
+            assertEquals("value \u00e9 " + i, restored.get("key" + i));
+        }
+
+        byte[] damaged = snapshot.clone();
+        damaged[damaged.length / 2] ^= 1;
+        try {
+            new KVStore().readSnapshot(new ByteArrayInputStream(damaged));
+            fail("damaged snapshot should not load");
+        } catch (IOException e) {
+        }
+        byte[] truncated = Arrays.copyOf(snapshot, snapshot.length - 8);
+        try {
+            new KVStore().readSnapshot(new ByteArrayInputStream(truncated));
+            fail("truncated snapshot should not load");
+        } catch (IOException e) {
+        }
+    }
+
+    @Test
+    public void partitionedSnapshotRoundTrips() throws IOException, KVException {
+        KVStore original = new KVStore();
+        for (int i = 0; i < 20000; i++) {
+            original.put("key" + i, "value" + i);
+        }
+        File dir = File.createTempFile("kvstore", ".snapshot");
+        dir.delete();
+        try {
+            original.dumpToDirectory(dir.getPath(), 8, true);
+            KVStore restored = new KVStore();
+            restored.put("stale", "gone after restore");
+            restored.restoreFromDirectory(dir.getPath());
+            for (int i = 0; i < 20000; i++) {
+                assertEquals("value" + i, restored.get("key" + i));
+            }
+            assertFalse(restored.hasKey("stale"));
+
+            KVSnapshot.partFile(dir, KVSnapshot.readManifest(dir).generation, 3).delete();
+            try {
+                new KVStore().restoreFromDirectory(dir.getPath());
+                fail("snapshot missing a partition should not load");
+            } catch (IOException e) {
+            }
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void partitionedDumpReplacesOnlyOnCommit() throws IOException, KVException {
+        KVStore original = new KVStore();
+        for (int i = 0; i < 1000; i++) {
+            original.put("key" + i, "value" + i);
+        }
+        File dir = File.createTempFile("kvstore", ".snapshot");
+        dir.delete();
+        try {
+            original.dumpToDirectory(dir.getPath(), 8, false);
+            long generation = KVSnapshot.readManifest(dir).generation;
+
+            // a dump that cannot write a partition leaves the old snapshot
+            File blocked = KVSnapshot.partFile(dir, generation + 1, 0);
+            blocked.mkdir();
+            original.put("key0", "changed");
+            try {
+                original.dumpToDirectory(dir.getPath(), 4, false);
+                fail("dump over an unwritable partition should fail");
+            } catch (IOException e) {
+            }
+            blocked.delete();
+            KVStore restored = new KVStore();
+            restored.restoreFromDirectory(dir.getPath());
+            assertEquals("value0", restored.get("key0"));
+            assertEquals(generation, KVSnapshot.readManifest(dir).generation);
+
+            // a smaller dump leaves no partitions of the old one behind
+            original.dumpToDirectory(dir.getPath(), 2, false);
+            int parts = 0;
+            for (String name : dir.list()) {
+                if (KVSnapshot.isPartFile(name)) {
+                    parts++;
+                }
+            }
+            assertEquals(2, parts);
+            restored.restoreFromDirectory(dir.getPath());
+            assertEquals("changed", restored.get("key0"));
+            assertEquals("value999", restored.get("key999"));
+
+            try {
+                original.dumpToDirectory(dir.getPath(), 0, false);
+                fail("zero partitions should be rejected");
+            } catch (IllegalArgumentException e) {
+            }
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void exportedXMLCanBeRestored() throws IOException, KVException {
+        KVStore original = new KVStore();
+        original.put("k\u00e9y <&>", "value");
+        original.put("other", "");
+        File xml = File.createTempFile("kvstore", ".xml");
+        try {
+            original.exportXML(xml.getPath());
+            KVStore restored = new KVStore();
+            restored.restoreFromFile(xml.getPath());
+            assertEquals("value", restored.get("k\u00e9y <&>"));
+            assertEquals("", restored.get("other"));
+        } finally {
+            xml.delete();
+        }
+    }
+
     private boolean storeHasKey(KVStore store, String key) {
         try {
             store.get(key);
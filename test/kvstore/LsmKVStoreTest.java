@@ -0,0 +1,143 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.*;
+
+public class LsmKVStoreTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("lsm", "");
+        dir.delete();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static void assertMissing(KVStore store, String key) {
+        assertFalse(store.hasKey(key));
+        try {
+            store.get(key);
+            fail(key + " should be missing");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+    }
+
+    @Test
+    public void putGetDelAcrossTables() throws KVException {
+        LsmKVStore store = new LsmKVStore(dir.getPath(), 1024, false);
+        store.put("key", "old");
+        store.flush();
+        store.put("key", "new \u00e9");
+        assertEquals("new \u00e9", store.get("key"));
+        store.flush();
+        assertEquals("new \u00e9", store.get("key"));
+        assertTrue(store.hasKey("key"));
+
+        store.del("key");
+        assertMissing(store, "key");
+        store.flush();
+        assertMissing(store, "key");
+        try {
+            store.del("key");
+            fail("second del should fail");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+        store.close();
+    }
+
+    @Test
+    public void reopenReplaysLogAndTables() throws KVException {
+        LsmKVStore store = new LsmKVStore(dir.getPath(), 2048, false);
+        for (int i = 0; i < 200; i++) {
+            store.put("key" + i, "value" + i);
+        }
+        for (int i = 0; i < 200; i += 3) {
+            store.del("key" + i);
+        }
+        assertTrue(store.getNumTables() > 0);
+        // no flush: the last writes are only in the log
+        store.close();
+
+        LsmKVStore reopened = new LsmKVStore(dir.getPath(), 2048, false);
+        for (int i = 0; i < 200; i++) {
+            if (i % 3 == 0) {
+                assertMissing(reopened, "key" + i);
+            } else {
+                assertEquals("value" + i, reopened.get("key" + i));
+            }
+        }
+        reopened.close();
+    }
+
+    @Test
+    public void compactionKeepsNewestValues() throws KVException {
+        LsmKVStore store = new LsmKVStore(dir.getPath(), 4096, false);
+        Random random = new Random(7);
+        Map<String, String> expected = new HashMap<String, String>();
+        for (int i = 0; i < 5000; i++) {
+            String key = "key" + random.nextInt(500);
+            if (random.nextInt(5) == 0 && expected.containsKey(key)) {
+                store.del(key);
+                expected.remove(key);
+            } else {
+                store.put(key, "value" + i);
+                expected.put(key, "value" + i);
+            }
+        }
+        store.flush();
+        store.compact();
+        assertTrue(store.getNumCompactions() > 0);
+        assertTrue(store.getNumTables() < LsmKVStore.FANOUT * 4);
+        for (int k = 0; k < 500; k++) {
+            String key = "key" + k;
+            if (expected.containsKey(key)) {
+                assertEquals(expected.get(key), store.get(key));
+            } else {
+                assertMissing(store, key);
+            }
+        }
+
+        int entries = 0;
+        for (Map.Entry<String, String> entry : store.entries()) {
+            assertEquals(expected.get(entry.getKey()), entry.getValue());
+            entries++;
+        }
+        assertEquals(expected.size(), entries);
+        store.close();
+    }
+
+    @Test
+    public void servesKVServer() throws KVException {
+        KVServer server = new KVServer(new KVCache(2, 2),
+            new LsmKVStore(dir.getPath(), 512, false));
+        for (int i = 0; i < 50; i++) {
+            server.put("key" + i, "value" + i);
+        }
+        server.del("key3");
+        for (int i = 0; i < 50; i++) {
+            assertEquals(i != 3, server.hasKey("key" + i));
+        }
+        assertEquals("value7", server.get("key7"));
+    }
+}
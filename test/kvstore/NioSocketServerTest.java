@@ -0,0 +1,138 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.*;
+
+/**
+ * End to end tests for ServerClientHandler running behind NioSocketServer.
+ */
+public class NioSocketServerTest {
+
+    String hostname;
+    ServerRunner serverRunner;
+
+    @Before
+    public void setUp() throws IOException, InterruptedException {
+        hostname = InetAddress.getLocalHost().getHostAddress();
+
+        SocketServer ss = new NioSocketServer(hostname, 8080, 2);
+        ss.addHandler(new ServerClientHandler(new KVServer(100, 10)));
+        serverRunner = new ServerRunner(ss, "server");
+        serverRunner.start();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        serverRunner.stop();
+    }
+
+    @Test(timeout = 20000)
+    public void legacyRequests() throws KVException {
+        KVClient client = new KVClient(hostname, 8080);
+        client.put("foo", "bar");
+        assertEquals("bar", client.get("foo"));
+        client.del("foo");
+        try {
+            client.get("foo");
+            fail("get of deleted key should fail");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void manyIdleConnectionsDoNotBlockWorkers() throws KVException {
+        // far more open connections than worker threads
+        List<KVClient> idle = new ArrayList<KVClient>();
+        for (int i = 0; i < 20; i++) {
+            KVClient client = new KVClient(hostname, 8080, 0, true);
+            client.put("idle" + i, "value" + i);
+            idle.add(client);
+        }
+        KVClient client = new KVClient(hostname, 8080, 0, true, new BinaryCodec());
+        for (int i = 0; i < 20; i++) {
+            assertEquals("value" + i, client.get("idle" + i));
+        }
+        client.close();
+        for (KVClient c : idle) {
+            c.close();
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void pipelinedLargeValues() throws KVException {
+        KVClient client = new KVClient(hostname, 8080, 0, true, new BinaryCodec());
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < KVServer.MAX_VAL_SIZE; i++) {
+            big.append((char) ('a' + i % 26));
+        }
+        List<KVMessage> requests = new ArrayList<KVMessage>();
+        for (int i = 0; i < 5; i++) {
+            KVMessage put = new KVMessage(PUT_REQ);
+            put.setKey("big" + i);
+            put.setValue(big.toString());
+            requests.add(put);
+            KVMessage get = new KVMessage(GET_REQ);
+            get.setKey("big" + i);
+            requests.add(get);
+        }
+        List<KVMessage> responses = client.sendPipelined(requests);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(SUCCESS, responses.get(2 * i).getMessage());
+            assertEquals(big.toString(), responses.get(2 * i + 1).getValue());
+        }
+        client.close();
+    }
+
+    @Test(timeout = 60000)
+    public void pipelinedBurstLargerThanOneFrame() throws Exception {
+        final KVConnection conn = KVConnection.open(hostname, 8080, 0, new BinaryCodec());
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 1024; i++) {
+            value.append('v');
+        }
+        // well past MAX_FRAME_SIZE in total, written in one burst
+        final int count = 2 * KVConnection.MAX_FRAME_SIZE / value.length();
+        final String val = value.toString();
+        final List<KVException> errors = new ArrayList<KVException>();
+        Thread writer = new Thread() {
+            public void run() {
+                try {
+                    for (int i = 0; i < count; i++) {
+                        KVMessage put = new KVMessage(PUT_REQ);
+                        put.setKey("burst" + (i % 100));
+                        put.setValue(val);
+                        conn.write(put);
+                    }
+                    conn.flush();
+                } catch (KVException e) {
+                    errors.add(e);
+                }
+            }
+        };
+        writer.start();
+        for (int i = 0; i < count; i++) {
+            KVMessage response = conn.receive();
+            assertNotNull("connection closed after " + i + " responses", response);
+            assertEquals(SUCCESS, response.getMessage());
+        }
+        writer.join();
+        assertTrue(errors.isEmpty());
+        conn.close();
+    }
+
+    @Test(timeout = 5000)
+    public void stopIsImmediate() throws InterruptedException {
+        long start = System.currentTimeMillis();
+        serverRunner.stop();
+        // ServerRunner.stop() itself sleeps 100ms after joining
+        assertTrue(System.currentTimeMillis() - start < 1000);
+    }
+}
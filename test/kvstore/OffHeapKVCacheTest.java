@@ -0,0 +1,138 @@
+package kvstore;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.*;
+
+public class OffHeapKVCacheTest {
+
+    @Test
+    public void putGetDel() {
+        KVCache cache = new OffHeapKVCache(3, 4);
+        assertNull(cache.get("hello"));
+        cache.put("hello", "world");
+        assertEquals("world", cache.get("hello"));
+        cache.put("hello", "there");
+        assertEquals("there", cache.get("hello"));
+        cache.put("empty", "");
+        assertEquals("", cache.get("empty"));
+        cache.put("nothing", null);
+        assertNull(cache.get("nothing"));
+        cache.put("\u00e9t\u00e9", "\u4e2d\u6587");
+        assertEquals("\u4e2d\u6587", cache.get("\u00e9t\u00e9"));
+        cache.del("hello");
+        assertNull(cache.get("hello"));
+        cache.del("never there");
+    }
+
+    @Test
+    public void oversizedEntryIsNotCached() {
+        KVCache cache = new OffHeapKVCache(1, 4, 32);
+        cache.put("key", "small");
+        assertEquals("small", cache.get("key"));
+        cache.put("key", repeat('x', 4 * 32));
+        assertNull(cache.get("key"));
+        cache.put("other", "fits");
+        assertEquals("fits", cache.get("other"));
+    }
+
+    @Test
+    public void largeEntriesSpanSlots() {
+        KVCache cache = new OffHeapKVCache(1, 256, 1024);
+        String large = repeat('\u00e9', 50 * 1024);
+        cache.put("small", "value");
+        cache.put("large", large);
+        assertEquals(large, cache.get("large"));
+        assertEquals("value", cache.get("small"));
+        cache.put("large", "short again");
+        assertEquals("short again", cache.get("large"));
+        cache.put("large", large);
+        cache.put("second", large);
+        // 100KB each in a 256KB set: the first unreferenced one goes
+        cache.put("third", large);
+        assertEquals(large, cache.get("third"));
+        assertNull(cache.get("second"));
+        assertEquals(large, cache.get("large"));
+        assertEquals("value", cache.get("small"));
+    }
+
+    private static String repeat(char c, int n) {
+        char[] chars = new char[n];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    /**
+     * The same random workload must leave both caches in the same state,
+     * down to entry order and reference bits.
+     */
+    @Test
+    public void matchesKVCache() {
+        KVCache heap = new KVCache(7, 50);
+        KVCache offHeap = new OffHeapKVCache(7, 50);
+        Random rand = new Random(7);
+        for (int op = 0; op < 50000; op++) {
+            String key = "key" + rand.nextInt(1000);
+            switch (rand.nextInt(10)) {
+                case 0:
+                    heap.del(key);
+                    offHeap.del(key);
+                    break;
+                case 1: case 2: case 3: case 4:
+                    heap.put(key, "value" + op);
+                    offHeap.put(key, "value" + op);
+                    break;
+                default:
+                    assertEquals(heap.get(key), offHeap.get(key));
+            }
+        }
+        assertEquals(heap.toXML(), offHeap.toXML());
+    }
+
+    @Test
+    public void resizeMatchesKVCache() {
+        KVCache heap = new KVCache(4, 20);
+        KVCache offHeap = new OffHeapKVCache(4, 20);
+        Random rand = new Random(11);
+        for (int op = 0; op < 2000; op++) {
+            String key = "key" + rand.nextInt(200);
+            heap.put(key, "value" + op);
+            offHeap.put(key, "value" + op);
+            if (rand.nextInt(3) == 0) {
+                assertEquals(heap.get(key), offHeap.get(key));
+            }
+        }
+        heap.resize(7, 5);
+        offHeap.resize(7, 5);
+        assertEquals(heap.toXML(), offHeap.toXML());
+        heap.resize(3, 40);
+        offHeap.resize(3, 40);
+        for (int op = 0; op < 2000; op++) {
+            String key = "key" + rand.nextInt(200);
+            heap.put(key, "value" + op);
+            offHeap.put(key, "value" + op);
+        }
+        assertEquals(heap.toXML(), offHeap.toXML());
+    }
+
+    @Test
+    public void resizeToBudgetCountsSlabBytes() {
+        KVCache cache = new OffHeapKVCache(2, 4, 64);
+        cache.put("kept", "value");
+        cache.resizeToBudget(2 * 64 * 10);
+        assertEquals("value", cache.get("kept"));
+        for (int i = 0; i < 100; i++) {
+            cache.put("key" + i, "value");
+        }
+        int cached = 0;
+        for (int i = 0; i < 100; i++) {
+            if (cache.get("key" + i) != null) {
+                cached++;
+            }
+        }
+        assertEquals(20, cached);
+    }
+}
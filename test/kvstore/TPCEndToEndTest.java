@@ -1,6 +1,12 @@
 package kvstore;
 
+import static kvstore.KVConstants.*;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
 
 import org.junit.Test;
 
@@ -12,4 +18,60 @@ public class TPCEndToEndTest extends TPCEndToEndTemplate {
         assertEquals("get failed", client.get("foo"), "bar");
     }
 
+    @Test(timeout = 15000)
+    public void testAbortReportsVote() throws KVException {
+        client.put(KEY1, "value");
+        client.del(KEY1);
+        try {
+            client.del(KEY1);
+            fail("second del should abort");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+        client.put(KEY1, "again");
+        assertEquals("again", client.get(KEY1));
+    }
+
+    @Test(timeout = 30000)
+    public void testConcurrentRequests() throws Exception {
+        final String[] keys = { KEY1, KEY2, KEY3, KEY4, KEY1, KEY2, KEY3, KEY4 };
+        final List<Exception> errors = new ArrayList<Exception>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < keys.length; i++) {
+            final int writer = i;
+            Thread thread = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < 5; j++) {
+                            KVMessage put = new KVMessage(PUT_REQ);
+                            put.setKey(keys[writer]);
+                            put.setValue("writer" + writer + "-" + j);
+                            master.handleTPCRequest(put, true);
+                        }
+                    } catch (Exception e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+        for (int i = 0; i < 4; i++) {
+            // both replicas must hold one of the two last writes
+            KVMessage get = new KVMessage(GET_REQ);
+            get.setKey(keys[i]);
+            TPCSlaveInfo first = master.findFirstReplica(keys[i]);
+            String value = master.getFromSlave(get, first);
+            assertTrue(value, value.equals("writer" + i + "-4")
+                || value.equals("writer" + (i + 4) + "-4"));
+            assertEquals(value, master.getFromSlave(get, master.findSuccessor(first)));
+        }
+    }
+
 }
@@ -0,0 +1,395 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.*;
+
+public class TPCLogTest {
+
+    private File logFile;
+
+    @Before
+    public void setUp() throws IOException {
+        logFile = File.createTempFile("tpclog", ".log");
+        logFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        logFile.delete();
+        new File(logFile.getPath() + ".snapshot").delete();
+    }
+
+    private static KVMessage put(String key, String value) {
+        KVMessage msg = new KVMessage(PUT_REQ);
+        msg.setKey(key);
+        msg.setValue(value);
+        return msg;
+    }
+
+    private static KVMessage del(String key) {
+        KVMessage msg = new KVMessage(DEL_REQ);
+        msg.setKey(key);
+        return msg;
+    }
+
+    private void logTransactions(TPCLog log) throws KVException {
+        log.appendAndFlush(put("kept", "value"));
+        log.commit(new KVMessage(COMMIT));
+        log.appendAndFlush(put("gone", "value"));
+        log.commit(new KVMessage(COMMIT));
+        log.appendAndFlush(del("gone"));
+        log.commit(new KVMessage(COMMIT));
+        log.appendAndFlush(put("aborted", "value"));
+        log.appendAndFlush(new KVMessage(ABORT));
+    }
+
+    private void assertRebuilt(KVServer server) throws KVException {
+        assertEquals("value", server.get("kept"));
+        assertFalse(server.hasKey("gone"));
+        assertFalse(server.hasKey("aborted"));
+    }
+
+    @Test
+    public void replaysCommittedOperations() throws KVException {
+        TPCLog log = new TPCLog(logFile.getPath(), new KVServer(10, 10));
+        logTransactions(log);
+        assertEquals(ABORT, log.getLastEntry().getMsgType());
+
+        KVServer server = new KVServer(10, 10);
+        TPCLog reopened = new TPCLog(logFile.getPath(), server);
+        assertRebuilt(server);
+        assertEquals(ABORT, reopened.getLastEntry().getMsgType());
+    }
+
+    @Test
+    public void tornRecordIsCutOff() throws KVException, IOException {
+        TPCLog log = new TPCLog(logFile.getPath(), new KVServer(10, 10));
+        logTransactions(log);
+        log.appendAndFlush(put("torn", "value"));
+        long intact = logFile.length();
+        log.appendAndFlush(new KVMessage(COMMIT));
+
+        // lose the end of the last record
+        RandomAccessFile raf = new RandomAccessFile(logFile, "rw");
+        raf.setLength(logFile.length() - 1);
+        raf.close();
+
+        KVServer server = new KVServer(10, 10);
+        TPCLog reopened = new TPCLog(logFile.getPath(), server);
+        assertRebuilt(server);
+        assertFalse(server.hasKey("torn"));
+        assertEquals(intact, logFile.length());
+        assertEquals(PUT_REQ, reopened.getLastEntry().getMsgType());
+
+        // later appends land after the last good record
+        reopened.appendAndFlush(new KVMessage(COMMIT));
+        server = new KVServer(10, 10);
+        new TPCLog(logFile.getPath(), server);
+        assertEquals("value", server.get("torn"));
+    }
+
+    @Test
+    public void corruptRecordIsCutOff() throws KVException, IOException {
+        TPCLog log = new TPCLog(logFile.getPath(), new KVServer(10, 10));
+        logTransactions(log);
+        long intact = logFile.length();
+        log.appendAndFlush(put("corrupt", "value"));
+        log.appendAndFlush(new KVMessage(COMMIT));
+
+        // flip a byte in the payload of the put
+        RandomAccessFile raf = new RandomAccessFile(logFile, "rw");
+        raf.seek(intact + 10);
+        int b = raf.read();
+        raf.seek(intact + 10);
+        raf.write(b ^ 0xFF);
+        raf.close();
+
+        KVServer server = new KVServer(10, 10);
+        new TPCLog(logFile.getPath(), server);
+        assertRebuilt(server);
+        assertFalse(server.hasKey("corrupt"));
+        assertEquals(intact, logFile.length());
+    }
+
+    @Test
+    public void convertsOldLog() throws KVException, IOException {
+        ArrayList<KVMessage> entries = new ArrayList<KVMessage>();
+        entries.add(put("kept", "value"));
+        entries.add(new KVMessage(COMMIT));
+        entries.add(put("aborted", "value"));
+        entries.add(new KVMessage(ABORT));
+        ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(logFile));
+        out.writeObject(entries);
+        out.close();
+
+        KVServer server = new KVServer(10, 10);
+        TPCLog log = new TPCLog(logFile.getPath(), server);
+        assertEquals("value", server.get("kept"));
+        assertFalse(server.hasKey("aborted"));
+        log.appendAndFlush(del("kept"));
+        log.appendAndFlush(new KVMessage(COMMIT));
+
+        server = new KVServer(10, 10);
+        new TPCLog(logFile.getPath(), server);
+        assertFalse(server.hasKey("kept"));
+    }
+
+    @Test(timeout = 30000)
+    public void concurrentAppendsShareForces()
+            throws KVException, InterruptedException {
+        final TPCLog log = new TPCLog(logFile.getPath(), new KVServer(10, 10));
+        log.setGroupCommit(2000, 8);
+        final List<KVException> errors = new ArrayList<KVException>();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int id = t;
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < 25; i++) {
+                            log.appendAndFlush(put("key" + id + "." + i, "value"));
+                        }
+                    } catch (KVException e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertTrue(errors.isEmpty());
+        assertTrue(log.getNumForces() < 200);
+
+        List<KVMessage> entries = log.loadFromDisk();
+        assertEquals(200, entries.size());
+        java.util.HashSet<String> keys = new java.util.HashSet<String>();
+        for (KVMessage entry : entries) {
+            keys.add(entry.getKey());
+        }
+        assertEquals(200, keys.size());
+    }
+
+    @Test
+    public void failedForceIsNotDurable() throws Exception {
+        KVServer server = new KVServer(10, 10);
+        TPCLog log = new TPCLog(logFile.getPath(), server);
+        log.appendAndFlush(put("kept", "value"));
+        log.commit(new KVMessage(COMMIT));
+
+        // pull the file out from under the log
+        Field field = TPCLog.class.getDeclaredField("channel");
+        field.setAccessible(true);
+        ((FileChannel) field.get(log)).close();
+        try {
+            log.appendAndFlush(put("lost", "value"));
+            fail("append to a closed log should fail");
+        } catch (KVException e) {
+            assertEquals(ERROR_COULD_NOT_ACCESS_LOG, e.getKVMessage().getMessage());
+        }
+        // the lost request is not pending, so a commit has nothing to apply
+        assertEquals(COMMIT, log.getLastEntry().getMsgType());
+        log.commit(new KVMessage(COMMIT));
+        assertFalse(server.hasKey("lost"));
+
+        server = new KVServer(10, 10);
+        new TPCLog(logFile.getPath(), server);
+        assertEquals("value", server.get("kept"));
+        assertFalse(server.hasKey("lost"));
+    }
+
+    @Test
+    public void failedBatchRollsBackToEntryBeforeIt() throws Exception {
+        final TPCLog log = new TPCLog(logFile.getPath(), new KVServer(10, 10));
+        log.appendAndFlush(put("kept", "value"));
+        log.commit(new KVMessage(COMMIT));
+        // both appends below go out in one batch
+        log.setGroupCommit(TimeUnit.SECONDS.toMicros(10), 2);
+        Field field = TPCLog.class.getDeclaredField("channel");
+        field.setAccessible(true);
+        ((FileChannel) field.get(log)).close();
+
+        final List<Exception> errors = new ArrayList<Exception>();
+        Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    log.appendAndFlush(put("lost", "first"));
+                } catch (KVException e) {
+                    errors.add(e);
+                }
+            }
+        });
+        other.start();
+        try {
+            log.appendAndFlush(put("lost", "second"));
+            fail("append to a closed log should fail");
+        } catch (KVException e) {
+            assertEquals(ERROR_COULD_NOT_ACCESS_LOG, e.getKVMessage().getMessage());
+        }
+        other.join();
+        assertEquals(1, errors.size());
+        // neither request of the failed batch is pending
+        assertEquals(COMMIT, log.getLastEntry().getMsgType());
+    }
+
+    @Test
+    public void checkpointTruncatesLog() throws KVException {
+        TPCLog log = new TPCLog(logFile.getPath(), new KVServer(10, 10));
+        logTransactions(log);
+        log.appendAndFlush(put("pending", "value"));
+        log.checkpoint();
+        // only the undecided request is left
+        assertEquals(1, log.loadFromDisk().size());
+        log.commit(new KVMessage(COMMIT));
+        // a repeated commit is ignored
+        log.commit(new KVMessage(COMMIT));
+        assertEquals(2, log.loadFromDisk().size());
+
+        KVServer server = new KVServer(10, 10);
+        log = new TPCLog(logFile.getPath(), server);
+        assertRebuilt(server);
+        assertEquals("value", server.get("pending"));
+
+        log.appendAndFlush(del("kept"));
+        log.commit(new KVMessage(COMMIT));
+        server = new KVServer(10, 10);
+        new TPCLog(logFile.getPath(), server);
+        assertFalse(server.hasKey("kept"));
+        assertEquals("value", server.get("pending"));
+    }
+
+    @Test
+    public void damagedSnapshotFailsRecovery() throws KVException, IOException {
+        TPCLog log = new TPCLog(logFile.getPath(), new KVServer(10, 10));
+        logTransactions(log);
+        log.checkpoint();
+
+        RandomAccessFile snapshot = new RandomAccessFile(logFile.getPath() + ".snapshot", "rw");
+        snapshot.setLength(snapshot.length() - 4);
+        snapshot.close();
+        try {
+            new TPCLog(logFile.getPath(), new KVServer(10, 10));
+            fail("recovery from a damaged snapshot should fail");
+        } catch (KVException e) {
+            assertEquals(ERROR_COULD_NOT_ACCESS_LOG, e.getKVMessage().getMessage());
+        }
+    }
+
+    @Test
+    public void checkpointKeepsEntriesLoggedMeanwhile() throws Exception {
+        final CountDownLatch dumping = new CountDownLatch(1);
+        final CountDownLatch voted = new CountDownLatch(1);
+        KVServer server = new KVServer(10, 10) {
+            @Override
+            public void dumpStore(String fileName) throws IOException {
+                dumping.countDown();
+                try {
+                    voted.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) { }
+                super.dumpStore(fileName);
+            }
+        };
+        final TPCLog log = new TPCLog(logFile.getPath(), server);
+        logTransactions(log);
+        final List<Exception> errors = new ArrayList<Exception>();
+        Thread checkpointer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    log.checkpoint();
+                } catch (KVException e) {
+                    errors.add(e);
+                }
+            }
+        });
+        checkpointer.start();
+        dumping.await();
+        // votes are logged while the store is dumped
+        log.appendAndFlush(put("during", "value"));
+        voted.countDown();
+        log.commit(new KVMessage(COMMIT));
+        checkpointer.join();
+        assertTrue(errors.isEmpty());
+        assertEquals("value", server.get("during"));
+
+        server = new KVServer(10, 10);
+        new TPCLog(logFile.getPath(), server);
+        assertRebuilt(server);
+        assertEquals("value", server.get("during"));
+    }
+
+    @Test
+    public void periodicCheckpointsKeepLogShort() throws KVException {
+        KVServer server = new KVServer(10, 10);
+        TPCLog log = new TPCLog(logFile.getPath(), server);
+        log.setCheckpointInterval(10);
+        for (int i = 0; i < 100; i++) {
+            log.appendAndFlush(put("key" + i, "value" + i));
+            log.commit(new KVMessage(COMMIT));
+            assertTrue(log.loadFromDisk().size() <= 10);
+        }
+        assertEquals("value99", server.get("key99"));
+
+        server = new KVServer(10, 10);
+        new TPCLog(logFile.getPath(), server);
+        for (int i = 0; i < 100; i++) {
+            assertEquals("value" + i, server.get("key" + i));
+        }
+    }
+
+    @Test
+    public void parallelReplayMatchesSequential() throws KVException {
+        KVServer live = new KVServer(10, 10);
+        TPCLog log = new TPCLog(logFile.getPath(), live);
+        java.util.Random random = new java.util.Random(5);
+        for (int i = 0; i < 2000; i++) {
+            String key = "key" + random.nextInt(300);
+            if (random.nextInt(4) == 0) {
+                if (!live.hasKey(key)) {
+                    continue;
+                }
+                log.appendAndFlush(del(key));
+            } else {
+                log.appendAndFlush(put(key, "value" + i));
+            }
+            if (random.nextInt(10) == 0) {
+                log.appendAndFlush(new KVMessage(ABORT));
+            } else {
+                log.commit(new KVMessage(COMMIT));
+            }
+        }
+
+        KVServer sequential = new KVServer(10, 10);
+        new TPCLog(logFile.getPath(), sequential);
+        KVServer parallel = new KVServer(10, 10);
+        TPCLog replayed = new TPCLog(logFile.getPath(), parallel, 4);
+        assertEquals(log.loadFromDisk().size(), replayed.getNumReplayed());
+        for (int i = 0; i < 300; i++) {
+            String key = "key" + i;
+            assertEquals(live.hasKey(key), parallel.hasKey(key));
+            assertEquals(live.hasKey(key), sequential.hasKey(key));
+            if (live.hasKey(key)) {
+                assertEquals(live.get(key), parallel.get(key));
+                assertEquals(live.get(key), sequential.get(key));
+            }
+        }
+    }
+}
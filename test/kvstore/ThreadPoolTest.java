@@ -2,8 +2,66 @@
  * Test code for ThreadPool goes here 
  */
 package kvstore;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.*;
+
 public class ThreadPoolTest 
 {
     public static void runall() {}
 
+    @Test(timeout = 10000)
+    public void runsEveryJob() throws InterruptedException {
+        ThreadPool pool = new ThreadPool(4, 8, ThreadPool.RejectionPolicy.BLOCK);
+        final AtomicInteger ran = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(1000);
+        for (int i = 0; i < 1000; i++) {
+            pool.addJob(new Runnable() {
+                public void run() {
+                    ran.incrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1000, ran.get());
+        assertEquals(1000, pool.getNumJobsStarted());
+        assertTrue(pool.getMaxQueueDepth() <= 8);
+        assertEquals(4, pool.getNumLivingThreads());
+    }
+
+    @Test(timeout = 10000)
+    public void rejectsWhenFull() throws InterruptedException {
+        ThreadPool pool = new ThreadPool(1, 2, ThreadPool.RejectionPolicy.REJECT);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        pool.addJob(new Runnable() {
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) { }
+            }
+        });
+        started.await();
+        Runnable nothing = new Runnable() {
+            public void run() { }
+        };
+        pool.addJob(nothing);
+        pool.addJob(nothing);
+        assertEquals(2, pool.getNumJobs());
+        try {
+            pool.addJob(nothing);
+            fail("full queue should reject");
+        } catch (RejectedExecutionException e) { }
+        assertFalse(pool.offerJob(nothing));
+        assertEquals(2, pool.getNumJobsRejected());
+        release.countDown();
+    }
 }
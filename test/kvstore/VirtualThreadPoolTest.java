@@ -0,0 +1,94 @@
+package kvstore;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.*;
+
+public class VirtualThreadPoolTest {
+
+    @Test(timeout = 10000)
+    public void everyJobGetsItsOwnThread() throws InterruptedException {
+        VirtualThreadPool pool = new VirtualThreadPool();
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(500);
+        for (int i = 0; i < 500; i++) {
+            pool.addJob(new Runnable() {
+                public void run() {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) { }
+                }
+            });
+        }
+        // all 500 block at once, which a fixed pool could not do
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertEquals(500, pool.getNumLivingThreads());
+        release.countDown();
+        while (pool.getNumLivingThreads() > 0) {
+            Thread.sleep(10);
+        }
+        assertEquals(500, pool.getNumJobsStarted());
+    }
+
+    @Test(timeout = 10000)
+    public void rejectsPastLimit() throws InterruptedException {
+        VirtualThreadPool pool =
+            new VirtualThreadPool(1, ThreadPool.RejectionPolicy.REJECT);
+        final CountDownLatch release = new CountDownLatch(1);
+        pool.addJob(new Runnable() {
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) { }
+            }
+        });
+        Runnable nothing = new Runnable() {
+            public void run() { }
+        };
+        try {
+            pool.addJob(nothing);
+            fail("second job should be rejected");
+        } catch (RejectedExecutionException e) { }
+        assertFalse(pool.offerJob(nothing));
+        assertEquals(2, pool.getNumJobsRejected());
+        release.countDown();
+    }
+
+    @Test(timeout = 20000)
+    public void servesManyIdleConnections()
+            throws IOException, InterruptedException, KVException {
+        String hostname = InetAddress.getLocalHost().getHostAddress();
+        SocketServer ss = new SocketServer(hostname, 8080);
+        ss.addHandler(new ServerClientHandler(new KVServer(100, 10),
+            new VirtualThreadPool()));
+        ServerRunner runner = new ServerRunner(ss, "server");
+        runner.start();
+
+        List<KVClient> clients = new ArrayList<KVClient>();
+        try {
+            // each keep-alive connection pins a thread until it goes idle
+            for (int i = 0; i < 50; i++) {
+                KVClient client = new KVClient(hostname, 8080, 0, true);
+                client.put("key" + i, "value" + i);
+                clients.add(client);
+            }
+            for (int i = 0; i < 50; i++) {
+                assertEquals("value" + i, clients.get(i).get("key" + i));
+            }
+        } finally {
+            for (KVClient client : clients) {
+                client.close();
+            }
+            runner.stop();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package kvstore;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.*;
+
+public class WorkStealingThreadPoolTest {
+
+    @Test(timeout = 10000)
+    public void idleWorkersStealFromBusyOne() throws InterruptedException {
+        WorkStealingThreadPool pool = new WorkStealingThreadPool(4);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        // pin worker 0 on a job that will not finish until released
+        pool.addJob(new Runnable() {
+            public void run() {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) { }
+            }
+        }, 0);
+        blocked.await();
+
+        // a quarter of these land on worker 0 and have to be stolen
+        final CountDownLatch done = new CountDownLatch(100);
+        for (int i = 0; i < 100; i++) {
+            pool.addJob(new Runnable() {
+                public void run() {
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(pool.getNumJobsStolen() > 0);
+        release.countDown();
+        assertEquals(4, pool.getNumLivingThreads());
+    }
+
+    @Test(timeout = 10000)
+    public void sameAffinityRunsSeriallyOnOneThread() throws InterruptedException {
+        WorkStealingThreadPool pool = new WorkStealingThreadPool(4);
+        final Set<Thread> threads =
+            Collections.synchronizedSet(new HashSet<Thread>());
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(200);
+        for (int i = 0; i < 200; i++) {
+            pool.addJob(new Runnable() {
+                public void run() {
+                    if (running.incrementAndGet() > 1) {
+                        overlaps.incrementAndGet();
+                    }
+                    threads.add(Thread.currentThread());
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+            }, 7);
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, threads.size());
+        assertEquals(0, overlaps.get());
+        assertEquals(0, pool.getNumJobsStolen());
+    }
+
+    @Test(timeout = 10000)
+    public void getJobStealsOnlyUnpinnedJobs() throws InterruptedException {
+        WorkStealingThreadPool pool = new WorkStealingThreadPool(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        pool.addJob(new Runnable() {
+            public void run() {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) { }
+            }
+        }, 0);
+        blocked.await();
+
+        Runnable pinned = new Runnable() {
+            public void run() { }
+        };
+        Runnable shared = new Runnable() {
+            public void run() { }
+        };
+        pool.addJob(pinned, 0);
+        pool.addJob(shared);
+        assertSame(shared, pool.getJob());
+        assertEquals(1, pool.getNumJobs());
+        release.countDown();
+    }
+
+    @Test(timeout = 20000)
+    public void nioServerRoutesByCacheSet()
+            throws IOException, InterruptedException, KVException {
+        String hostname = InetAddress.getLocalHost().getHostAddress();
+        SocketServer ss = new NioSocketServer(hostname, 8080,
+            new WorkStealingThreadPool(4));
+        ss.addHandler(new ServerClientHandler(new KVServer(10, 10)));
+        ServerRunner runner = new ServerRunner(ss, "server");
+        runner.start();
+        KVClient client = new KVClient(hostname, 8080, 0, true, new BinaryCodec());
+        try {
+            for (int i = 0; i < 100; i++) {
+                client.put("key" + i, "value" + i);
+            }
+            for (int i = 0; i < 100; i++) {
+                assertEquals("value" + i, client.get("key" + i));
+            }
+            try {
+                client.get("missing");
+                fail("get of missing key should fail");
+            } catch (KVException e) {
+                assertEquals(KVConstants.ERROR_NO_SUCH_KEY,
+                    e.getKVMessage().getMessage());
+            }
+        } finally {
+            client.close();
+            runner.stop();
+        }
+    }
+}